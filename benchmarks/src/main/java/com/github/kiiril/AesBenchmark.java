@@ -0,0 +1,45 @@
+package com.github.kiiril;
+
+import org.openjdk.jmh.annotations.*;
+import javax.crypto.SecretKey;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// One AES operation as done for every link frame and every onion layer
+// Run with: java -jar benchmarks/target/benchmarks.jar AesBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AesBenchmark {
+    @Param({"GCM", "CBC"})
+    public AES.Mode mode;
+
+    // a small control message, a typical page, a full stream chunk
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    private SecretKey key;
+    private byte[] plain;
+    private byte[] encrypted;
+
+    @Setup
+    public void setUp() {
+        key = AES.generateRandomKey();
+        plain = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(plain);
+        encrypted = AES.encrypt(mode, plain, key);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return AES.encrypt(mode, plain, key);
+    }
+
+    @Benchmark
+    public byte[] decrypt() {
+        return AES.decrypt(mode, encrypted, key);
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.kiiril;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Compares two JMH JSON result files (-rf json) benchmark by benchmark: score and allocated bytes per operation.
+// Exits with 2 if any benchmark got slower or allocates more than the threshold allows.
+// Run with: java -cp benchmarks/target/benchmarks.jar com.github.kiiril.CompareResults baseline.json current.json [threshold %]
+public class CompareResults {
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareResults <baseline.json> <current.json> [threshold %, default 10]");
+            System.exit(1);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> current = read(args[1]);
+
+        boolean regressed = false;
+        System.out.printf(Locale.ROOT, "%-70s %14s %14s %-8s %9s %12s %12s %9s%n",
+                "Benchmark", "Baseline", "Current", "Unit", "Change", "B/op before", "B/op now", "Change");
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result before = baseline.get(entry.getKey());
+            Result now = entry.getValue();
+            if (before == null) {
+                System.out.printf(Locale.ROOT, "%-70s %14s %14.3f %-8s  (new)%n", entry.getKey(), "-", now.score, now.unit);
+                continue;
+            }
+
+            // a higher score is better for throughput, a lower one for times
+            double scoreChange = change(before.score, now.score);
+            boolean slower = now.higherIsBetter ? -scoreChange > threshold : scoreChange > threshold;
+            double allocationChange = change(before.allocatedBytes, now.allocatedBytes);
+            boolean allocatesMore = allocationChange > threshold;
+            regressed |= slower || allocatesMore;
+
+            System.out.printf(Locale.ROOT, "%-70s %14.3f %14.3f %-8s %+8.1f%% %12.0f %12.0f %+8.1f%%%s%n",
+                    entry.getKey(), before.score, now.score, now.unit, scoreChange,
+                    before.allocatedBytes, now.allocatedBytes, allocationChange,
+                    slower || allocatesMore ? "  REGRESSION" : "");
+        }
+        System.out.println("Regressions are changes for the worse beyond " + threshold + "%");
+        if (regressed) System.exit(2);
+    }
+
+    private static double change(double before, double now) {
+        if (before == 0) return now == 0 ? 0 : 100;
+        return (now - before) / before * 100;
+    }
+
+    // Benchmark name with its parameters, e.g. com.github.kiiril.AesBenchmark.encrypt:mode=GCM,payloadSize=64
+    private static Map<String, Result> read(String path) throws IOException {
+        Map<String, Result> results = new TreeMap<>();
+        try (Reader reader = Files.newBufferedReader(Paths.get(path))) {
+            JsonArray runs = JsonParser.parseReader(reader).getAsJsonArray();
+            for (JsonElement element : runs) {
+                JsonObject run = element.getAsJsonObject();
+                StringBuilder name = new StringBuilder(run.get("benchmark").getAsString());
+                if (run.has("params")) {
+                    Map<String, String> params = new LinkedHashMap<>();
+                    run.getAsJsonObject("params").entrySet().forEach(e -> params.put(e.getKey(), e.getValue().getAsString()));
+                    name.append(':');
+                    params.forEach((key, value) -> name.append(key).append('=').append(value).append(','));
+                    name.setLength(name.length() - 1);
+                }
+
+                JsonObject metric = run.getAsJsonObject("primaryMetric");
+                Result result = new Result();
+                result.score = metric.get("score").getAsDouble();
+                result.unit = metric.get("scoreUnit").getAsString();
+                result.higherIsBetter = "thrpt".equals(run.get("mode").getAsString());
+                JsonObject secondary = run.getAsJsonObject("secondaryMetrics");
+                if (secondary != null && secondary.has(ALLOCATION)) {
+                    result.allocatedBytes = secondary.getAsJsonObject(ALLOCATION).get("score").getAsDouble();
+                }
+                results.put(name.toString(), result);
+            }
+        }
+        return results;
+    }
+
+    private static class Result {
+        private double score;
+        private String unit;
+        private boolean higherIsBetter;
+        private double allocatedBytes;
+    }
+}
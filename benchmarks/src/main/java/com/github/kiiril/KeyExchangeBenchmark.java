@@ -0,0 +1,47 @@
+package com.github.kiiril;
+
+import org.openjdk.jmh.annotations.*;
+import javax.crypto.SecretKey;
+import java.util.concurrent.TimeUnit;
+
+// Link handshakes per second for each key exchange: both sides generate a key pair,
+// agree on the shared secret and derive the link key, as two nodes do on every new connection.
+// Run with: java -jar benchmarks/target/benchmarks.jar KeyExchangeBenchmark
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyExchangeBenchmark {
+    @Param({"MODP", "X25519"})
+    public KeyExchange.Algorithm algorithm;
+
+    @Benchmark
+    public SecretKey handshake() {
+        KeyExchange initiator = KeyExchange.create(algorithm);
+        KeyExchange responder = KeyExchange.create(algorithm);
+        byte[] sharedSecret = initiator.generateSharedSecret(responder.getPublicKey());
+        return AES.deriveKey(sharedSecret, "onion link key");
+    }
+
+    // Only the agreement with a long-lived node key pair, what a node pays per new link,
+    // run from several threads as parallel handshakes are
+    @Benchmark
+    @Threads(4)
+    public SecretKey linkKey(NodeKeys keys) {
+        return AES.deriveKey(keys.node.generateSharedSecret(keys.peerPublicKey), "onion link key");
+    }
+
+    @State(Scope.Benchmark)
+    public static class NodeKeys {
+        KeyExchange node;
+        byte[] peerPublicKey;
+
+        @Setup
+        public void setUp(KeyExchangeBenchmark benchmark) {
+            node = KeyExchange.create(benchmark.algorithm);
+            peerPublicKey = KeyExchange.create(benchmark.algorithm).getPublicKey();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.kiiril;
+
+import com.github.kiiril.messages.Layer;
+import org.openjdk.jmh.annotations.*;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// What the sender pays per chunk: wrapping a request chunk in one layer per hop and unwrapping a response chunk.
+// The routers are peer connections over links that drop everything, no network is involved.
+// The size of both messages is printed once per trial, it grows by a fixed overhead per hop or stays at the cell size.
+// Run with: java -jar benchmarks/target/benchmarks.jar OnionLayersBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OnionLayersBenchmark {
+    private static final int SESSION_ID = 42;
+    private static final int STREAM_ID = 1;
+
+    @Param({"3", "5", "8"})
+    public int hops;
+
+    @Param({"1024", "16384"})
+    public int payloadSize;
+
+    // 0 for messages as long as their layers
+    @Param({"0", "20480"})
+    public int cellSize;
+
+    private PeerConnectionManager manager;
+    private Session session;
+    private byte[] chunk;
+    private byte[] response;
+
+    @Setup
+    public void setUp() throws IOException {
+        NodeConfig config = new NodeConfig().setMetricsPort(0).setCircuitPoolSize(0);
+        manager = new PeerConnectionManager(config);
+
+        PeerConnection[] routers = new PeerConnection[hops];
+        for (int i = 0; i < hops; i++) {
+            routers[i] = new PeerConnection(new NullLink("10.0.0." + (i + 1)), manager);
+        }
+        session = new Session(SESSION_ID, config.getCipherMode(), cellSize);
+        session.setSelectedRouters(routers);
+        session.generateAndSpreadSessionKey();
+
+        chunk = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(chunk);
+        response = wrapResponse(config.getCipherMode());
+        System.out.printf("%nhops=%d payloadSize=%d cellSize=%d: request message of %d bytes, response message of %d bytes%n",
+                hops, payloadSize, cellSize, encryptLayers().length, response.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    // Layers a response chunk the way the exit node and the relays on the way back do
+    private byte[] wrapResponse(AES.Mode mode) {
+        SecretKey exitKey = session.getRouterKey(hops - 1);
+        byte[] noHop = OnionCell.address(null);
+        ByteBuffer innermost = ByteBuffer.allocate(OnionCell.headerSize(noHop, noHop) + chunk.length);
+        OnionCell.putHeader(innermost, noHop, noHop, STREAM_ID, 0, true);
+        innermost.put(chunk).flip();
+        ByteBuffer message = OnionCell.seal(mode, exitKey, innermost, cellSize);
+        for (int i = hops - 2; i >= 0; i--) {
+            message = OnionCell.seal(mode, session.getRouterKey(i), OnionCell.ciphertext(message, cellSize), cellSize);
+        }
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public byte[] encryptLayers() {
+        return session.encryptLayers(chunk, STREAM_ID, 0, true);
+    }
+
+    @Benchmark
+    public Layer decryptLayers() {
+        // layers are decrypted in place, every call gets a fresh copy as it would get a fresh message
+        return session.decryptLayers(ByteBuffer.wrap(response.clone()));
+    }
+
+    private static class NullLink implements Link {
+        private final String remoteIp;
+
+        NullLink(String remoteIp) {
+            this.remoteIp = remoteIp;
+        }
+
+        @Override
+        public void start(LinkHandler handler) {
+        }
+
+        @Override
+        public boolean write(ByteBuffer frame) {
+            return true;
+        }
+
+        @Override
+        public boolean writeControl(ByteBuffer frame) {
+            return true;
+        }
+
+        @Override
+        public boolean isWritable() {
+            return true;
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public String getRemoteIp() {
+            return remoteIp;
+        }
+    }
+}
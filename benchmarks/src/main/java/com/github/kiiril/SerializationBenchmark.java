@@ -0,0 +1,80 @@
+package com.github.kiiril;
+
+import com.github.kiiril.messages.ForwardMessage;
+import com.github.kiiril.messages.Layer;
+import com.github.kiiril.messages.Message;
+import org.openjdk.jmh.annotations.*;
+import javax.crypto.SecretKey;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// The binary routing header and body of an onion layer, as every hop reads once per message, and a whole
+// link frame (serialization and link encryption) for each wire format
+// Run with: java -jar benchmarks/target/benchmarks.jar SerializationBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    private static final byte[] NEXT_HOP = OnionCell.address("10.0.0.2:80");
+    private static final byte[] PREVIOUS_HOP = OnionCell.address("10.0.0.1:80");
+
+    private byte[] body;
+    private ByteBuffer layer;
+
+    @Setup
+    public void setUp() {
+        body = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(body);
+        layer = writeLayer();
+    }
+
+    @Benchmark
+    public ByteBuffer writeLayer() {
+        ByteBuffer buffer = ByteBuffer.allocate(OnionCell.headerSize(NEXT_HOP, PREVIOUS_HOP) + body.length);
+        OnionCell.putHeader(buffer, NEXT_HOP, PREVIOUS_HOP, 1, 0, true);
+        return buffer.put(body).flip();
+    }
+
+    @Benchmark
+    public Layer readLayer() {
+        return OnionCell.readLayer(layer.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer encodeFrame(Frames frames) {
+        return frames.codec.encode(frames.forwardMessage, frames.linkKey);
+    }
+
+    @Benchmark
+    public Message decodeFrame(Frames frames) throws ProtocolException {
+        return frames.codec.decode(frames.frame.duplicate(), frames.linkKey);
+    }
+
+    // Kept apart so only the frame benchmarks run once per wire format
+    @State(Scope.Benchmark)
+    public static class Frames {
+        @Param({"JSON", "BINARY"})
+        public NodeConfig.WireFormat wireFormat;
+
+        FrameCodec codec;
+        SecretKey linkKey;
+        ForwardMessage forwardMessage;
+        ByteBuffer frame;
+
+        @Setup
+        public void setUp(SerializationBenchmark benchmark) {
+            codec = FrameCodec.create(new NodeConfig().setWireFormat(wireFormat));
+            linkKey = AES.generateRandomKey();
+            forwardMessage = new ForwardMessage(42, benchmark.body);
+            frame = codec.encode(forwardMessage, linkKey);
+        }
+    }
+}
@@ -1,69 +1,162 @@
 package com.github.kiiril;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
+import java.security.spec.AlgorithmParameterSpec;
 import java.util.Arrays;
 import java.util.Base64;
 
 public class AES {
-    // Generate a 256-bit AES key from a shared secret
-    public static SecretKey generateKey(BigInteger sharedSecret) {
-        MessageDigest sha256;
-        try {
-            sha256 = MessageDigest.getInstance("SHA-256");
-            byte[] key = sha256.digest(sharedSecret.toByteArray());
-            return new SecretKeySpec(Arrays.copyOf(key, 32), "AES");
-        } catch (NoSuchAlgorithmException e) {
-            System.out.println("Cannot find SHA-256 algorithm" + e);
+    private static final Logger logger = LogManager.getLogger();
+
+    public enum Mode {
+        // legacy mode, no integrity protection
+        CBC("AES/CBC/PKCS5Padding", 16, 16),
+        // authenticated mode, a tampered ciphertext fails to decrypt
+        GCM("AES/GCM/NoPadding", 12, 16);
+
+        private final String transformation;
+        private final int ivLength;
+        // padding block for CBC, authentication tag for GCM
+        private final int maxExpansion;
+        private final ThreadLocal<Cipher> ciphers;
+
+        Mode(String transformation, int ivLength, int maxExpansion) {
+            this.transformation = transformation;
+            this.ivLength = ivLength;
+            this.maxExpansion = maxExpansion;
+            this.ciphers = ThreadLocal.withInitial(this::newCipher);
+        }
+
+        private Cipher newCipher() {
+            try {
+                return Cipher.getInstance(transformation);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot create " + transformation + " cipher", e);
+            }
+        }
+
+        private AlgorithmParameterSpec parameters(byte[] iv) {
+            return this == GCM ? new GCMParameterSpec(maxExpansion * 8, iv) : new IvParameterSpec(iv);
         }
-        return null;
     }
 
-    // Encrypt a message using AES in CBC mode
-    public static String encrypt(String plainText, SecretKey key) {
+    private static final SecureRandom random = new SecureRandom();
+
+    // Derive a 256-bit AES key from a key exchange shared secret, info separates keys used for different purposes
+    public static SecretKey deriveKey(byte[] sharedSecret, String info) {
+        byte[] key = Hkdf.derive(null, sharedSecret, info.getBytes(StandardCharsets.UTF_8), 32);
+        return new SecretKeySpec(key, "AES");
+    }
+
+    // Generate a fresh random 256-bit AES key
+    public static SecretKey generateRandomKey() {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        return new SecretKeySpec(key, "AES");
+    }
+
+    // Upper bound of the encrypt output (IV included) for a plain text of the given length
+    public static int maxEncryptedSize(Mode mode, int plainLength) {
+        return mode.ivLength + plainLength + mode.maxExpansion;
+    }
+
+    // Exact encrypt output (IV included) for a plain text of the given length, CBC pads up to the next full block
+    public static int encryptedSize(Mode mode, int plainLength) {
+        int ciphertextLength = mode == Mode.CBC ? (plainLength / 16 + 1) * 16 : plainLength + mode.maxExpansion;
+        return mode.ivLength + ciphertextLength;
+    }
+
+    public static int ivLength(Mode mode) {
+        return mode.ivLength;
+    }
+
+    // Upper bound of the decrypt output for a cipher text (IV included) of the given length
+    public static int maxDecryptedSize(Mode mode, int encryptedLength) {
+        return Math.max(0, encryptedLength - mode.ivLength);
+    }
+
+    // Encrypts the remaining bytes of src into dst as IV followed by the ciphertext, returns the number
+    // of bytes written or -1 on failure. src and dst may share the same backing array.
+    public static int encrypt(Mode mode, SecretKey key, ByteBuffer src, ByteBuffer dst) {
+        long startNanos = System.nanoTime();
         try {
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            byte[] iv = new byte[16];
-            new SecureRandom().nextBytes(iv);
-            IvParameterSpec ivSpec = new IvParameterSpec(iv);
-
-            cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
-            byte[] encrypted = cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
-
-            // Concatenate IV and encrypted message
-            byte[] encryptedWithIv = new byte[iv.length + encrypted.length];
-            System.arraycopy(iv, 0, encryptedWithIv, 0, iv.length);
-            System.arraycopy(encrypted, 0, encryptedWithIv, iv.length, encrypted.length);
-
-            return Base64.getEncoder().encodeToString(encryptedWithIv);
-        } catch (Exception e) {
-            System.out.println("Cannot encrypt the message" + e);
+            byte[] iv = new byte[mode.ivLength];
+            random.nextBytes(iv);
+
+            Cipher cipher = mode.ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, mode.parameters(iv));
+
+            int start = dst.position();
+            dst.put(iv);
+            cipher.doFinal(src, dst);
+            return dst.position() - start;
+        } catch (GeneralSecurityException e) {
+            logger.error("Cannot encrypt the message", e);
+        } finally {
+            Metrics.AES_ENCRYPT.recordSince(startNanos);
         }
-        return null;
+        return -1;
     }
 
-    // Decrypt a message using AES in CBC mode
-    public static String decrypt(String encryptedText, SecretKey key) {
+    // Decrypts IV and ciphertext from src into dst, returns the number of bytes written
+    // or -1 if the input is malformed or, in GCM mode, was tampered with
+    public static int decrypt(Mode mode, SecretKey key, ByteBuffer src, ByteBuffer dst) {
+        if (src.remaining() < mode.ivLength) return -1;
+        long startNanos = System.nanoTime();
         try {
-            // Separate IV and encrypted message
-            byte[] encryptedWithIv = Base64.getDecoder().decode(encryptedText);
-            byte[] iv = Arrays.copyOfRange(encryptedWithIv, 0, 16);
-            byte[] encrypted = Arrays.copyOfRange(encryptedWithIv, 16, encryptedWithIv.length);
+            byte[] iv = new byte[mode.ivLength];
+            src.get(iv);
 
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            IvParameterSpec ivSpec = new IvParameterSpec(iv);
+            Cipher cipher = mode.ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, mode.parameters(iv));
+            return cipher.doFinal(src, dst);
+        } catch (GeneralSecurityException e) {
+            logger.error("Cannot decrypt the message: {}", e.toString());
+        } finally {
+            Metrics.AES_DECRYPT.recordSince(startNanos);
+        }
+        return -1;
+    }
 
-            cipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
-            byte[] decrypted = cipher.doFinal(encrypted);
+    public static byte[] encrypt(Mode mode, byte[] plainBytes, SecretKey key) {
+        ByteBuffer encrypted = ByteBuffer.allocate(maxEncryptedSize(mode, plainBytes.length));
+        int length = encrypt(mode, key, ByteBuffer.wrap(plainBytes), encrypted);
+        if (length == -1) return null;
+        return length == encrypted.capacity() ? encrypted.array() : Arrays.copyOf(encrypted.array(), length);
+    }
 
-            return new String(decrypted, StandardCharsets.UTF_8);
-        } catch (Exception e) {
-            System.out.println("Cannot decrypt the message" + e);
-        }
-        return null;
+    public static byte[] decrypt(Mode mode, byte[] encryptedWithIv, SecretKey key) {
+        ByteBuffer decrypted = ByteBuffer.allocate(maxDecryptedSize(mode, encryptedWithIv.length));
+        int length = decrypt(mode, key, ByteBuffer.wrap(encryptedWithIv), decrypted);
+        if (length == -1) return null;
+        return length == decrypted.capacity() ? decrypted.array() : Arrays.copyOf(decrypted.array(), length);
+    }
+
+    public static String encrypt(Mode mode, String plainText, SecretKey key) {
+        byte[] encryptedWithIv = encrypt(mode, plainText.getBytes(StandardCharsets.UTF_8), key);
+        return encryptedWithIv == null ? null : Base64.getEncoder().encodeToString(encryptedWithIv);
+    }
+
+    public static String decrypt(Mode mode, String encryptedText, SecretKey key) {
+        byte[] decrypted = decrypt(mode, Base64.getDecoder().decode(encryptedText), key);
+        return decrypted == null ? null : new String(decrypted, StandardCharsets.UTF_8);
+    }
+
+    // Encrypt a message using AES in CBC mode
+    public static String encrypt(String plainText, SecretKey key) {
+        return encrypt(Mode.CBC, plainText, key);
+    }
+
+    // Decrypt a message using AES in CBC mode
+    public static String decrypt(String encryptedText, SecretKey key) {
+        return decrypt(Mode.CBC, encryptedText, key);
     }
 }
@@ -0,0 +1,97 @@
+package com.github.kiiril;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Read buffer, outbound queue and close bookkeeping shared by the transports
+abstract class AbstractLink implements Link {
+    private static final Logger logger = LogManager.getLogger();
+    private static final int INITIAL_READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String remoteIp;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    protected ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    protected volatile LinkHandler handler;
+    protected final OutboundQueue outbound;
+
+    protected AbstractLink(String remoteIp, long maxQueuedBytes) {
+        this.remoteIp = remoteIp;
+        this.outbound = new OutboundQueue(maxQueuedBytes, writable -> {
+            LinkHandler currentHandler = handler;
+            if (currentHandler != null) currentHandler.onWritabilityChanged(writable);
+        });
+    }
+
+    @Override
+    public boolean write(ByteBuffer frame) {
+        return write(frame, false);
+    }
+
+    @Override
+    public boolean writeControl(ByteBuffer frame) {
+        return write(frame, true);
+    }
+
+    private boolean write(ByteBuffer frame, boolean control) {
+        if (!isOpen()) return false;
+        if (!outbound.offer(frame, control)) return false;
+        scheduleFlush();
+        return true;
+    }
+
+    // Makes sure the link's single writer drains the outbound queue
+    protected abstract void scheduleFlush();
+
+    // Hands the buffered bytes to the handler, the codec rejects frames above the limit so growing is bounded
+    protected void deliver() throws ProtocolException {
+        readBuffer.flip();
+        try {
+            handler.onData(readBuffer);
+        } finally {
+            readBuffer.compact();
+        }
+
+        if (!readBuffer.hasRemaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            grown.put(readBuffer);
+            readBuffer = grown;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+
+        logger.info("Closing link to {}", remoteIp);
+        closeChannel();
+        outbound.clear();
+        if (handler != null) handler.onClosed();
+    }
+
+    protected abstract void closeChannel();
+
+    @Override
+    public boolean isWritable() {
+        return outbound.isWritable();
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    @Override
+    public String getRemoteIp() {
+        return remoteIp;
+    }
+}
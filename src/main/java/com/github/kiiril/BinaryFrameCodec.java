@@ -0,0 +1,245 @@
+package com.github.kiiril;
+
+import com.github.kiiril.messages.*;
+import javax.crypto.SecretKey;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Length-prefixed frames: [int length][byte type][int sessionId][payload], length counts everything after itself.
+// The header travels in clear, the payload is raw AES ciphertext once the link key is known.
+// The key establishment payload is [short address length][address][public key], discovery carries
+// [int capacity] and the joined and left peers as [short count]([byte hops][short length][address])*,
+// ping [long timestamp][byte reply][int load] and neighbor [byte kind]. Forward and backward messages carry
+// their onion layers as they are, see OnionCell.
+// Frames come from the BufferPool. A received forward or backward message is a view of its decrypted frame,
+// the frame goes back to the pool once the message is sent on or consumed, any other frame right after decoding.
+// Sent frames go back once the transport has written them.
+class BinaryFrameCodec implements FrameCodec {
+    static final int LENGTH_SIZE = Integer.BYTES;
+    static final int HEADER_SIZE = LENGTH_SIZE + Byte.BYTES + Integer.BYTES;
+    private static final int PING_SIZE = Long.BYTES + Byte.BYTES + Integer.BYTES;
+
+    private final int maxFrameSize;
+    private final AES.Mode cipherMode;
+
+    BinaryFrameCodec(int maxFrameSize, AES.Mode cipherMode) {
+        this.maxFrameSize = maxFrameSize;
+        this.cipherMode = cipherMode;
+    }
+
+    @Override
+    public ByteBuffer encode(Message message, SecretKey key) {
+        int sessionId = 0;
+        // the onion of a data message is encrypted from where it lies, it is never copied into a payload array
+        ByteBuffer payload;
+        switch (message.getType()) {
+            case SYMMETRIC_KEY_ESTABLISHMENT:
+                SymmetricKeyEstablishmentMessage publicKeyMessage = (SymmetricKeyEstablishmentMessage) message;
+                byte[] address = utf8(publicKeyMessage.getAddress());
+                byte[] publicKey = Base64.getDecoder().decode(publicKeyMessage.getBody());
+                payload = ByteBuffer.allocate(Short.BYTES + address.length + publicKey.length)
+                        .putShort((short) address.length).put(address).put(publicKey).flip();
+                break;
+            case SESSION_KEY_ESTABLISHMENT:
+                SessionKeyEstablishmentMessage keyMessage = (SessionKeyEstablishmentMessage) message;
+                sessionId = keyMessage.getSessionId();
+                payload = ByteBuffer.wrap(Base64.getDecoder().decode(keyMessage.getSessionKey()));
+                break;
+            case DISCOVERY:
+                payload = ByteBuffer.wrap(encodeDiscovery((DiscoveryMessage) message));
+                break;
+            case FORWARD_MESSAGE:
+                ForwardMessage forwardMessage = (ForwardMessage) message;
+                sessionId = forwardMessage.getSessionId();
+                payload = forwardMessage.getBody();
+                break;
+            case BACKWARD_MESSAGE:
+                BackwardMessage backwardMessage = (BackwardMessage) message;
+                sessionId = backwardMessage.getSessionId();
+                payload = backwardMessage.getBody();
+                break;
+            case SENDME:
+                sessionId = ((SendmeMessage) message).getSessionId();
+                payload = ByteBuffer.allocate(0);
+                break;
+            case PING:
+                PingMessage pingMessage = (PingMessage) message;
+                payload = ByteBuffer.allocate(PING_SIZE).putLong(pingMessage.getTimestampNanos())
+                        .put((byte) (pingMessage.isReply() ? 1 : 0)).putInt(pingMessage.getLoad()).flip();
+                break;
+            case NEIGHBOR:
+                payload = ByteBuffer.wrap(new byte[] {(byte) ((NeighborMessage) message).getKind().ordinal()});
+                break;
+            default:
+                throw new IllegalArgumentException("Message type cannot be sent over a link: " + message.getType());
+        }
+
+        int maxPayloadSize = key == null ? payload.remaining() : AES.maxEncryptedSize(cipherMode, payload.remaining());
+        if (HEADER_SIZE + maxPayloadSize > maxFrameSize) {
+            throw new IllegalArgumentException("Frame of " + (HEADER_SIZE + maxPayloadSize) + " bytes exceeds the limit of " + maxFrameSize);
+        }
+
+        // the payload is encrypted straight into the frame, the length is filled in afterwards
+        ByteBuffer frame = BufferPool.acquire(HEADER_SIZE + maxPayloadSize);
+        frame.position(LENGTH_SIZE);
+        frame.put(message.getType().getCode()).putInt(sessionId);
+        if (key == null) {
+            frame.put(payload);
+        } else if (AES.encrypt(cipherMode, key, payload, frame) == -1) {
+            BufferPool.release(frame);
+            throw new IllegalStateException("Cannot encrypt the " + message.getType() + " frame");
+        }
+        frame.putInt(0, frame.position() - LENGTH_SIZE).flip();
+        return frame;
+    }
+
+    @Override
+    public ByteBuffer readFrame(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < LENGTH_SIZE) return null;
+
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        if (length < HEADER_SIZE - LENGTH_SIZE || length > maxFrameSize - LENGTH_SIZE) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        if (buffer.remaining() < LENGTH_SIZE + length) return null;
+
+        ByteBuffer frame = BufferPool.acquire(LENGTH_SIZE + length);
+        ByteBuffer content = buffer.duplicate();
+        content.limit(start + LENGTH_SIZE + length);
+        frame.put(content).flip();
+        buffer.position(start + LENGTH_SIZE + length);
+        return frame;
+    }
+
+    @Override
+    public Message decode(ByteBuffer frame, SecretKey key) throws ProtocolException {
+        frame.position(frame.position() + LENGTH_SIZE);
+        MessageType type = MessageType.fromCode(frame.get());
+        int sessionId = frame.getInt();
+        if (type == null) {
+            // a frame that is not decoded goes back to the pool right away
+            BufferPool.release(frame);
+            throw new ProtocolException("Unknown message type in frame");
+        }
+
+        // decrypt in place, the plain text is never longer than the ciphertext
+        ByteBuffer plain = frame.duplicate();
+        if (key != null) {
+            int start = plain.position();
+            int length = AES.decrypt(cipherMode, key, frame, plain);
+            if (length == -1) {
+                BufferPool.release(frame);
+                throw new ProtocolException("Cannot decrypt the frame");
+            }
+            plain.limit(start + length).position(start);
+        }
+
+        if (type == MessageType.FORWARD_MESSAGE) return new ForwardMessage(sessionId, plain, frame);
+        if (type == MessageType.BACKWARD_MESSAGE) return new BackwardMessage(sessionId, plain, frame);
+
+        byte[] payload = new byte[plain.remaining()];
+        plain.get(payload);
+        BufferPool.release(frame);
+        switch (type) {
+            case SYMMETRIC_KEY_ESTABLISHMENT:
+                return decodePublicKey(payload);
+            case SESSION_KEY_ESTABLISHMENT:
+                return new SessionKeyEstablishmentMessage(sessionId, Base64.getEncoder().encodeToString(payload));
+            case DISCOVERY:
+                return decodeDiscovery(payload);
+            case SENDME:
+                return new SendmeMessage(sessionId);
+            case PING:
+                return decodePing(payload);
+            case NEIGHBOR:
+                return decodeNeighbor(payload);
+            default:
+                throw new ProtocolException("Message type cannot be received over a link: " + type);
+        }
+    }
+
+    private static SymmetricKeyEstablishmentMessage decodePublicKey(byte[] payload) throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int addressLength = buffer.remaining() < Short.BYTES ? -1 : Short.toUnsignedInt(buffer.getShort());
+        if (addressLength < 0 || addressLength > buffer.remaining()) {
+            throw new ProtocolException("Malformed key establishment frame");
+        }
+        String address = new String(payload, Short.BYTES, addressLength, StandardCharsets.UTF_8);
+        byte[] publicKey = Arrays.copyOfRange(payload, Short.BYTES + addressLength, payload.length);
+        return new SymmetricKeyEstablishmentMessage(Base64.getEncoder().encodeToString(publicKey), address);
+    }
+
+    private static byte[] encodeDiscovery(DiscoveryMessage message) {
+        int size = Integer.BYTES + 2 * Short.BYTES;
+        for (String address : message.getJoined().keySet()) size += Byte.BYTES + Short.BYTES + utf8(address).length;
+        for (String address : message.getLeft().keySet()) size += Byte.BYTES + Short.BYTES + utf8(address).length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).putInt(message.getCapacity());
+        putPeers(buffer, message.getJoined());
+        putPeers(buffer, message.getLeft());
+        return buffer.array();
+    }
+
+    private static void putPeers(ByteBuffer buffer, Map<String, Integer> peers) {
+        buffer.putShort((short) peers.size());
+        for (Map.Entry<String, Integer> peer : peers.entrySet()) {
+            byte[] address = utf8(peer.getKey());
+            buffer.put((byte) (int) peer.getValue()).putShort((short) address.length).put(address);
+        }
+    }
+
+    private static DiscoveryMessage decodeDiscovery(byte[] payload) throws ProtocolException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            int capacity = buffer.getInt();
+            Map<String, Integer> joined = getPeers(buffer);
+            Map<String, Integer> left = getPeers(buffer);
+            return new DiscoveryMessage(joined, left, capacity);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Malformed discovery frame");
+        }
+    }
+
+    private static Map<String, Integer> getPeers(ByteBuffer buffer) {
+        int count = Short.toUnsignedInt(buffer.getShort());
+        Map<String, Integer> peers = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int hops = buffer.get();
+            byte[] address = new byte[Short.toUnsignedInt(buffer.getShort())];
+            buffer.get(address);
+            peers.put(string(address), hops);
+        }
+        return peers;
+    }
+
+    private static NeighborMessage decodeNeighbor(byte[] payload) throws ProtocolException {
+        NeighborMessage.Kind[] kinds = NeighborMessage.Kind.values();
+        if (payload.length != 1 || payload[0] < 0 || payload[0] >= kinds.length) {
+            throw new ProtocolException("Malformed neighbor frame");
+        }
+        return new NeighborMessage(kinds[payload[0]]);
+    }
+
+    private static PingMessage decodePing(byte[] payload) throws ProtocolException {
+        if (payload.length != PING_SIZE) {
+            throw new ProtocolException("Malformed ping frame");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        return new PingMessage(buffer.getLong(), buffer.get() != 0, buffer.getInt());
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,186 @@
+package com.github.kiiril;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Thread-per-link transport on plain sockets, messages are processed on the link's reader thread
+// and every link has a writer thread that drains its outbound queue
+class BlockingTransport implements Transport {
+    private static final Logger logger = LogManager.getLogger();
+    private static final int MAX_GATHERED_FRAMES = 64;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final long WRITER_POLL_MILLIS = 1000;
+    private static final int HANDSHAKE_THREADS = 2;
+
+    private final ExecutorService linkThreads;
+    // bounded, a burst of accepted links beyond what it holds is refused
+    private final ThreadPoolExecutor handshakeThreads;
+    private final long maxQueuedBytes;
+    private final int connectTimeoutMillis;
+    private volatile ServerSocket serverSocket;
+
+    BlockingTransport(NodeConfig config) {
+        this.maxQueuedBytes = config.getLinkMaxQueuedBytes();
+        this.connectTimeoutMillis = (int) Math.min(config.getHandshakeConnectTimeoutMillis(), Integer.MAX_VALUE);
+        this.linkThreads = Executors.newCachedThreadPool(new NamedThreadFactory(config.getNodeName(), "link"));
+        this.handshakeThreads = new ThreadPoolExecutor(HANDSHAKE_THREADS, HANDSHAKE_THREADS,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, config.getMaxInboundHandshakes())),
+                new NamedThreadFactory(config.getNodeName(), "handshake"));
+    }
+
+    @Override
+    public int bind(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void listen(Consumer<Link> acceptHandler) {
+        linkThreads.submit(() -> {
+            try {
+                while (true) {
+                    Socket requestedConnection = serverSocket.accept();
+                    acceptHandler.accept(new BlockingLink(requestedConnection));
+                }
+            } catch (IOException e) {
+                logger.error("Stopped listening for connections: {}", e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Link> connect(String host, int port) {
+        return CompletableFuture.supplyAsync(() -> {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+                return new BlockingLink(socket);
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
+                }
+                throw new UncheckedIOException(e);
+            }
+        }, linkThreads);
+    }
+
+    @Override
+    public Executor getMessageExecutor() {
+        return Runnable::run;
+    }
+
+    @Override
+    public Executor getHandshakeExecutor() {
+        return handshakeThreads;
+    }
+
+    // every link thread processes its own messages as it reads them
+    @Override
+    public int getQueuedMessages() {
+        return 0;
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            logger.warn("Cannot close the server socket: {}", e.getMessage());
+        }
+        handshakeThreads.shutdownNow();
+        linkThreads.shutdownNow();
+    }
+
+    private class BlockingLink extends AbstractLink {
+        private final Socket socket;
+        private final InputStream input;
+        private final OutputStream output;
+        private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_FRAMES];
+
+        BlockingLink(Socket socket) throws IOException {
+            super(socket.getInetAddress().getHostAddress(), maxQueuedBytes);
+            this.socket = socket;
+            this.input = socket.getInputStream();
+            this.output = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+            linkThreads.submit(this::send);
+        }
+
+        @Override
+        public void start(LinkHandler handler) {
+            this.handler = handler;
+            linkThreads.submit(this::receive);
+        }
+
+        private void receive() {
+            try {
+                int read;
+                while ((read = input.read(readBuffer.array(), readBuffer.position(), readBuffer.remaining())) != -1) {
+                    readBuffer.position(readBuffer.position() + read);
+                    deliver();
+                }
+            } catch (IOException e) {
+                logger.error("Cannot receive the message from {}'s input stream: {}", getRemoteIp(), e.getMessage());
+            }
+            close();
+        }
+
+        // The writer thread picks frames up by itself
+        @Override
+        protected void scheduleFlush() {
+        }
+
+        // Single writer of the link: everything queued since the last write goes out with one flush.
+        // Plain sockets have no channel to gather into, the buffered stream coalesces the frames instead.
+        private void send() {
+            try {
+                while (isOpen()) {
+                    ByteBuffer frame = outbound.poll(WRITER_POLL_MILLIS);
+                    if (frame == null) continue;
+
+                    gathered[0] = frame;
+                    int count = 1 + outbound.drainTo(gathered, 1);
+                    long bytes = 0;
+                    for (int i = 0; i < count; i++) {
+                        ByteBuffer queued = gathered[i];
+                        output.write(queued.array(), queued.arrayOffset() + queued.position(), queued.remaining());
+                        bytes += queued.remaining();
+                        BufferPool.release(queued);
+                        gathered[i] = null;
+                    }
+                    output.flush();
+                    outbound.recordFlush(count, bytes);
+                }
+            } catch (IOException e) {
+                logger.error("Cannot send the message to output stream: {}", e.getMessage());
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        protected void closeChannel() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close the socket of {}: {}", getRemoteIp(), e.getMessage());
+            }
+        }
+    }
+}
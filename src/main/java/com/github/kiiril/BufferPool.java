@@ -0,0 +1,64 @@
+package com.github.kiiril;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Recycles the buffers of link frames and onion layers, so relaying a message does not allocate its payload again
+// at every step. Buffers come in power of two sizes from 4 KiB to 2 MiB and each size keeps up to 16 MiB of free
+// buffers, bigger requests and surplus buffers are left to the garbage collector. A buffer is released once nothing
+// reads or writes it anymore, the ones that never are (dropped messages, closed links) are simply collected.
+final class BufferPool {
+    private static final int MIN_SIZE_SHIFT = 12;
+    private static final int MAX_SIZE_SHIFT = 21;
+    private static final int MAX_FREE_BYTES_PER_SIZE = 16 * 1024 * 1024;
+
+    // free buffers by size class
+    private static final List<ArrayBlockingQueue<ByteBuffer>> free = new ArrayList<>();
+
+    static {
+        for (int i = 0; i <= MAX_SIZE_SHIFT - MIN_SIZE_SHIFT; i++) {
+            free.add(new ArrayBlockingQueue<>(Math.max(1, MAX_FREE_BYTES_PER_SIZE >> (MIN_SIZE_SHIFT + i))));
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    // A buffer with position 0 and limit size, its content is whatever the previous user left
+    static ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass == -1) {
+            Metrics.BUFFER_POOL_MISSES.increment();
+            return ByteBuffer.allocate(size);
+        }
+
+        ByteBuffer buffer = free.get(sizeClass).poll();
+        if (buffer == null) {
+            Metrics.BUFFER_POOL_MISSES.increment();
+            buffer = ByteBuffer.allocate(1 << (MIN_SIZE_SHIFT + sizeClass));
+        } else {
+            Metrics.BUFFER_POOL_HITS.increment();
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    // Takes back a buffer from acquire, null and buffers of other sizes are ignored
+    static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.hasArray() || buffer.arrayOffset() != 0) return;
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass != -1 && capacity == 1 << (MIN_SIZE_SHIFT + sizeClass)) {
+            free.get(sizeClass).offer(buffer);
+        }
+    }
+
+    // Index of the smallest size that holds size bytes, -1 if it is above the largest
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SIZE_SHIFT) return 0;
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SIZE_SHIFT ? -1 : shift - MIN_SIZE_SHIFT;
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.kiiril;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+// Hands the chunks of a stream to callbacks on an executor, one at a time and in order, so a slow consumer never
+// holds up the worker that decrypted them. Once a callback throws the completion fails, later chunks are skipped
+// and further writes fail, which gives up the stream.
+public class CallbackStreamSink implements StreamSink {
+    private final SerialExecutor executor;
+    private final Callbacks callbacks;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private volatile CompletableFuture<Void> written = Util.DONE;
+
+    public CallbackStreamSink(Executor executor, Callbacks callbacks) {
+        this.executor = new SerialExecutor(executor);
+        this.callbacks = callbacks;
+    }
+
+    @Override
+    public void write(byte[] chunk) throws IOException {
+        if (completion.isCompletedExceptionally()) throw new IOException("The consumer of the stream failed");
+        CompletableFuture<Void> chunkTaken = new CompletableFuture<>();
+        written = chunkTaken;
+        executor.execute(() -> {
+            run(() -> callbacks.onChunk(chunk));
+            chunkTaken.complete(null);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> written() {
+        return written;
+    }
+
+    @Override
+    public void close() {
+        executor.execute(() -> {
+            run(callbacks::onClose);
+            completion.complete(null);
+        });
+    }
+
+    @Override
+    public void abort() {
+        executor.execute(() -> {
+            if (completion.isDone()) return;
+            completion.completeExceptionally(new IOException("The stream was aborted"));
+            callbacks.onAbort();
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> completion() {
+        return completion;
+    }
+
+    private void run(Step step) {
+        if (completion.isDone()) return;
+        try {
+            step.run();
+        } catch (IOException | RuntimeException e) {
+            completion.completeExceptionally(e);
+        }
+    }
+
+    public interface Callbacks {
+        void onChunk(byte[] chunk) throws IOException;
+
+        // after the last chunk
+        default void onClose() throws IOException {
+        }
+
+        // instead of onClose if the stream breaks off, not called once a callback failed
+        default void onAbort() {
+        }
+    }
+
+    private interface Step {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.kiiril;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A sender session whose routers and keys are set up once and then carry many requests,
+// every request gets its own stream id so responses can be told apart
+public class Circuit {
+    private final Session session;
+    private final long createdAtMillis = System.currentTimeMillis();
+    private final long maxAgeMillis;
+    private final int maxRequests;
+    private final AtomicInteger openedStreams = new AtomicInteger();
+
+    public Circuit(Session session, long maxAgeMillis, int maxRequests) {
+        this.session = session;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxRequests = maxRequests;
+    }
+
+    // Returns the id of a new stream or -1 once the circuit has carried maxRequests requests
+    public int openStream() {
+        int streamId = openedStreams.incrementAndGet();
+        return streamId <= maxRequests ? streamId : -1;
+    }
+
+    public boolean isUsable() {
+        if (openedStreams.get() >= maxRequests) return false;
+        if (System.currentTimeMillis() - createdAtMillis > maxAgeMillis) return false;
+        return !isBroken();
+    }
+
+    // The link to one of the routers is gone, the circuit cannot carry its streams anymore
+    public boolean isBroken() {
+        for (PeerConnection router : session.getSelectedRouters()) {
+            if (!router.isOpen()) return true;
+        }
+        return false;
+    }
+
+    public PeerConnection getFirstHop() {
+        return session.getSelectedRouters()[0];
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public int getSessionId() {
+        return session.getSessionId();
+    }
+}
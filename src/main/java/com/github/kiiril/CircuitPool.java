@@ -0,0 +1,148 @@
+package com.github.kiiril;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+// Keeps a number of circuits built ahead of time so requests rarely pay for router selection and key setup.
+// Requests are spread over the ready circuits, used up, expired or broken circuits are replaced in the background.
+public class CircuitPool {
+    private static final Logger logger = LogManager.getLogger();
+
+    private final Supplier<Circuit> circuitBuilder;
+    private final Predicate<Circuit> isValid;
+    private final Consumer<Circuit> onBroken;
+    private final int targetSize;
+    private final List<Circuit> readyCircuits = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextCircuit = new AtomicInteger();
+    private final ScheduledExecutorService refiller;
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder builtCircuits = new LongAdder();
+    private final LongAdder droppedCircuits = new LongAdder();
+
+    // circuitBuilder returns null while there are no peers to build a circuit through, onBroken is called for
+    // every dropped circuit that lost a router
+    public CircuitPool(Supplier<Circuit> circuitBuilder, Predicate<Circuit> isValid, Consumer<Circuit> onBroken,
+                       int targetSize, long refillPeriodMillis, String nodeName) {
+        this.circuitBuilder = circuitBuilder;
+        this.isValid = isValid;
+        this.onBroken = onBroken;
+        this.targetSize = targetSize;
+        this.refiller = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(nodeName, "circuit-pool"));
+        refiller.scheduleWithFixedDelay(this::refill, 0, refillPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Returns a ready circuit or builds one on the spot if the pool is empty, null if there are no peers
+    public Circuit acquire() {
+        Circuit[] snapshot = readyCircuits.toArray(new Circuit[0]);
+        for (int attempts = 0; attempts < snapshot.length; attempts++) {
+            Circuit circuit = snapshot[Math.floorMod(nextCircuit.getAndIncrement(), snapshot.length)];
+            if (isUsable(circuit)) {
+                hits.increment();
+                return circuit;
+            }
+            drop(circuit);
+        }
+
+        misses.increment();
+        scheduleRefill();
+        Circuit circuit = build();
+        if (circuit != null) readyCircuits.add(circuit);
+        return circuit;
+    }
+
+    // Circuits through a peer that went away cannot carry requests anymore
+    public void onPeerRemoved(PeerConnection peerConnection) {
+        for (Circuit circuit : readyCircuits) {
+            if (Arrays.asList(circuit.getSession().getSelectedRouters()).contains(peerConnection)) {
+                drop(circuit);
+            }
+        }
+        scheduleRefill();
+    }
+
+    public void scheduleRefill() {
+        // links of the other nodes may still close after this node shut down
+        if (refiller.isShutdown()) return;
+        if (refillScheduled.compareAndSet(false, true)) {
+            refiller.execute(this::refill);
+        }
+    }
+
+    private void refill() {
+        refillScheduled.set(false);
+        try {
+            for (Circuit circuit : readyCircuits) {
+                if (!isUsable(circuit)) drop(circuit);
+            }
+
+            while (readyCircuits.size() < targetSize) {
+                Circuit circuit = build();
+                if (circuit == null) return;
+                readyCircuits.add(circuit);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Cannot refill the circuit pool", e);
+        }
+    }
+
+    private Circuit build() {
+        Circuit circuit = circuitBuilder.get();
+        if (circuit != null) {
+            builtCircuits.increment();
+            logger.info("Built circuit with session id={}", circuit.getSessionId());
+        }
+        return circuit;
+    }
+
+    private boolean isUsable(Circuit circuit) {
+        return circuit.isUsable() && isValid.test(circuit);
+    }
+
+    private void drop(Circuit circuit) {
+        if (readyCircuits.remove(circuit)) {
+            droppedCircuits.increment();
+            logger.info("Dropped circuit with session id={}", circuit.getSessionId());
+            // streams on a used up or expired circuit may still finish, those on a broken one never will
+            if (circuit.isBroken()) onBroken.accept(circuit);
+        }
+    }
+
+    public void shutdown() {
+        refiller.shutdownNow();
+    }
+
+    public int getReadyCircuits() {
+        return readyCircuits.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getBuiltCircuits() {
+        return builtCircuits.sum();
+    }
+
+    public long getDroppedCircuits() {
+        return droppedCircuits.sum();
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.kiiril;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Monotonic count, cheap to update from many threads at once
+public class Counter {
+    private final LongAdder count = new LongAdder();
+
+    public void increment() {
+        count.increment();
+    }
+
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    public long get() {
+        return count.sum();
+    }
+}
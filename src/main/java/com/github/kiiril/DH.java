@@ -3,7 +3,7 @@ package com.github.kiiril;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 
-public class DH {
+public class DH implements KeyExchange {
     // Diffie-Hellman parameters (specified in RFC 3526 2048-bit MODP Group)
     private static final BigInteger p = new BigInteger("FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD1" +
             "29024E088A67CC74020BBEA63B139B22514A08798E3404DD" +
@@ -18,22 +18,24 @@ public class DH {
             "15728E5A8AACAA68FFFFFFFFFFFFFFFF", 16);
     private static final BigInteger g = new BigInteger("2");
 
-    private static BigInteger privateKey;
-    private static BigInteger publicKey;
+    private final BigInteger privateKey;
+    private final BigInteger publicKey;
 
-    public static void generatePublicKey() {
+    public DH() {
         // Generate private key (a random integer)
         privateKey = new BigInteger(2048, new SecureRandom());
         // Generate public key (g^privateKey mod p)
         publicKey = g.modPow(privateKey, p);
     }
 
-    public static BigInteger getPublicKey() {
-        return publicKey;
+    @Override
+    public byte[] getPublicKey() {
+        return publicKey.toByteArray();
     }
 
-    public static BigInteger generateSharedSecret(BigInteger otherPublicKey) {
+    @Override
+    public byte[] generateSharedSecret(byte[] otherPublicKey) {
         // Generate shared secret (otherPublicKey^privateKey mod p)
-        return otherPublicKey.modPow(privateKey, p);
+        return new BigInteger(1, otherPublicKey).modPow(privateKey, p).toByteArray();
     }
 }
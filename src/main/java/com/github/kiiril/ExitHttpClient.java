@@ -0,0 +1,247 @@
+package com.github.kiiril;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Upstream requests of the exit node. Requests run asynchronously on the client's own threads, the response body
+// is handed to the caller in chunks as it arrives, so a slow origin never holds up a link. The JDK client keeps
+// idle keep-alive connections per origin and reuses them, at most maxConcurrentRequests requests run at once.
+public class ExitHttpClient {
+    private static final Logger logger = LogManager.getLogger();
+
+    private final HttpClient client;
+    // the client's threads, it has no way to stop them by itself
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timeouts;
+    private final Duration readTimeout;
+    private final int chunkSize;
+    private final int maxConcurrentRequests;
+    private final int maxPendingRequests;
+
+    private final Queue<ResponseStream> pendingRequests = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicInteger requestsInFlight = new AtomicInteger();
+
+    public ExitHttpClient(NodeConfig config) {
+        this.executor = Executors.newCachedThreadPool(new NamedThreadFactory(config.getNodeName(), "exit-http"));
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(config.getExitConnectTimeoutMillis()))
+                .executor(executor)
+                .build();
+        this.timeouts = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(config.getNodeName(), "exit-http-timeout"));
+        this.readTimeout = Duration.ofMillis(config.getExitReadTimeoutMillis());
+        this.chunkSize = OnionCell.maxResponseChunkSize(config);
+        this.maxConcurrentRequests = config.getExitMaxConcurrentRequests();
+        this.maxPendingRequests = config.getExitMaxPendingRequests();
+    }
+
+    // Makes a GET request, the handler is called from the client's threads and always sees a last chunk. Unless the
+    // origin answered 200 and the whole body was read the last chunk is marked failed, it is empty if nothing came.
+    // The future completes after the last chunk, with true if the response is complete.
+    public CompletableFuture<Boolean> send(String url, Util.ChunkHandler handler) {
+        ResponseStream stream = new ResponseStream(url, handler);
+        if (pendingCount.incrementAndGet() > maxPendingRequests) {
+            pendingCount.decrementAndGet();
+            logger.warn("Too many pending upstream requests, rejecting request to: {}", url);
+            stream.finish();
+            return stream.completed;
+        }
+        pendingRequests.add(stream);
+        startPendingRequests();
+        return stream.completed;
+    }
+
+    private void startPendingRequests() {
+        while (!pendingRequests.isEmpty()) {
+            int inFlight = requestsInFlight.get();
+            if (inFlight >= maxConcurrentRequests) return;
+            if (!requestsInFlight.compareAndSet(inFlight, inFlight + 1)) continue;
+
+            ResponseStream stream = pendingRequests.poll();
+            if (stream == null) {
+                requestsInFlight.decrementAndGet();
+                continue;
+            }
+            pendingCount.decrementAndGet();
+            stream.start();
+        }
+    }
+
+    public void shutdown() {
+        timeouts.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    public int getRequestsInFlight() {
+        return requestsInFlight.get();
+    }
+
+    public int getPendingRequests() {
+        return pendingCount.get();
+    }
+
+    // Cuts the response body into chunks of chunkSize bytes as the client delivers it
+    private class ResponseStream implements Flow.Subscriber<List<ByteBuffer>> {
+        private final String url;
+        private final Util.ChunkHandler handler;
+        private final CompletableFuture<Boolean> completed = new CompletableFuture<>();
+        private final ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+        private int sequence;
+        private boolean finished;
+        private boolean bodyComplete;
+        private volatile boolean started;
+        // set on the client's thread, the timeout check cancels it from its own
+        private volatile Flow.Subscription subscription;
+        private ScheduledFuture<?> readTimeoutCheck;
+        private volatile long lastReadNanos;
+        private long startNanos;
+        private volatile boolean waitingForCircuit;
+
+        ResponseStream(String url, Util.ChunkHandler handler) {
+            this.url = url;
+            this.handler = handler;
+        }
+
+        void start() {
+            logger.debug("Making request to: {}", url);
+            started = true;
+            startNanos = System.nanoTime();
+            Metrics.EXIT_REQUESTS.increment();
+            HttpRequest request;
+            try {
+                request = HttpRequest.newBuilder(URI.create(url)).timeout(readTimeout).GET().build();
+            } catch (IllegalArgumentException e) {
+                logger.warn("Cannot create request from string: {} (error={})", url, e.getMessage());
+                finish();
+                return;
+            }
+
+            synchronized (this) {
+                lastReadNanos = System.nanoTime();
+                // the request timeout only covers the wait for the headers, a stalled body is cut off here
+                readTimeoutCheck = timeouts.scheduleWithFixedDelay(this::checkReadTimeout,
+                        readTimeout.toMillis(), readTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            }
+
+            client.sendAsync(request, this::bodySubscriber).whenComplete((response, e) -> {
+                if (e != null) logger.warn("Cannot read response from URL: {} (error={})", url, e.toString());
+                finish();
+            });
+        }
+
+        private HttpResponse.BodySubscriber<Void> bodySubscriber(HttpResponse.ResponseInfo responseInfo) {
+            Metrics.EXIT_ORIGIN.recordSince(startNanos);
+            if (responseInfo.statusCode() != 200) {
+                logger.warn("Cannot get response from URL: {} (status={})", url, responseInfo.statusCode());
+                return HttpResponse.BodySubscribers.discarding();
+            }
+            return HttpResponse.BodySubscribers.fromSubscriber(this);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        // The body is only read on once all chunks cut from these buffers are sent, a circuit out of
+        // flow control credits thereby holds back the origin instead of queueing the response
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            lastReadNanos = System.nanoTime();
+            List<CompletableFuture<Void>> sent = new ArrayList<>();
+            synchronized (this) {
+                if (finished) return;
+                for (ByteBuffer buffer : buffers) {
+                    while (buffer.hasRemaining()) {
+                        int length = Math.min(buffer.remaining(), chunk.remaining());
+                        ByteBuffer part = buffer.duplicate();
+                        part.limit(part.position() + length);
+                        chunk.put(part);
+                        buffer.position(buffer.position() + length);
+                        if (!chunk.hasRemaining()) {
+                            CompletableFuture<Void> chunkSent = emit(false, false);
+                            if (!chunkSent.isDone() || chunkSent.isCompletedExceptionally()) sent.add(chunkSent);
+                        }
+                    }
+                }
+            }
+            if (sent.isEmpty()) {
+                subscription.request(1);
+                return;
+            }
+
+            waitingForCircuit = true;
+            CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0])).whenComplete((result, e) -> {
+                waitingForCircuit = false;
+                lastReadNanos = System.nanoTime();
+                if (e == null) {
+                    subscription.request(1);
+                    return;
+                }
+                logger.warn("Cannot send the response from URL: {} (error={})", url, e.getMessage());
+                subscription.cancel();
+                finish();
+            });
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            logger.warn("Response body from URL: {} broke off (error={})", url, throwable.toString());
+            finish();
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                bodyComplete = !finished;
+            }
+            finish();
+        }
+
+        private void checkReadTimeout() {
+            if (waitingForCircuit || System.nanoTime() - lastReadNanos < readTimeout.toNanos()) return;
+            logger.warn("Read from URL: {} timed out after {} ms", url, readTimeout.toMillis());
+            if (subscription != null) subscription.cancel();
+            finish();
+        }
+
+        void finish() {
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+                emit(true, !bodyComplete);
+                if (readTimeoutCheck != null) readTimeoutCheck.cancel(false);
+            }
+            if (started && !bodyComplete) Metrics.EXIT_FAILURES.increment();
+            completed.complete(bodyComplete);
+
+            // the slot is handed to the next waiting request
+            if (started) {
+                requestsInFlight.decrementAndGet();
+                startPendingRequests();
+            }
+        }
+
+        private CompletableFuture<Void> emit(boolean last, boolean failed) {
+            chunk.flip();
+            byte[] bytes = new byte[chunk.remaining()];
+            chunk.get(bytes);
+            chunk.clear();
+            return handler.onChunk(bytes, sequence++, last, failed);
+        }
+    }
+}
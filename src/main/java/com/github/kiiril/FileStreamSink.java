@@ -0,0 +1,141 @@
+package com.github.kiiril;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+// Appends every chunk to a file as it arrives, so a response is never held in memory as a whole. The writes run
+// through a FileChannel on an executor, one at a time and in order, so disk latency never holds up the worker that
+// decrypted a chunk. With mapped set the file is written through memory mapped windows instead of write calls, which
+// suits large bodies, and cut to its real length on close. The file is created with the first chunk, or on close for
+// an empty stream, and deleted again if the stream breaks off.
+public class FileStreamSink implements StreamSink {
+    private static final int MAP_WINDOW_SIZE = 8 * 1024 * 1024;
+    // shared by the sinks that are not given an executor
+    private static final Executor WRITERS = Executors.newCachedThreadPool(new NamedThreadFactory("file-sink"));
+
+    private final Path path;
+    private final boolean mapped;
+    private final SerialExecutor executor;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private volatile CompletableFuture<Void> written = Util.DONE;
+    // touched by the executor only
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long size;
+
+    public FileStreamSink(Path path) {
+        this(path, false);
+    }
+
+    public FileStreamSink(Path path, boolean mapped) {
+        this(path, mapped, WRITERS);
+    }
+
+    public FileStreamSink(Path path, boolean mapped, Executor executor) {
+        this.path = path;
+        this.mapped = mapped;
+        this.executor = new SerialExecutor(executor);
+    }
+
+    @Override
+    public void write(byte[] chunk) throws IOException {
+        if (completion.isCompletedExceptionally()) throw new IOException("Cannot write to " + path);
+        CompletableFuture<Void> chunkWritten = new CompletableFuture<>();
+        written = chunkWritten;
+        executor.execute(() -> {
+            run(() -> append(ByteBuffer.wrap(chunk)));
+            // after a failure too, the next write gives up the stream
+            chunkWritten.complete(null);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> written() {
+        return written;
+    }
+
+    @Override
+    public void close() {
+        executor.execute(() -> run(() -> {
+            open();
+            window = null;
+            if (mapped) channel.truncate(size);
+            channel.close();
+            completion.complete(null);
+        }));
+    }
+
+    @Override
+    public void abort() {
+        executor.execute(() -> {
+            if (completion.isDone() && !completion.isCompletedExceptionally()) return;
+            try {
+                if (channel != null) channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // the stream is lost anyway
+            }
+            completion.completeExceptionally(new IOException("The stream to " + path + " was aborted"));
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> completion() {
+        return completion;
+    }
+
+    private void append(ByteBuffer chunk) throws IOException {
+        open();
+        if (!mapped) {
+            while (chunk.hasRemaining()) {
+                size += channel.write(chunk);
+            }
+            return;
+        }
+
+        while (chunk.hasRemaining()) {
+            if (window == null || !window.hasRemaining()) {
+                // mapping past the end grows the file, close cuts it back
+                window = channel.map(FileChannel.MapMode.READ_WRITE, size, MAP_WINDOW_SIZE);
+            }
+            int length = Math.min(chunk.remaining(), window.remaining());
+            window.put(chunk.duplicate().limit(chunk.position() + length));
+            chunk.position(chunk.position() + length);
+            size += length;
+        }
+    }
+
+    private void open() throws IOException {
+        if (channel != null) return;
+        channel = mapped
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    // After a failure nothing is written anymore
+    private void run(Step step) {
+        if (completion.isDone()) return;
+        try {
+            step.run();
+        } catch (IOException | RuntimeException e) {
+            completion.completeExceptionally(e);
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException closeException) {
+                e.addSuppressed(closeException);
+            }
+        }
+    }
+
+    private interface Step {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,219 @@
+package com.github.kiiril;
+
+import com.github.kiiril.messages.Message;
+import com.github.kiiril.messages.SendmeMessage;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+// Window based flow control of one link, similar to Tor's SENDME cells. Every data message needs a credit of its
+// circuit's window and one of the link's window, a circuit out of credits queues its messages here. The receiver
+// gives credits back with SENDME messages flowing the other way: link credits once it has processed linkIncrement
+// messages, circuit credits once it has consumed circuitIncrement messages of the circuit, that is forwarded them
+// to the next hop or delivered them locally. A stalled hop thereby stops the hops before it instead of letting data
+// pile up in their buffers.
+class FlowControl {
+    private static final int LINK = 0;
+
+    private final int circuitWindow;
+    private final int circuitIncrement;
+    private final int linkWindow;
+    private final int linkIncrement;
+    // writes a message to the link right away, false if the link dropped it
+    private final Predicate<Message> writer;
+
+    private int linkCredits;
+    private int linkReceived;
+    private final Map<Integer, Window> windows = new HashMap<>();
+    // circuits with queued messages in the order they are served
+    private final Set<Window> waiting = new LinkedHashSet<>();
+    private boolean closed;
+
+    private final LongAdder blockedMessages = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+
+    FlowControl(NodeConfig config, Predicate<Message> writer) {
+        this.circuitWindow = config.getCircuitWindow();
+        this.circuitIncrement = config.getCircuitSendmeIncrement();
+        this.linkWindow = config.getLinkWindow();
+        this.linkIncrement = config.getLinkSendmeIncrement();
+        this.writer = writer;
+        this.linkCredits = linkWindow;
+    }
+
+    // Completes once the message is handed to the link, fails if the link drops it or closes before that
+    CompletableFuture<Void> send(int sessionId, Message message) {
+        Pending pending = new Pending(message);
+        List<Pending> settled = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                settled.add(pending);
+            } else {
+                Window window = window(sessionId);
+                window.queue.add(pending);
+                waiting.add(window);
+                drain(settled);
+                if (!pending.done) {
+                    pending.blocked = true;
+                    blockedMessages.increment();
+                }
+            }
+        }
+        settle(settled);
+        return pending.future;
+    }
+
+    // A SENDME from the other side, sessionId 0 gives back link credits
+    void onSendme(int sessionId) {
+        List<Pending> settled = new ArrayList<>();
+        synchronized (this) {
+            // credits never exceed the window, whatever the other side sends
+            if (sessionId == LINK) {
+                linkCredits = Math.min(linkCredits + linkIncrement, linkWindow);
+            } else {
+                Window window = windows.get(sessionId);
+                if (window == null) return;
+                window.credits = Math.min(window.credits + circuitIncrement, circuitWindow);
+            }
+            drain(settled);
+        }
+        settle(settled);
+    }
+
+    // A data message of the other side was processed, returns the SENDME to send back if one is due
+    synchronized Message onReceived() {
+        if (++linkReceived < linkIncrement) return null;
+        linkReceived = 0;
+        return new SendmeMessage(LINK);
+    }
+
+    // A data message of a known circuit arrived, its window is kept until the circuit is removed
+    synchronized void open(int sessionId) {
+        if (!closed) window(sessionId);
+    }
+
+    // A data message of the circuit was forwarded or delivered, returns the SENDME to send back if one is due.
+    // A circuit removed in the meantime has no window anymore and gets none back
+    synchronized Message onConsumed(int sessionId) {
+        Window window = windows.get(sessionId);
+        if (window == null) return null;
+        if (++window.consumed < circuitIncrement) return null;
+        window.consumed = 0;
+        return new SendmeMessage(sessionId);
+    }
+
+    void remove(int sessionId) {
+        List<Pending> settled = new ArrayList<>();
+        synchronized (this) {
+            Window window = windows.remove(sessionId);
+            if (window == null) return;
+            waiting.remove(window);
+            fail(window, settled);
+        }
+        settle(settled);
+    }
+
+    void close() {
+        List<Pending> settled = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Window window : windows.values()) {
+                fail(window, settled);
+            }
+            windows.clear();
+            waiting.clear();
+        }
+        settle(settled);
+    }
+
+    private Window window(int sessionId) {
+        return windows.computeIfAbsent(sessionId, id -> new Window());
+    }
+
+    // Sends queued messages while there are credits, one message per circuit in turn so circuits share the link
+    private void drain(List<Pending> settled) {
+        boolean progress = true;
+        while (progress && linkCredits > 0 && !waiting.isEmpty()) {
+            progress = false;
+            Iterator<Window> circuits = waiting.iterator();
+            while (circuits.hasNext() && linkCredits > 0) {
+                Window window = circuits.next();
+                if (window.credits > 0) {
+                    Pending pending = window.queue.poll();
+                    pending.sent = writer.test(pending.message);
+                    // a dropped message never reaches the other side, so no SENDME would give its credits back
+                    if (pending.sent) {
+                        window.credits--;
+                        linkCredits--;
+                    }
+                    pending.done = true;
+                    settled.add(pending);
+                    progress = true;
+                }
+                if (window.queue.isEmpty()) circuits.remove();
+            }
+        }
+    }
+
+    private void fail(Window window, List<Pending> settled) {
+        Pending pending;
+        while ((pending = window.queue.poll()) != null) {
+            pending.done = true;
+            settled.add(pending);
+        }
+    }
+
+    // Completes futures outside the lock, their callbacks may send again
+    private void settle(List<Pending> settled) {
+        long now = System.nanoTime();
+        for (Pending pending : settled) {
+            if (pending.sent) {
+                if (pending.blocked) {
+                    blockedNanos.add(now - pending.queuedAtNanos);
+                    Metrics.FLOW_BLOCKED.record(now - pending.queuedAtNanos);
+                }
+                pending.future.complete(null);
+            } else {
+                pending.future.completeExceptionally(new IllegalStateException("Message was dropped by the link"));
+            }
+        }
+    }
+
+    long getBlockedMessages() {
+        return blockedMessages.sum();
+    }
+
+    long getBlockedNanos() {
+        return blockedNanos.sum();
+    }
+
+    synchronized int getQueuedMessages() {
+        int queued = 0;
+        for (Window window : waiting) {
+            queued += window.queue.size();
+        }
+        return queued;
+    }
+
+    private class Window {
+        private int credits = circuitWindow;
+        // data messages of the other side consumed since the last SENDME
+        private int consumed;
+        private final Queue<Pending> queue = new ArrayDeque<>();
+    }
+
+    private static class Pending {
+        private final Message message;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final long queuedAtNanos = System.nanoTime();
+        private boolean done;
+        private boolean sent;
+        // had to wait for credits
+        private boolean blocked;
+
+        Pending(Message message) {
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.github.kiiril;
+
+import com.github.kiiril.messages.Message;
+import javax.crypto.SecretKey;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+// Turns messages into link frames and back. A null key means the frame is sent in clear (key establishment).
+public interface FrameCodec {
+    ByteBuffer encode(Message message, SecretKey key);
+
+    // Cuts one complete frame off the buffer (in read mode) and advances its position past it,
+    // returns null and leaves the buffer untouched if the frame is not complete yet
+    ByteBuffer readFrame(ByteBuffer buffer) throws ProtocolException;
+
+    // Decodes a frame returned by readFrame
+    Message decode(ByteBuffer frame, SecretKey key) throws ProtocolException;
+
+    static FrameCodec create(NodeConfig config) {
+        switch (config.getWireFormat()) {
+            case JSON:
+                return new JsonFrameCodec(config.getMaxFrameSize(), config.getCipherMode());
+            case BINARY:
+                return new BinaryFrameCodec(config.getMaxFrameSize(), config.getCipherMode());
+            default:
+                throw new IllegalArgumentException("Unknown wire format: " + config.getWireFormat());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.kiiril;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency distribution in power of two buckets from about 1 microsecond to 17 seconds. Recording is a
+// bucket lookup and two adds without locks or allocation, precise enough to tell 1 ms apart from 2 ms.
+public class Histogram {
+    private static final int FIRST_BUCKET_SHIFT = 10;
+    private static final int BUCKETS = 25;
+
+    // the last bucket takes everything above the largest bound
+    private final LongAdder[] counts = new LongAdder[BUCKETS + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos >> FIRST_BUCKET_SHIFT);
+        counts[Math.min(bucket, BUCKETS)].increment();
+        sumNanos.add(nanos);
+    }
+
+    // Records the time passed since a System.nanoTime() taken before the measured work
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    // Upper bound of the bucket holding the given quantile, 0 if nothing was recorded yet
+    public long getQuantileNanos(double quantile) {
+        long[] snapshot = getBucketCounts();
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return getBucketBoundNanos(i);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    long[] getBucketCounts() {
+        long[] snapshot = new long[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+        }
+        return snapshot;
+    }
+
+    // Inclusive upper bound of a bucket, every bucket but the last one has one
+    static long getBucketBoundNanos(int bucket) {
+        return (1L << (FIRST_BUCKET_SHIFT + bucket)) - 1;
+    }
+
+    static int getBucketCount() {
+        return BUCKETS;
+    }
+}
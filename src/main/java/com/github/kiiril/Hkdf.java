@@ -0,0 +1,48 @@
+package com.github.kiiril;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+// HMAC-based key derivation (RFC 5869) with SHA-256
+class Hkdf {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int HASH_LENGTH = 32;
+
+    static byte[] derive(byte[] salt, byte[] inputKeyMaterial, byte[] info, int length) {
+        return expand(extract(salt, inputKeyMaterial), info, length);
+    }
+
+    static byte[] extract(byte[] salt, byte[] inputKeyMaterial) {
+        byte[] key = salt == null || salt.length == 0 ? new byte[HASH_LENGTH] : salt;
+        return mac(key).doFinal(inputKeyMaterial);
+    }
+
+    static byte[] expand(byte[] pseudoRandomKey, byte[] info, int length) {
+        if (length > 255 * HASH_LENGTH) {
+            throw new IllegalArgumentException("Cannot derive more than " + 255 * HASH_LENGTH + " bytes");
+        }
+
+        Mac mac = mac(pseudoRandomKey);
+        byte[] output = new byte[length];
+        byte[] block = new byte[0];
+        for (int offset = 0, counter = 1; offset < length; offset += HASH_LENGTH, counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            System.arraycopy(block, 0, output, offset, Math.min(HASH_LENGTH, length - offset));
+        }
+        return output;
+    }
+
+    private static Mac mac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot create " + ALGORITHM, e);
+        }
+    }
+}
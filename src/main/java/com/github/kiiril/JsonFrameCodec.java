@@ -0,0 +1,70 @@
+package com.github.kiiril;
+
+import com.github.kiiril.messages.Message;
+import javax.crypto.SecretKey;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Legacy format: one JSON message per line, Base64 AES ciphertext once the link key is known
+class JsonFrameCodec implements FrameCodec {
+    private static final byte NEW_LINE = '\n';
+
+    private final int maxFrameSize;
+    private final AES.Mode cipherMode;
+
+    JsonFrameCodec(int maxFrameSize, AES.Mode cipherMode) {
+        this.maxFrameSize = maxFrameSize;
+        this.cipherMode = cipherMode;
+    }
+
+    @Override
+    public ByteBuffer encode(Message message, SecretKey key) {
+        String json = Util.messageToJson(message);
+        String line = key == null ? json : AES.encrypt(cipherMode, json, key);
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxFrameSize) {
+            throw new IllegalArgumentException("Frame of " + bytes.length + " bytes exceeds the limit of " + maxFrameSize);
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(bytes.length + 1);
+        frame.put(bytes).put(NEW_LINE).flip();
+        return frame;
+    }
+
+    @Override
+    public ByteBuffer readFrame(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        int end = -1;
+        for (int i = start; i < buffer.limit(); i++) {
+            if (buffer.get(i) == NEW_LINE) {
+                end = i;
+                break;
+            }
+        }
+
+        if (end == -1) {
+            if (buffer.remaining() > maxFrameSize) {
+                throw new ProtocolException("Frame exceeds the limit of " + maxFrameSize + " bytes");
+            }
+            return null;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(end - start);
+        ByteBuffer line = buffer.duplicate();
+        line.limit(end);
+        frame.put(line).flip();
+        buffer.position(end + 1); // skip the line separator
+        return frame;
+    }
+
+    @Override
+    public Message decode(ByteBuffer frame, SecretKey key) throws ProtocolException {
+        String line = StandardCharsets.UTF_8.decode(frame).toString();
+        String json = key == null ? line : AES.decrypt(cipherMode, line, key);
+        if (json == null) {
+            throw new ProtocolException("Cannot decrypt the frame");
+        }
+        return Util.jsonToMessage(json);
+    }
+}
@@ -0,0 +1,27 @@
+package com.github.kiiril;
+
+// Key agreement used to derive the symmetric key of a link, every node has one long-lived key pair
+public interface KeyExchange {
+    enum Algorithm {
+        // 2048-bit MODP group from RFC 3526, pure BigInteger arithmetic
+        MODP,
+        // Curve25519 through the JDK's XDH provider
+        X25519
+    }
+
+    byte[] getPublicKey();
+
+    // Raw shared secret, feed it through AES.deriveKey before using it as a key
+    byte[] generateSharedSecret(byte[] otherPublicKey);
+
+    static KeyExchange create(Algorithm algorithm) {
+        switch (algorithm) {
+            case MODP:
+                return new DH();
+            case X25519:
+                return new X25519();
+            default:
+                throw new IllegalArgumentException("Unknown key exchange algorithm: " + algorithm);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.github.kiiril;
+
+import java.nio.ByteBuffer;
+
+// Byte level connection to a peer created by a Transport
+public interface Link {
+    // Starts delivering received bytes to the handler
+    void start(LinkHandler handler);
+
+    // Queues a complete frame for the link's writer and never blocks on the network,
+    // returns false if the frame was dropped because the link is closed or its outbound queue is full
+    boolean write(ByteBuffer frame);
+
+    // Like write, but a full outbound queue takes the frame anyway. Meant for small control frames such as SENDMEs,
+    // dropping one would leave the peer waiting for credits that never come
+    boolean writeControl(ByteBuffer frame);
+
+    // False while the outbound queue is above its high watermark
+    boolean isWritable();
+
+    OutboundQueue getOutboundQueue();
+
+    void close();
+
+    boolean isOpen();
+
+    String getRemoteIp();
+}
@@ -0,0 +1,17 @@
+package com.github.kiiril;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+public interface LinkHandler {
+    // Called on the transport thread with the received bytes in read mode,
+    // complete frames have to be consumed, a partial frame is kept for the next call
+    void onData(ByteBuffer buffer) throws ProtocolException;
+
+    void onClosed();
+
+    // Called on the writer's thread when the outbound queue crosses its high or low watermark,
+    // senders should hold back while the link is not writable
+    default void onWritabilityChanged(boolean writable) {
+    }
+}
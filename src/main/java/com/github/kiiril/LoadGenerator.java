@@ -0,0 +1,202 @@
+package com.github.kiiril;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Drives a simulated network at a fixed request rate against a local stub origin and reports throughput,
+// end-to-end latency percentiles and per-node CPU and allocations. Requests are sent open loop: latency is
+// measured from the moment a request was due, so a stalled network shows up in the percentiles instead of
+// slowing the generator down.
+//
+// With load.viaProxy every node serves its HTTP proxy on port basePort + nodes + i and requests go through the
+// proxies instead of the client API, end to end over HTTP.
+//
+// Run with: java -cp target/classes:target/dependency/* -Dload.nodes=5 -Dload.rate=100 com.github.kiiril.LoadGenerator
+public class LoadGenerator {
+    private static final int NODES = Integer.getInteger("load.nodes", 5);
+    private static final int BASE_PORT = Integer.getInteger("load.basePort", 19_000);
+    private static final int RATE = Integer.getInteger("load.rate", 50);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 5);
+    private static final int DURATION_SECONDS = Integer.getInteger("load.durationSeconds", 30);
+    private static final int RESPONSE_BYTES = Integer.getInteger("load.responseBytes", 16 * 1024);
+    private static final long ORIGIN_DELAY_MILLIS = Long.getLong("load.originDelayMillis", 0L);
+    private static final long TIMEOUT_MILLIS = Long.getLong("load.timeoutMillis", 30_000L);
+    private static final boolean VIA_PROXY = Boolean.getBoolean("load.viaProxy");
+    private static final long READY_TIMEOUT_MILLIS = 60_000;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    // latencies of the measured requests in nanoseconds, one slot per request sent
+    private final long[] latencies = new long[RATE * DURATION_SECONDS];
+    private final AtomicLong recordedLatencies = new AtomicLong();
+    // one per node, talking to its proxy, empty unless load.viaProxy is set
+    private final List<HttpClient> proxyClients = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        try {
+            new LoadGenerator().run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        // links of stopped nodes may leave non-daemon threads behind
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        HttpServer origin = startOrigin();
+        String url = "http://127.0.0.1:" + origin.getAddress().getPort() + "/";
+
+        System.out.printf("Starting %d nodes on ports %d-%d%n", NODES, BASE_PORT, BASE_PORT + NODES - 1);
+        AtomicInteger nextProxyPort = new AtomicInteger(BASE_PORT + NODES);
+        Simulation simulation = new Simulation(NODES, BASE_PORT,
+                config -> VIA_PROXY ? config.setProxyPort(nextProxyPort.getAndIncrement()) : config);
+        try {
+            simulation.awaitReady(READY_TIMEOUT_MILLIS);
+            if (VIA_PROXY) {
+                System.out.printf("Sending through the HTTP proxies on ports %d-%d%n", BASE_PORT + NODES, BASE_PORT + 2 * NODES - 1);
+                for (PeerConnectionManager node : simulation.getNodes()) {
+                    InetSocketAddress proxy = new InetSocketAddress(InetAddress.getLoopbackAddress(), node.getConfig().getProxyPort());
+                    proxyClients.add(HttpClient.newBuilder().proxy(ProxySelector.of(proxy)).build());
+                }
+            }
+            System.out.printf("Network is ready, %d s warmup then %d s at %d requests/s of %d bytes%n",
+                    WARMUP_SECONDS, DURATION_SECONDS, RATE, RESPONSE_BYTES);
+
+            drive(simulation, url, WARMUP_SECONDS, false);
+            Map<String, Long> cpuBefore = simulation.getCpuNanos();
+            Map<String, Long> allocatedBefore = simulation.getAllocatedBytes();
+            long start = System.nanoTime();
+            long peakHeap = drive(simulation, url, DURATION_SECONDS, true);
+            long elapsedNanos = System.nanoTime() - start;
+
+            report(simulation, elapsedNanos, cpuBefore, allocatedBefore, peakHeap);
+        } finally {
+            simulation.shutdown();
+            origin.stop(0);
+        }
+    }
+
+    // Serves RESPONSE_BYTES of random data for any path
+    private static HttpServer startOrigin() throws IOException {
+        byte[] body = new byte[RESPONSE_BYTES];
+        ThreadLocalRandom.current().nextBytes(body);
+        HttpServer origin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        origin.createContext("/", exchange -> {
+            try {
+                if (ORIGIN_DELAY_MILLIS > 0) Thread.sleep(ORIGIN_DELAY_MILLIS);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        origin.setExecutor(Executors.newCachedThreadPool(new NamedThreadFactory("origin")));
+        origin.start();
+        return origin;
+    }
+
+    // Sends RATE requests per second for the given time, spread round robin over the nodes, and waits for
+    // the last of them. Returns the peak heap usage seen meanwhile.
+    private long drive(Simulation simulation, String url, int seconds, boolean measured) throws InterruptedException {
+        int requests = RATE * seconds;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / RATE;
+        CountDownLatch done = new CountDownLatch(requests);
+        RequestOptions options = new RequestOptions().setTimeoutMillis(TIMEOUT_MILLIS);
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long peakHeap = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            long dueNanos = start + i * intervalNanos;
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+            if (i % RATE == 0) peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+
+            PeerConnectionManager node = simulation.getNodes().get(i % NODES);
+            CompletableFuture<byte[]> response = VIA_PROXY
+                    ? sendViaProxy(proxyClients.get(i % NODES), url)
+                    : node.getClient().send(url, options).thenApply(Response::getBody);
+            response.whenComplete((body, e) -> {
+                if (measured) record(dueNanos, body, e);
+                done.countDown();
+            });
+        }
+
+        done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        return peakHeap;
+    }
+
+    // Anything but a 200 counts as a failure
+    private static CompletableFuture<byte[]> sendViaProxy(HttpClient proxyClient, String url) {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofMillis(TIMEOUT_MILLIS)).build();
+        return proxyClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> response.statusCode() == 200 ? response.body() : new byte[0]);
+    }
+
+    private void record(long dueNanos, byte[] body, Throwable e) {
+        if (e != null || body.length != RESPONSE_BYTES) {
+            failed.increment();
+            return;
+        }
+        completed.increment();
+        responseBytes.add(body.length);
+        long slot = recordedLatencies.getAndIncrement();
+        if (slot < latencies.length) latencies[(int) slot] = System.nanoTime() - dueNanos;
+    }
+
+    private void report(Simulation simulation, long elapsedNanos, Map<String, Long> cpuBefore,
+                        Map<String, Long> allocatedBefore, long peakHeap) {
+        double seconds = elapsedNanos / 1e9;
+        long[] sorted = Arrays.copyOf(latencies, (int) Math.min(recordedLatencies.get(), latencies.length));
+        Arrays.sort(sorted);
+
+        System.out.println();
+        System.out.printf("Requests:   %d completed, %d failed%n", completed.sum(), failed.sum());
+        System.out.printf("Throughput: %.1f requests/s, %.2f MB/s of response bodies%n",
+                completed.sum() / seconds, responseBytes.sum() / seconds / 1e6);
+        System.out.printf("Latency:    p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms%n",
+                millis(sorted, 0.5), millis(sorted, 0.99), millis(sorted, 0.999), millis(sorted, 1.0));
+        System.out.printf("Heap:       peak %.1f MB used by all nodes together%n", peakHeap / 1e6);
+
+        Map<String, Long> cpuAfter = simulation.getCpuNanos();
+        Map<String, Long> allocatedAfter = simulation.getAllocatedBytes();
+        System.out.println();
+        System.out.printf("%-8s %12s %10s %16s%n", "Node", "CPU seconds", "CPU %", "Allocated MB/s");
+        for (String node : cpuAfter.keySet()) {
+            double cpuSeconds = (cpuAfter.get(node) - cpuBefore.getOrDefault(node, 0L)) / 1e9;
+            double allocated = (allocatedAfter.get(node) - allocatedBefore.getOrDefault(node, 0L)) / 1e6;
+            System.out.printf("%-8s %12.2f %9.1f%% %16.1f%n", node, cpuSeconds, cpuSeconds / seconds * 100, allocated / seconds);
+        }
+    }
+
+    private static double millis(long[] sorted, double quantile) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+}
@@ -2,8 +2,8 @@ package com.github.kiiril;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
 
 public class Main {
     static {
@@ -16,8 +16,9 @@ public class Main {
     }
     private static final Logger logger = LogManager.getLogger();
 
-    public static void main(String[] args) throws UnknownHostException {
+    public static void main(String[] args) throws IOException {
         logger.info("Application has been started...");
-        PeerConnectionManager peerConnectionManager = new PeerConnectionManager();
+        PeerConnectionManager peerConnectionManager = new PeerConnectionManager(NodeConfig.fromSystemProperties());
+        peerConnectionManager.start();
     }
 }
@@ -0,0 +1,364 @@
+package com.github.kiiril;
+
+import com.github.kiiril.messages.DiscoveryMessage;
+import com.github.kiiril.messages.NeighborMessage;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Partial view of the network in the style of HyParView. A node keeps links to a small active view of peers,
+// at most activeViewSize, and remembers a bounded passive view of peers it knows without a link. Joins travel a few
+// random hops from the node they came in through, leaves are passed on by every node that knew the peer and
+// views are mixed by periodic shuffles, so a change costs a bounded number of messages whatever the size of the
+// network. Changes are batched per link and sent as one discovery message every batch period.
+//
+// Relays are picked from both views, links to relays outside the active view are opened when a circuit needs
+// them and closed again once no circuit used them for a while.
+class Membership {
+    private static final Logger logger = LogManager.getLogger();
+    // hops joins and leaves travel, enough to reach most of the views of a few thousand nodes
+    private static final int FORWARD_HOPS = 6;
+    // a random active peer gets a sample of both views every this many batches
+    private static final int SHUFFLE_EVERY_BATCHES = 25;
+    private static final int SHUFFLE_ACTIVE_PEERS = 3;
+    private static final int SHUFFLE_PASSIVE_PEERS = 4;
+    // neighbor requests without an answer are given up after this long
+    private static final long REQUEST_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final PeerConnectionManager manager;
+    private final String address;
+    private final String bootstrapPeer;
+    private final int activeViewSize;
+    // links a node opens on its own, it accepts more up to activeViewSize
+    private final int targetLinks;
+    private final int passiveViewSize;
+    private final int capacity;
+    private final long circuitLinkIdleNanos;
+
+    // peers whose links count against activeViewSize
+    private final Set<String> activeView = ConcurrentHashMap.newKeySet();
+    // guarded by this
+    private final List<String> passiveView = new ArrayList<>();
+    // neighbor requests in flight and when they were sent
+    private final Map<String, Long> requested = new ConcurrentHashMap<>();
+    // changes waiting for the next batch, by the address of the receiving peer, guarded by this
+    private final Map<String, Delta> pendingDeltas = new HashMap<>();
+    private volatile boolean viewChanged;
+    private final ScheduledExecutorService scheduler;
+    private final long batchMillis;
+    private int batches;
+
+    Membership(PeerConnectionManager manager, NodeConfig config) {
+        this.manager = manager;
+        this.address = config.getAddress();
+        this.bootstrapPeer = config.getBootstrapPeer();
+        // the view's links count against onion.maxLinks like all others
+        this.activeViewSize = Math.min(config.getActiveViewSize(), config.getMaxLinks());
+        this.targetLinks = Math.max(1, activeViewSize / 2);
+        this.passiveViewSize = config.getPassiveViewSize();
+        this.capacity = config.getRelayCapacity();
+        this.circuitLinkIdleNanos = TimeUnit.MILLISECONDS.toNanos(config.getCircuitLinkIdleMillis());
+        this.batchMillis = config.getDiscoveryBatchMillis();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(config.getNodeName(), "membership"));
+    }
+
+    // Joins through the bootstrap peer and keeps the views filled from then on
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::tick, 0, batchMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Tells the active view that this node is leaving, before its links close
+    void leave() {
+        scheduler.shutdownNow();
+        DiscoveryMessage goodbye = new DiscoveryMessage(Collections.emptyMap(), Collections.singletonMap(address, FORWARD_HOPS), capacity);
+        for (String peer : activeView) {
+            PeerConnection link = manager.getActivePeerConnection(peer);
+            if (link != null) link.sendEncryptedMessage(goodbye);
+        }
+    }
+
+    void onLinkAdded(PeerConnection link) {
+        // the capacity travels with discovery messages, a link without other news gets an empty one
+        if (capacity > 0) {
+            synchronized (this) {
+                pendingDeltas.computeIfAbsent(link.getAddress(), peer -> new Delta());
+            }
+        }
+    }
+
+    void onLinkClosed(PeerConnection link) {
+        String peer = link.getAddress();
+        requested.remove(peer);
+        if (activeView.remove(peer)) {
+            // the peer is most likely gone, the view is filled from the passive view on the next batch
+            logger.info("Lost {} from the active view", peer);
+            synchronized (this) {
+                passiveView.remove(peer);
+            }
+            viewChanged = true;
+        }
+    }
+
+    void onNeighbor(PeerConnection link, NeighborMessage message) {
+        String peer = link.getAddress();
+        switch (message.getKind()) {
+            case JOIN:
+                onJoin(link);
+                break;
+            case REQUEST:
+                boolean accepted;
+                synchronized (this) {
+                    accepted = activeView.size() < activeViewSize;
+                    if (accepted) promote(peer);
+                }
+                link.sendEncryptedMessage(new NeighborMessage(accepted ? NeighborMessage.Kind.ACCEPT : NeighborMessage.Kind.REJECT));
+                logger.info("{} neighbor request of {}", accepted ? "Accepted" : "Rejected", peer);
+                break;
+            case ACCEPT:
+                requested.remove(peer);
+                synchronized (this) {
+                    promote(peer);
+                }
+                logger.info("Added {} to the active view", peer);
+                break;
+            case REJECT:
+                // the link only carries circuits from now on and closes once idle
+                requested.remove(peer);
+                break;
+            case DISCONNECT:
+                activeView.remove(peer);
+                addPassive(peer);
+                logger.info("{} moved the link out of its active view", peer);
+                // a link nothing else uses is given back right away, the peer's links count against its onion.maxLinks
+                if (isSpareCircuitLink(link)) link.close();
+                break;
+        }
+    }
+
+    // A joining node is always taken, a random active peer makes room if the view is full
+    private void onJoin(PeerConnection link) {
+        String newcomer = link.getAddress();
+        PeerConnection dropped = null;
+        synchronized (this) {
+            if (activeView.size() >= activeViewSize) {
+                String victim = randomElement(activeView, newcomer);
+                if (victim != null) {
+                    activeView.remove(victim);
+                    addPassive(victim);
+                    dropped = manager.getActivePeerConnection(victim);
+                }
+            }
+            promote(newcomer);
+
+            // the newcomer starts out with both views of this node
+            Delta welcome = delta(newcomer);
+            for (String peer : activeView) {
+                if (!peer.equals(newcomer) && welcome.joined.size() < passiveViewSize) welcome.joined.put(peer, 0);
+            }
+            for (String peer : passiveView) {
+                if (welcome.joined.size() < passiveViewSize) welcome.joined.put(peer, 0);
+            }
+            for (String peer : activeView) {
+                if (!peer.equals(newcomer)) delta(peer).joined.merge(newcomer, FORWARD_HOPS, Math::max);
+            }
+        }
+
+        link.sendEncryptedMessage(new NeighborMessage(NeighborMessage.Kind.ACCEPT));
+        if (dropped != null) dropped.sendEncryptedMessage(new NeighborMessage(NeighborMessage.Kind.DISCONNECT));
+        logger.info("{} joined through this node", newcomer);
+    }
+
+    void onDiscovery(PeerConnection link, DiscoveryMessage message) {
+        String sender = link.getAddress();
+        synchronized (this) {
+            for (Map.Entry<String, Integer> joined : message.getJoined().entrySet()) {
+                String peer = joined.getKey();
+                if (peer.equals(address)) continue;
+                if (addPassive(peer)) logger.info("Learned about {}", peer);
+
+                // a join goes on along a random walk until its hops are used up
+                int hops = joined.getValue() - 1;
+                String next = hops > 0 ? randomElement(activeView, sender) : null;
+                if (next != null && !next.equals(peer)) delta(next).joined.merge(peer, hops, Math::max);
+            }
+
+            for (Map.Entry<String, Integer> left : message.getLeft().entrySet()) {
+                String peer = left.getKey();
+                // only nodes that knew the peer pass the news on, so it dies out once everyone has heard it
+                boolean known = passiveView.remove(peer) | activeView.remove(peer);
+                if (!known || left.getValue() <= 1) continue;
+                logger.info("{} left the network", peer);
+                viewChanged = true;
+                for (String next : activeView) {
+                    if (!next.equals(sender)) delta(next).left.merge(peer, left.getValue() - 1, Math::max);
+                }
+            }
+        }
+    }
+
+    private void tick() {
+        try {
+            flush();
+            if (++batches % SHUFFLE_EVERY_BATCHES == 0) shuffle();
+            fill();
+            closeIdleLinks();
+            if (viewChanged) {
+                viewChanged = false;
+                manager.getRelaySelector().refresh();
+            }
+        } catch (RuntimeException e) {
+            logger.error("Cannot maintain the membership views", e);
+        }
+    }
+
+    private void flush() {
+        Map<String, Delta> deltas;
+        synchronized (this) {
+            if (pendingDeltas.isEmpty()) return;
+            deltas = new HashMap<>(pendingDeltas);
+            pendingDeltas.clear();
+        }
+        for (Map.Entry<String, Delta> delta : deltas.entrySet()) {
+            PeerConnection link = manager.getActivePeerConnection(delta.getKey());
+            if (link == null) continue;
+            link.sendEncryptedMessage(new DiscoveryMessage(delta.getValue().joined, delta.getValue().left, capacity));
+        }
+    }
+
+    // Sends a random active peer a sample of both views, the passive views of the network slowly mix
+    private synchronized void shuffle() {
+        String target = randomElement(activeView, null);
+        if (target == null) return;
+
+        Delta sample = delta(target);
+        sample.joined.put(address, 0);
+        for (String peer : randomSample(new ArrayList<>(activeView), SHUFFLE_ACTIVE_PEERS)) {
+            if (!peer.equals(target)) sample.joined.put(peer, 0);
+        }
+        for (String peer : randomSample(passiveView, SHUFFLE_PASSIVE_PEERS)) {
+            if (!peer.equals(target)) sample.joined.put(peer, 0);
+        }
+    }
+
+    // Asks one passive peer at a time to fill a free slot, joins through the bootstrap peer while nothing else is known
+    private void fill() {
+        long now = System.nanoTime();
+        requested.values().removeIf(sentAt -> now - sentAt > REQUEST_TIMEOUT_NANOS);
+        if (activeView.size() + requested.size() >= targetLinks) return;
+
+        String candidate;
+        synchronized (this) {
+            List<String> candidates = new ArrayList<>(passiveView);
+            candidates.removeAll(requested.keySet());
+            candidate = candidates.isEmpty() ? null : candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+        }
+        if (candidate == null && activeView.isEmpty() && !bootstrapPeer.isEmpty() && !bootstrapPeer.equals(address)) {
+            candidate = bootstrapPeer;
+        }
+        if (candidate == null || requested.putIfAbsent(candidate, now) != null) return;
+
+        // a node without neighbors joins, which is never refused
+        NeighborMessage.Kind kind = activeView.isEmpty() ? NeighborMessage.Kind.JOIN : NeighborMessage.Kind.REQUEST;
+        String peer = candidate;
+        manager.linkTo(peer).whenComplete((link, e) -> {
+            if (e != null) {
+                requested.remove(peer);
+                forget(peer);
+                return;
+            }
+            link.sendEncryptedMessage(new NeighborMessage(kind));
+        });
+    }
+
+    private void closeIdleLinks() {
+        for (PeerConnection link : manager.getLinks()) {
+            if (isSpareCircuitLink(link) && link.getIdleNanos() > circuitLinkIdleNanos) {
+                logger.info("Closing idle circuit link to {}", link.getAddress());
+                link.close();
+            }
+        }
+    }
+
+    // Makes room for a new link under onion.maxLinks, false if no link can be spared
+    boolean closeIdlestCircuitLink() {
+        PeerConnection idlest = null;
+        for (PeerConnection link : manager.getLinks()) {
+            if (isSpareCircuitLink(link) && (idlest == null || link.getIdleNanos() > idlest.getIdleNanos())) idlest = link;
+        }
+        if (idlest == null) return false;
+        logger.info("Closing circuit link to {} to make room for a new link", idlest.getAddress());
+        idlest.close();
+        return true;
+    }
+
+    // Only the node that opened a link closes it, the other end cannot tell whether the opener's sessions use it
+    private boolean isSpareCircuitLink(PeerConnection link) {
+        String peer = link.getAddress();
+        return link.isInitiator() && !activeView.contains(peer) && !requested.containsKey(peer) && !link.hasLiveSessions();
+    }
+
+    // Called with the lock held
+    private void promote(String peer) {
+        activeView.add(peer);
+        passiveView.remove(peer);
+        viewChanged = true;
+    }
+
+    // Returns true if the peer was not known before, a random peer makes room if the view is full
+    private synchronized boolean addPassive(String peer) {
+        if (peer.equals(address) || activeView.contains(peer) || passiveView.contains(peer)) return false;
+        if (passiveView.size() >= passiveViewSize) {
+            passiveView.remove(ThreadLocalRandom.current().nextInt(passiveView.size()));
+        }
+        passiveView.add(peer);
+        viewChanged = true;
+        return true;
+    }
+
+    // The peer could not be reached
+    private synchronized void forget(String peer) {
+        if (passiveView.remove(peer)) viewChanged = true;
+    }
+
+    // Called with the lock held
+    private Delta delta(String peer) {
+        return pendingDeltas.computeIfAbsent(peer, p -> new Delta());
+    }
+
+    private static String randomElement(Collection<String> peers, String except) {
+        List<String> candidates = new ArrayList<>(peers);
+        candidates.remove(except);
+        return candidates.isEmpty() ? null : candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+    }
+
+    private static List<String> randomSample(List<String> peers, int size) {
+        List<String> sample = new ArrayList<>(peers);
+        Collections.shuffle(sample, ThreadLocalRandom.current());
+        return sample.subList(0, Math.min(size, sample.size()));
+    }
+
+    // Peers of both views, the candidates for relays
+    synchronized Set<String> getKnownAddresses() {
+        Set<String> known = new HashSet<>(passiveView);
+        known.addAll(manager.getActiveAddresses());
+        return known;
+    }
+
+    int getActiveViewSize() {
+        return activeView.size();
+    }
+
+    synchronized int getPassiveViewSize() {
+        return passiveView.size();
+    }
+
+    private static class Delta {
+        private final Map<String, Integer> joined = new HashMap<>();
+        private final Map<String, Integer> left = new HashMap<>();
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.kiiril;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+// Collects a stream of at most maxSize bytes and hands the whole payload over once the stream is complete
+public class MemoryStreamSink implements StreamSink {
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final int maxSize;
+    private final Consumer<byte[]> onComplete;
+    private final Runnable onAbort;
+
+    public MemoryStreamSink(int maxSize, Consumer<byte[]> onComplete) {
+        this(maxSize, onComplete, () -> {});
+    }
+
+    public MemoryStreamSink(int maxSize, Consumer<byte[]> onComplete, Runnable onAbort) {
+        this.maxSize = maxSize;
+        this.onComplete = onComplete;
+        this.onAbort = onAbort;
+    }
+
+    @Override
+    public void write(byte[] chunk) throws IOException {
+        if (buffer.size() + chunk.length > maxSize) {
+            throw new IOException("Stream exceeds the limit of " + maxSize + " bytes");
+        }
+        buffer.writeBytes(chunk);
+    }
+
+    @Override
+    public void close() {
+        onComplete.accept(buffer.toByteArray());
+    }
+
+    // A partial payload is useless, it is dropped
+    @Override
+    public void abort() {
+        buffer.reset();
+        onAbort.run();
+    }
+}
@@ -35,6 +35,12 @@ class MessageAdapter implements JsonSerializer<Message>, JsonDeserializer<Messag
                 return context.deserialize(jsonObject, DiscoveryMessage.class);
             case SYMMETRIC_KEY_ESTABLISHMENT:
                 return context.deserialize(jsonObject, SymmetricKeyEstablishmentMessage.class);
+            case SENDME:
+                return context.deserialize(jsonObject, SendmeMessage.class);
+            case PING:
+                return context.deserialize(jsonObject, PingMessage.class);
+            case NEIGHBOR:
+                return context.deserialize(jsonObject, NeighborMessage.class);
             default:
                 throw new JsonParseException("Unknown element type: " + type);
         }
@@ -1,10 +1,35 @@
 package com.github.kiiril;
 
 public enum MessageType {
-    SYMMETRIC_KEY_ESTABLISHMENT,
-    SESSION_KEY_ESTABLISHMENT,
-    DISCOVERY,
-    LAYER,
-    FORWARD_MESSAGE,
-    BACKWARD_MESSAGE,
+    SYMMETRIC_KEY_ESTABLISHMENT(1),
+    SESSION_KEY_ESTABLISHMENT(2),
+    DISCOVERY(3),
+    LAYER(4),
+    FORWARD_MESSAGE(5),
+    BACKWARD_MESSAGE(6),
+    SENDME(7),
+    PING(8),
+    NEIGHBOR(9);
+
+    private static final MessageType[] BY_CODE = new MessageType[256];
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    // stable wire identifier used by the binary frame codec, never reuse a code
+    private final int code;
+
+    MessageType(int code) {
+        this.code = code;
+    }
+
+    public byte getCode() {
+        return (byte) code;
+    }
+
+    public static MessageType fromCode(byte code) {
+        return BY_CODE[code & 0xFF];
+    }
 }
@@ -0,0 +1,63 @@
+package com.github.kiiril;
+
+// Process wide metrics of the hot paths, shared by all code that encrypts, serializes or relays messages.
+// Gauges of a node (links, sessions, queue depths) live on the node's own registry, which exposes these as well.
+public class Metrics {
+    public static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    public static final Histogram HANDSHAKE = REGISTRY.histogram("onion_handshake_seconds",
+            "Time from sending this node's public key on a new link to the link key being established");
+    public static final Histogram HANDSHAKE_CONNECT = REGISTRY.histogram("onion_handshake_connect_seconds",
+            "Time to open the TCP connection of a link this node dials, the first stage of its handshake");
+    public static final Histogram FORWARD_HOP = REGISTRY.histogram("onion_forward_hop_seconds",
+            "Time one hop spends on a forward message: decrypting its layer and handing it on or delivering it");
+    public static final Histogram BACKWARD_HOP = REGISTRY.histogram("onion_backward_hop_seconds",
+            "Time one hop spends on a backward message: adding its layer and handing it on or decrypting all layers");
+    public static final Histogram AES_ENCRYPT = REGISTRY.histogram("onion_aes_encrypt_seconds",
+            "Time of one AES encryption, link frames and onion layers alike");
+    public static final Histogram AES_DECRYPT = REGISTRY.histogram("onion_aes_decrypt_seconds",
+            "Time of one AES decryption, link frames and onion layers alike");
+    public static final Histogram SERIALIZE = REGISTRY.histogram("onion_serialize_seconds",
+            "Time to turn a message into JSON");
+    public static final Histogram DESERIALIZE = REGISTRY.histogram("onion_deserialize_seconds",
+            "Time to parse a message from JSON");
+    public static final Histogram FRAME_ENCODE = REGISTRY.histogram("onion_frame_encode_seconds",
+            "Time to encode and encrypt a link frame");
+    public static final Histogram FRAME_DECODE = REGISTRY.histogram("onion_frame_decode_seconds",
+            "Time to decrypt and decode a link frame");
+    public static final Histogram EXIT_ORIGIN = REGISTRY.histogram("onion_exit_origin_seconds",
+            "Time from an exit node sending an upstream request to receiving the response headers");
+    public static final Histogram FLOW_BLOCKED = REGISTRY.histogram("onion_flow_blocked_seconds",
+            "Time a data message waited for flow control credits, only messages that had to wait are counted");
+    public static final Histogram CLIENT_REQUEST = REGISTRY.histogram("onion_client_request_seconds",
+            "Time from sending a request with the client to its complete response, including the wait for a free slot");
+    public static final Histogram LINK_RTT = REGISTRY.histogram("onion_link_rtt_seconds",
+            "Round trip time of a ping over a link, including the time the peer took to process it");
+
+    public static final Counter FRAMES_SENT = REGISTRY.counter("onion_frames_sent_total",
+            "Frames queued for writing to a link");
+    public static final Counter FRAMES_DROPPED = REGISTRY.counter("onion_frames_dropped_total",
+            "Frames dropped because the link was closed or its outbound queue was full");
+    public static final Counter FRAMES_RECEIVED = REGISTRY.counter("onion_frames_received_total",
+            "Frames read from a link");
+    public static final Counter BUFFER_POOL_HITS = REGISTRY.counter("onion_buffer_pool_hits_total",
+            "Frame and layer buffers taken from the pool");
+    public static final Counter BUFFER_POOL_MISSES = REGISTRY.counter("onion_buffer_pool_misses_total",
+            "Frame and layer buffers allocated because the pool had none of the size");
+    public static final Counter HANDSHAKE_FAILURES = REGISTRY.counter("onion_handshake_failures_total",
+            "Link handshakes that failed or whose link closed before the key was established");
+    public static final Counter HANDSHAKE_TIMEOUTS = REGISTRY.counter("onion_handshake_timeouts_total",
+            "Link handshakes given up because connecting or the key exchange took too long, also counted as failures");
+    public static final Counter HANDSHAKES_REJECTED = REGISTRY.counter("onion_handshakes_rejected_total",
+            "Accepted connections closed right away because onion.maxInboundHandshakes handshakes were running");
+    public static final Counter LINKS_REFUSED = REGISTRY.counter("onion_links_refused_total",
+            "Links not set up because onion.maxLinks links were open: accepted connections closed and links asked for failed");
+    public static final Counter DUPLICATE_LINKS = REGISTRY.counter("onion_duplicate_links_total",
+            "Links closed because the peers had opened another one to each other at the same time");
+    public static final Counter EXIT_REQUESTS = REGISTRY.counter("onion_exit_requests_total",
+            "Upstream requests started by an exit node");
+    public static final Counter CLIENT_TIMEOUTS = REGISTRY.counter("onion_client_timeouts_total",
+            "Client requests that timed out before their response was complete");
+    public static final Counter EXIT_FAILURES = REGISTRY.counter("onion_exit_failures_total",
+            "Upstream requests that did not deliver a complete 200 response");
+}
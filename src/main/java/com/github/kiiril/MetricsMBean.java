@@ -0,0 +1,98 @@
+package com.github.kiiril;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+// Exposes a node's registry as read-only JMX attributes under com.github.kiiril:type=Metrics,node=<node>, one
+// attribute per counter and gauge and count, sum and quantiles in seconds per histogram
+class MetricsMBean implements DynamicMBean {
+    private static final Logger logger = LogManager.getLogger();
+
+    private final MetricsRegistry registry;
+
+    private MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    // Returns the name to unregister the bean with, null if it could not be registered
+    static ObjectName register(MetricsRegistry registry, String node) {
+        try {
+            ObjectName name = new ObjectName("com.github.kiiril:type=Metrics,node=" + ObjectName.quote(node));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(registry), name);
+            return name;
+        } catch (InstanceAlreadyExistsException e) {
+            logger.warn("Cannot register the metrics MBean, another node named {} runs in this JVM", node);
+        } catch (JMException e) {
+            logger.warn("Cannot register the metrics MBean: {}", e.getMessage());
+        }
+        return null;
+    }
+
+    static void unregister(ObjectName name) {
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            logger.warn("Cannot unregister the metrics MBean {}: {}", name, e.getMessage());
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = registry.snapshot().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> snapshot = registry.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = snapshot.get(attribute);
+            if (value != null) list.add(new Attribute(attribute, value));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+
+    // Built on every call, gauges may be registered after the bean
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> snapshot = registry.snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> entry : snapshot.entrySet()) {
+            String name = entry.getKey();
+            attributes[i++] = new MBeanAttributeInfo(name, entry.getValue().getClass().getName(),
+                    describe(name), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "Onion node metrics", attributes, null, null, null);
+    }
+
+    private String describe(String name) {
+        String help = registry.getHelp(name);
+        if (help != null) return help;
+        // histogram attributes carry a suffix
+        int suffix = name.lastIndexOf('_');
+        help = registry.getHelp(name.substring(0, suffix));
+        return help + " (" + name.substring(suffix + 1) + ")";
+    }
+}
@@ -0,0 +1,135 @@
+package com.github.kiiril;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+// Named counters, histograms and gauges of a node. Counters and histograms are updated on the hot path,
+// gauges are only read when the metrics are scraped, so queue depths and sizes cost nothing in between.
+public class MetricsRegistry {
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+    // exported along with this registry's own metrics, null for none
+    private final MetricsRegistry shared;
+
+    public MetricsRegistry() {
+        this(null);
+    }
+
+    public MetricsRegistry(MetricsRegistry shared) {
+        this.shared = shared;
+    }
+
+    public Counter counter(String name, String help) {
+        return (Counter) register(name, help, Kind.COUNTER, new Counter());
+    }
+
+    public Histogram histogram(String name, String help) {
+        return (Histogram) register(name, help, Kind.HISTOGRAM, new Histogram());
+    }
+
+    // A gauge registered again under the same name replaces the previous one
+    public void gauge(String name, String help, LongSupplier value) {
+        metrics.put(name, new Metric(name, help, Kind.GAUGE, value));
+    }
+
+    private Object register(String name, String help, Kind kind, Object instrument) {
+        Metric metric = metrics.computeIfAbsent(name, n -> new Metric(name, help, kind, instrument));
+        if (metric.kind != kind) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + metric.kind);
+        }
+        return metric.instrument;
+    }
+
+    // Prometheus text exposition format, version 0.0.4. Times are exported in seconds.
+    public String toPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        if (shared != null) out.append(shared.toPrometheusText());
+        for (Metric metric : metrics.values()) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.kind.name().toLowerCase(Locale.ROOT)).append('\n');
+            switch (metric.kind) {
+                case COUNTER:
+                    out.append(metric.name).append(' ').append(((Counter) metric.instrument).get()).append('\n');
+                    break;
+                case GAUGE:
+                    out.append(metric.name).append(' ').append(((LongSupplier) metric.instrument).getAsLong()).append('\n');
+                    break;
+                case HISTOGRAM:
+                    appendHistogram(out, metric.name, (Histogram) metric.instrument);
+                    break;
+            }
+        }
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, Histogram histogram) {
+        long[] counts = histogram.getBucketCounts();
+        long cumulative = 0;
+        for (int i = 0; i < Histogram.getBucketCount(); i++) {
+            cumulative += counts[i];
+            out.append(name).append("_bucket{le=\"").append(seconds(Histogram.getBucketBoundNanos(i))).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        cumulative += counts[Histogram.getBucketCount()];
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(seconds(histogram.getSumNanos())).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    // Flat view for JMX: counters and gauges by name, histograms as count, sum and a few quantiles
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new ConcurrentSkipListMap<>();
+        if (shared != null) values.putAll(shared.snapshot());
+        for (Metric metric : metrics.values()) {
+            switch (metric.kind) {
+                case COUNTER:
+                    values.put(metric.name, ((Counter) metric.instrument).get());
+                    break;
+                case GAUGE:
+                    values.put(metric.name, ((LongSupplier) metric.instrument).getAsLong());
+                    break;
+                case HISTOGRAM:
+                    Histogram histogram = (Histogram) metric.instrument;
+                    values.put(metric.name + "_count", histogram.getCount());
+                    values.put(metric.name + "_sum", seconds(histogram.getSumNanos()));
+                    values.put(metric.name + "_p50", seconds(histogram.getQuantileNanos(0.5)));
+                    values.put(metric.name + "_p99", seconds(histogram.getQuantileNanos(0.99)));
+                    values.put(metric.name + "_p999", seconds(histogram.getQuantileNanos(0.999)));
+                    break;
+            }
+        }
+        return values;
+    }
+
+    public String getHelp(String name) {
+        Metric metric = metrics.get(name);
+        if (metric != null) return metric.help;
+        return shared == null ? null : shared.getHelp(name);
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private enum Kind {
+        COUNTER,
+        GAUGE,
+        HISTOGRAM
+    }
+
+    private static class Metric {
+        private final String name;
+        private final String help;
+        private final Kind kind;
+        // Counter, Histogram or LongSupplier depending on the kind
+        private final Object instrument;
+
+        Metric(String name, String help, Kind kind, Object instrument) {
+            this.name = name;
+            this.help = help;
+            this.kind = kind;
+            this.instrument = instrument;
+        }
+    }
+}
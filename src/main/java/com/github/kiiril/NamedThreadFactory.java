@@ -0,0 +1,25 @@
+package com.github.kiiril;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Gives pool threads readable names in logs and thread dumps, "<node>-<prefix>-<n>" for named nodes
+class NamedThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    NamedThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    NamedThreadFactory(String nodeName, String prefix) {
+        this(nodeName.isEmpty() ? prefix : nodeName + "-" + prefix);
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
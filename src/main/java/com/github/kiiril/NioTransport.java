@@ -0,0 +1,346 @@
+package com.github.kiiril;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// Non-blocking transport: a fixed number of selector threads accept, read and write for all links,
+// received messages are processed on a bounded worker pool, so the thread count does not grow with peers
+class NioTransport implements Transport {
+    private static final Logger logger = LogManager.getLogger();
+    private static final int MAX_GATHERED_FRAMES = 64;
+
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+    private final ThreadPoolExecutor workers;
+    private final long maxQueuedBytes;
+    private final long connectTimeoutMillis;
+    private volatile ServerSocketChannel serverChannel;
+
+    NioTransport(NodeConfig config) throws IOException {
+        maxQueuedBytes = config.getLinkMaxQueuedBytes();
+        connectTimeoutMillis = config.getHandshakeConnectTimeoutMillis();
+        NamedThreadFactory eventLoopThreads = new NamedThreadFactory(config.getNodeName(), "event-loop");
+        eventLoops = new EventLoop[config.getEventLoopThreads()];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+            eventLoopThreads.newThread(eventLoops[i]).start();
+        }
+
+        // when the queue is full the event loop runs the task itself, which stops it from reading more
+        workers = new ThreadPoolExecutor(config.getWorkerThreads(), config.getWorkerThreads(),
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getWorkerQueueSize()),
+                new NamedThreadFactory(config.getNodeName(), "worker"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public int bind(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        this.serverChannel = serverChannel;
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void listen(Consumer<Link> acceptHandler) {
+        ServerSocketChannel serverChannel = this.serverChannel;
+        eventLoops[0].execute(() -> {
+            try {
+                serverChannel.register(eventLoops[0].selector, SelectionKey.OP_ACCEPT, acceptHandler);
+            } catch (ClosedChannelException e) {
+                logger.error("Cannot listen for connections: {}", e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Link> connect(String host, int port) {
+        CompletableFuture<Link> connected = new CompletableFuture<>();
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            NioLink link = new NioLink(channel, nextEventLoop(), host);
+            // closed on the event loop so it cannot race with finishing the connect
+            connected.orTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS).whenComplete((l, e) -> {
+                if (e != null) link.eventLoop.execute(link::close);
+            });
+            link.eventLoop.execute(() -> {
+                try {
+                    link.key = channel.register(link.eventLoop.selector, 0, link);
+                    if (channel.connect(new InetSocketAddress(host, port))) {
+                        connected.complete(link);
+                    } else {
+                        link.pendingConnect = connected;
+                        link.key.interestOps(SelectionKey.OP_CONNECT);
+                    }
+                } catch (IOException e) {
+                    link.close();
+                    connected.completeExceptionally(e);
+                }
+            });
+        } catch (IOException e) {
+            connected.completeExceptionally(e);
+        }
+        return connected;
+    }
+
+    @Override
+    public Executor getMessageExecutor() {
+        return workers;
+    }
+
+    // starting a handshake is short, the workers take it between messages
+    @Override
+    public Executor getHandshakeExecutor() {
+        return workers;
+    }
+
+    @Override
+    public int getQueuedMessages() {
+        return workers.getQueue().size();
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            logger.warn("Cannot close the server channel: {}", e.getMessage());
+        }
+        // the loops close their channels and selectors on the way out
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.running = false;
+            eventLoop.selector.wakeup();
+        }
+        workers.shutdownNow();
+    }
+
+    private EventLoop nextEventLoop() {
+        return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+    }
+
+    @SuppressWarnings("unchecked")
+    private void accept(SelectionKey key) throws IOException {
+        SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+        if (channel == null) return;
+
+        channel.configureBlocking(false);
+        NioLink link = new NioLink(channel, nextEventLoop(), channel.socket().getInetAddress().getHostAddress());
+        link.eventLoop.execute(link::register);
+        ((Consumer<Link>) key.attachment()).accept(link);
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        // Selector state may only be changed from the loop thread, other threads go through here
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                } catch (IOException e) {
+                    logger.error("Event loop failure: {}", e.getMessage());
+                }
+            }
+            closeAll();
+        }
+
+        // A registered channel only lets go of its socket once its key is deregistered, which closing the selector does
+        private void closeAll() {
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.attachment() instanceof NioLink) {
+                    ((NioLink) key.attachment()).close();
+                    continue;
+                }
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    logger.warn("Cannot close a channel: {}", e.getMessage());
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close the selector: {}", e.getMessage());
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            if (!key.isValid()) return;
+
+            if (key.isAcceptable()) {
+                try {
+                    accept(key);
+                } catch (IOException e) {
+                    logger.error("Cannot accept a connection: {}", e.getMessage());
+                }
+                return;
+            }
+
+            NioLink link = (NioLink) key.attachment();
+            try {
+                if (key.isConnectable()) link.finishConnect();
+                if (key.isValid() && key.isReadable()) link.read();
+                if (key.isValid() && key.isWritable()) link.flush();
+            } catch (IOException e) {
+                logger.error("Link to {} failed: {}", link.getRemoteIp(), e.getMessage());
+                link.close();
+            }
+        }
+    }
+
+    private class NioLink extends AbstractLink {
+        private final SocketChannel channel;
+        private final EventLoop eventLoop;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        // frames taken from the outbound queue, a partially written frame stays at the front
+        private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_FRAMES];
+        private int gatheredCount;
+
+        private SelectionKey key;
+        private CompletableFuture<Link> pendingConnect;
+
+        NioLink(SocketChannel channel, EventLoop eventLoop, String remoteIp) throws IOException {
+            super(remoteIp, maxQueuedBytes);
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+
+        private void register() {
+            try {
+                key = channel.register(eventLoop.selector, 0, this);
+            } catch (ClosedChannelException e) {
+                close();
+            }
+        }
+
+        private void finishConnect() throws IOException {
+            try {
+                channel.finishConnect();
+            } catch (IOException e) {
+                pendingConnect.completeExceptionally(e);
+                throw e;
+            }
+            key.interestOps(0);
+            pendingConnect.complete(this);
+            pendingConnect = null;
+        }
+
+        @Override
+        public void start(LinkHandler handler) {
+            this.handler = handler;
+            eventLoop.execute(() -> {
+                if (key != null && key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            });
+        }
+
+        private void read() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            if (read > 0) deliver();
+        }
+
+        @Override
+        protected void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                eventLoop.execute(() -> {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        logger.error("Cannot send the message to {}: {}", getRemoteIp(), e.getMessage());
+                        close();
+                    }
+                });
+            }
+        }
+
+        // Runs on the event loop, gathers queued frames into single writes until the queue is empty
+        // or the socket buffer is full
+        private void flush() throws IOException {
+            if (key == null || !key.isValid()) return;
+
+            while (true) {
+                gatheredCount += outbound.drainTo(gathered, gatheredCount);
+                if (gatheredCount == 0) break;
+
+                long written = channel.write(gathered, 0, gatheredCount);
+                int completed = 0;
+                while (completed < gatheredCount && !gathered[completed].hasRemaining()) {
+                    completed++;
+                }
+                outbound.recordFlush(completed, written);
+                for (int i = 0; i < completed; i++) {
+                    BufferPool.release(gathered[i]);
+                }
+
+                System.arraycopy(gathered, completed, gathered, 0, gatheredCount - completed);
+                Arrays.fill(gathered, gatheredCount - completed, gatheredCount, null);
+                gatheredCount -= completed;
+                if (gatheredCount > 0) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            flushScheduled.set(false);
+            // a frame may have been queued after the last drain but before the flag was cleared
+            if (!outbound.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+                flush();
+            }
+        }
+
+        @Override
+        protected void closeChannel() {
+            try {
+                if (key != null) key.cancel();
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close the channel of {}: {}", getRemoteIp(), e.getMessage());
+            }
+        }
+    }
+}
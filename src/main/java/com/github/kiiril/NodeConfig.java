@@ -0,0 +1,579 @@
+package com.github.kiiril;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+// Tunables of a single node, defaults can be overridden with -Donion.<name>=<value>
+public class NodeConfig {
+    public enum WireFormat {
+        JSON,
+        BINARY
+    }
+
+    public enum CircuitSetup {
+        // legacy, the sender sends every router its key in a message of its own before the first onion
+        KEY_MESSAGES,
+        // every router agrees on its key with the sender from an ephemeral public key in its own onion layer
+        ONION
+    }
+
+    // a node is known to its peers as host:listenPort
+    private String host = System.getProperty("onion.host", localHostAddress());
+    private int listenPort = Integer.getInteger("onion.listenPort", 80);
+    // address of the node everyone joins through, empty for none; the node with this address does not join anyone
+    private String bootstrapPeer = System.getProperty("onion.bootstrapPeer", "172.17.0.2:80");
+    private boolean consoleEnabled = Boolean.parseBoolean(System.getProperty("onion.console", "true"));
+    // prefixes the names of the node's threads, tells nodes sharing a JVM apart
+    private String nodeName = System.getProperty("onion.nodeName", "");
+    private WireFormat wireFormat = WireFormat.valueOf(System.getProperty("onion.wireFormat", "BINARY").toUpperCase());
+    private int maxFrameSize = Integer.getInteger("onion.maxFrameSize", 8 * 1024 * 1024);
+    private AES.Mode cipherMode = AES.Mode.valueOf(System.getProperty("onion.cipherMode", "GCM").toUpperCase());
+    private int maxSessions = Integer.getInteger("onion.maxSessions", 100_000);
+    private long sessionIdleTtlMillis = Long.getLong("onion.sessionIdleTtlMillis", 10 * 60 * 1000L);
+    private int maxSessionKeysPerLink = Integer.getInteger("onion.maxSessionKeysPerLink", 10_000);
+    // kept below the session TTL so relays never drop the session of a usable circuit
+    private long circuitMaxAgeMillis = Long.getLong("onion.circuitMaxAgeMillis", 5 * 60 * 1000L);
+    private int circuitMaxRequests = Integer.getInteger("onion.circuitMaxRequests", 1000);
+    private int circuitPoolSize = Integer.getInteger("onion.circuitPoolSize", 3);
+    private long circuitPoolRefillMillis = Long.getLong("onion.circuitPoolRefillMillis", 1000L);
+    private int streamChunkSize = Integer.getInteger("onion.streamChunkSize", 16 * 1024);
+    // 0 sends onion messages as long as their layers, otherwise every one is padded to this size
+    private int cellSize = Integer.getInteger("onion.cellSize", 0);
+    private int clientMaxConcurrentRequests = Integer.getInteger("onion.clientMaxConcurrentRequests", 256);
+    private long clientRequestTimeoutMillis = Long.getLong("onion.clientRequestTimeoutMillis", 60_000L);
+    private int clientMaxResponseBytes = Integer.getInteger("onion.clientMaxResponseBytes", 64 * 1024 * 1024);
+    // 0 turns the local HTTP proxy off
+    private int proxyPort = Integer.getInteger("onion.proxyPort", 0);
+    private int proxyMaxConcurrentRequests = Integer.getInteger("onion.proxyMaxConcurrentRequests", 256);
+    private long exitConnectTimeoutMillis = Long.getLong("onion.exitConnectTimeoutMillis", 5000L);
+    private long exitReadTimeoutMillis = Long.getLong("onion.exitReadTimeoutMillis", 30_000L);
+    private int exitMaxConcurrentRequests = Integer.getInteger("onion.exitMaxConcurrentRequests", 64);
+    private int exitMaxPendingRequests = Integer.getInteger("onion.exitMaxPendingRequests", 1024);
+    private boolean exitCacheEnabled = Boolean.getBoolean("onion.exitCache");
+    private long exitCacheMaxBytes = Long.getLong("onion.exitCacheMaxBytes", 64 * 1024 * 1024L);
+    private long exitCacheTtlMillis = Long.getLong("onion.exitCacheTtlMillis", 60_000L);
+    private KeyExchange.Algorithm keyExchange = KeyExchange.Algorithm.valueOf(System.getProperty("onion.keyExchange", "X25519").toUpperCase());
+    private CircuitSetup circuitSetup = CircuitSetup.valueOf(System.getProperty("onion.circuitSetup", "ONION").toUpperCase());
+    private int maxConcurrentHandshakes = Integer.getInteger("onion.maxConcurrentHandshakes", 16);
+    private int maxInboundHandshakes = Integer.getInteger("onion.maxInboundHandshakes", 64);
+    private long handshakeConnectTimeoutMillis = Long.getLong("onion.handshakeConnectTimeoutMillis", 5_000L);
+    private long handshakeKeyTimeoutMillis = Long.getLong("onion.handshakeKeyTimeoutMillis", 5_000L);
+    // in data messages, each carrying at most one stream chunk
+    private int circuitWindow = Integer.getInteger("onion.circuitWindow", 64);
+    private int circuitSendmeIncrement = Integer.getInteger("onion.circuitSendmeIncrement", 16);
+    private int linkWindow = Integer.getInteger("onion.linkWindow", 1024);
+    private int linkSendmeIncrement = Integer.getInteger("onion.linkSendmeIncrement", 128);
+    // must leave room for at least a couple of maxFrameSize frames
+    private long linkMaxQueuedBytes = Long.getLong("onion.linkMaxQueuedBytes", 32 * 1024 * 1024L);
+    private Transport.Mode transportMode = Transport.Mode.valueOf(System.getProperty("onion.transport", "NIO").toUpperCase());
+    private int eventLoopThreads = Integer.getInteger("onion.eventLoopThreads", 2);
+    private int workerThreads = Integer.getInteger("onion.workerThreads", Runtime.getRuntime().availableProcessors());
+    private int workerQueueSize = Integer.getInteger("onion.workerQueueSize", 10_000);
+    // 0 picks routers uniformly, larger values prefer peers with a short round trip time and spare capacity
+    private double relayLatencyBias = Double.parseDouble(System.getProperty("onion.relayLatencyBias", "1.0"));
+    // sessions this node is willing to carry, advertised to its peers; 0 advertises nothing
+    private int relayCapacity = Integer.getInteger("onion.relayCapacity", 0);
+    private long probeIntervalMillis = Long.getLong("onion.probeIntervalMillis", 5000L);
+    // links of the active view, a node opens half of them itself and accepts the rest
+    private int activeViewSize = Integer.getInteger("onion.activeViewSize", 8);
+    private int maxLinks = Integer.getInteger("onion.maxLinks", 64);
+    private int passiveViewSize = Integer.getInteger("onion.passiveViewSize", 64);
+    private long discoveryBatchMillis = Long.getLong("onion.discoveryBatchMillis", 200L);
+    private long circuitLinkIdleMillis = Long.getLong("onion.circuitLinkIdleMillis", 60_000L);
+    // 0 turns the endpoint off
+    private int metricsPort = Integer.getInteger("onion.metricsPort", 9400);
+
+    public static NodeConfig fromSystemProperties() {
+        return new NodeConfig();
+    }
+
+    private static String localHostAddress() {
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Cannot get host IP address, set onion.host", e);
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public NodeConfig setHost(String host) {
+        this.host = host;
+        return this;
+    }
+
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    public NodeConfig setListenPort(int listenPort) {
+        this.listenPort = listenPort;
+        return this;
+    }
+
+    // The address peers know this node by
+    public String getAddress() {
+        return host + ":" + listenPort;
+    }
+
+    public String getBootstrapPeer() {
+        return bootstrapPeer;
+    }
+
+    public NodeConfig setBootstrapPeer(String bootstrapPeer) {
+        this.bootstrapPeer = bootstrapPeer;
+        return this;
+    }
+
+    public boolean isConsoleEnabled() {
+        return consoleEnabled;
+    }
+
+    public NodeConfig setConsoleEnabled(boolean consoleEnabled) {
+        this.consoleEnabled = consoleEnabled;
+        return this;
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    public NodeConfig setNodeName(String nodeName) {
+        this.nodeName = nodeName;
+        return this;
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    public NodeConfig setWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+        return this;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    public NodeConfig setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        return this;
+    }
+
+    public AES.Mode getCipherMode() {
+        return cipherMode;
+    }
+
+    public NodeConfig setCipherMode(AES.Mode cipherMode) {
+        this.cipherMode = cipherMode;
+        return this;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public NodeConfig setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+        return this;
+    }
+
+    public long getSessionIdleTtlMillis() {
+        return sessionIdleTtlMillis;
+    }
+
+    public NodeConfig setSessionIdleTtlMillis(long sessionIdleTtlMillis) {
+        this.sessionIdleTtlMillis = sessionIdleTtlMillis;
+        return this;
+    }
+
+    public int getMaxSessionKeysPerLink() {
+        return maxSessionKeysPerLink;
+    }
+
+    public NodeConfig setMaxSessionKeysPerLink(int maxSessionKeysPerLink) {
+        this.maxSessionKeysPerLink = maxSessionKeysPerLink;
+        return this;
+    }
+
+    public long getCircuitMaxAgeMillis() {
+        return circuitMaxAgeMillis;
+    }
+
+    public NodeConfig setCircuitMaxAgeMillis(long circuitMaxAgeMillis) {
+        this.circuitMaxAgeMillis = circuitMaxAgeMillis;
+        return this;
+    }
+
+    public int getCircuitMaxRequests() {
+        return circuitMaxRequests;
+    }
+
+    public NodeConfig setCircuitMaxRequests(int circuitMaxRequests) {
+        this.circuitMaxRequests = circuitMaxRequests;
+        return this;
+    }
+
+    public int getCircuitPoolSize() {
+        return circuitPoolSize;
+    }
+
+    public NodeConfig setCircuitPoolSize(int circuitPoolSize) {
+        this.circuitPoolSize = circuitPoolSize;
+        return this;
+    }
+
+    public long getCircuitPoolRefillMillis() {
+        return circuitPoolRefillMillis;
+    }
+
+    public NodeConfig setCircuitPoolRefillMillis(long circuitPoolRefillMillis) {
+        this.circuitPoolRefillMillis = circuitPoolRefillMillis;
+        return this;
+    }
+
+    public int getStreamChunkSize() {
+        return streamChunkSize;
+    }
+
+    public NodeConfig setStreamChunkSize(int streamChunkSize) {
+        this.streamChunkSize = streamChunkSize;
+        return this;
+    }
+
+    public int getCellSize() {
+        return cellSize;
+    }
+
+    public NodeConfig setCellSize(int cellSize) {
+        this.cellSize = cellSize;
+        return this;
+    }
+
+    public int getClientMaxConcurrentRequests() {
+        return clientMaxConcurrentRequests;
+    }
+
+    public NodeConfig setClientMaxConcurrentRequests(int clientMaxConcurrentRequests) {
+        this.clientMaxConcurrentRequests = clientMaxConcurrentRequests;
+        return this;
+    }
+
+    public long getClientRequestTimeoutMillis() {
+        return clientRequestTimeoutMillis;
+    }
+
+    public NodeConfig setClientRequestTimeoutMillis(long clientRequestTimeoutMillis) {
+        this.clientRequestTimeoutMillis = clientRequestTimeoutMillis;
+        return this;
+    }
+
+    public int getClientMaxResponseBytes() {
+        return clientMaxResponseBytes;
+    }
+
+    public NodeConfig setClientMaxResponseBytes(int clientMaxResponseBytes) {
+        this.clientMaxResponseBytes = clientMaxResponseBytes;
+        return this;
+    }
+
+    public int getProxyPort() {
+        return proxyPort;
+    }
+
+    public NodeConfig setProxyPort(int proxyPort) {
+        this.proxyPort = proxyPort;
+        return this;
+    }
+
+    public int getProxyMaxConcurrentRequests() {
+        return proxyMaxConcurrentRequests;
+    }
+
+    public NodeConfig setProxyMaxConcurrentRequests(int proxyMaxConcurrentRequests) {
+        this.proxyMaxConcurrentRequests = proxyMaxConcurrentRequests;
+        return this;
+    }
+
+    public long getExitConnectTimeoutMillis() {
+        return exitConnectTimeoutMillis;
+    }
+
+    public NodeConfig setExitConnectTimeoutMillis(long exitConnectTimeoutMillis) {
+        this.exitConnectTimeoutMillis = exitConnectTimeoutMillis;
+        return this;
+    }
+
+    public long getExitReadTimeoutMillis() {
+        return exitReadTimeoutMillis;
+    }
+
+    public NodeConfig setExitReadTimeoutMillis(long exitReadTimeoutMillis) {
+        this.exitReadTimeoutMillis = exitReadTimeoutMillis;
+        return this;
+    }
+
+    public int getExitMaxConcurrentRequests() {
+        return exitMaxConcurrentRequests;
+    }
+
+    public NodeConfig setExitMaxConcurrentRequests(int exitMaxConcurrentRequests) {
+        this.exitMaxConcurrentRequests = exitMaxConcurrentRequests;
+        return this;
+    }
+
+    public int getExitMaxPendingRequests() {
+        return exitMaxPendingRequests;
+    }
+
+    public NodeConfig setExitMaxPendingRequests(int exitMaxPendingRequests) {
+        this.exitMaxPendingRequests = exitMaxPendingRequests;
+        return this;
+    }
+
+    public boolean isExitCacheEnabled() {
+        return exitCacheEnabled;
+    }
+
+    public NodeConfig setExitCacheEnabled(boolean exitCacheEnabled) {
+        this.exitCacheEnabled = exitCacheEnabled;
+        return this;
+    }
+
+    public long getExitCacheMaxBytes() {
+        return exitCacheMaxBytes;
+    }
+
+    public NodeConfig setExitCacheMaxBytes(long exitCacheMaxBytes) {
+        this.exitCacheMaxBytes = exitCacheMaxBytes;
+        return this;
+    }
+
+    public long getExitCacheTtlMillis() {
+        return exitCacheTtlMillis;
+    }
+
+    public NodeConfig setExitCacheTtlMillis(long exitCacheTtlMillis) {
+        this.exitCacheTtlMillis = exitCacheTtlMillis;
+        return this;
+    }
+
+    public KeyExchange.Algorithm getKeyExchange() {
+        return keyExchange;
+    }
+
+    public NodeConfig setKeyExchange(KeyExchange.Algorithm keyExchange) {
+        this.keyExchange = keyExchange;
+        return this;
+    }
+
+    public CircuitSetup getCircuitSetup() {
+        return circuitSetup;
+    }
+
+    public NodeConfig setCircuitSetup(CircuitSetup circuitSetup) {
+        this.circuitSetup = circuitSetup;
+        return this;
+    }
+
+    public int getMaxConcurrentHandshakes() {
+        return maxConcurrentHandshakes;
+    }
+
+    public NodeConfig setMaxConcurrentHandshakes(int maxConcurrentHandshakes) {
+        this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+        return this;
+    }
+
+    public int getMaxInboundHandshakes() {
+        return maxInboundHandshakes;
+    }
+
+    public NodeConfig setMaxInboundHandshakes(int maxInboundHandshakes) {
+        this.maxInboundHandshakes = maxInboundHandshakes;
+        return this;
+    }
+
+    public long getHandshakeConnectTimeoutMillis() {
+        return handshakeConnectTimeoutMillis;
+    }
+
+    public NodeConfig setHandshakeConnectTimeoutMillis(long handshakeConnectTimeoutMillis) {
+        this.handshakeConnectTimeoutMillis = handshakeConnectTimeoutMillis;
+        return this;
+    }
+
+    public long getHandshakeKeyTimeoutMillis() {
+        return handshakeKeyTimeoutMillis;
+    }
+
+    public NodeConfig setHandshakeKeyTimeoutMillis(long handshakeKeyTimeoutMillis) {
+        this.handshakeKeyTimeoutMillis = handshakeKeyTimeoutMillis;
+        return this;
+    }
+
+    public int getCircuitWindow() {
+        return circuitWindow;
+    }
+
+    public NodeConfig setCircuitWindow(int circuitWindow) {
+        this.circuitWindow = circuitWindow;
+        return this;
+    }
+
+    public int getCircuitSendmeIncrement() {
+        return circuitSendmeIncrement;
+    }
+
+    public NodeConfig setCircuitSendmeIncrement(int circuitSendmeIncrement) {
+        this.circuitSendmeIncrement = circuitSendmeIncrement;
+        return this;
+    }
+
+    public int getLinkWindow() {
+        return linkWindow;
+    }
+
+    public NodeConfig setLinkWindow(int linkWindow) {
+        this.linkWindow = linkWindow;
+        return this;
+    }
+
+    public int getLinkSendmeIncrement() {
+        return linkSendmeIncrement;
+    }
+
+    public NodeConfig setLinkSendmeIncrement(int linkSendmeIncrement) {
+        this.linkSendmeIncrement = linkSendmeIncrement;
+        return this;
+    }
+
+    public long getLinkMaxQueuedBytes() {
+        return linkMaxQueuedBytes;
+    }
+
+    public NodeConfig setLinkMaxQueuedBytes(long linkMaxQueuedBytes) {
+        this.linkMaxQueuedBytes = linkMaxQueuedBytes;
+        return this;
+    }
+
+    public Transport.Mode getTransportMode() {
+        return transportMode;
+    }
+
+    public NodeConfig setTransportMode(Transport.Mode transportMode) {
+        this.transportMode = transportMode;
+        return this;
+    }
+
+    public int getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+
+    public NodeConfig setEventLoopThreads(int eventLoopThreads) {
+        this.eventLoopThreads = eventLoopThreads;
+        return this;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public NodeConfig setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+        return this;
+    }
+
+    public int getWorkerQueueSize() {
+        return workerQueueSize;
+    }
+
+    public NodeConfig setWorkerQueueSize(int workerQueueSize) {
+        this.workerQueueSize = workerQueueSize;
+        return this;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public NodeConfig setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+        return this;
+    }
+
+    public double getRelayLatencyBias() {
+        return relayLatencyBias;
+    }
+
+    public NodeConfig setRelayLatencyBias(double relayLatencyBias) {
+        this.relayLatencyBias = relayLatencyBias;
+        return this;
+    }
+
+    public int getRelayCapacity() {
+        return relayCapacity;
+    }
+
+    public NodeConfig setRelayCapacity(int relayCapacity) {
+        this.relayCapacity = relayCapacity;
+        return this;
+    }
+
+    public long getProbeIntervalMillis() {
+        return probeIntervalMillis;
+    }
+
+    public NodeConfig setProbeIntervalMillis(long probeIntervalMillis) {
+        this.probeIntervalMillis = probeIntervalMillis;
+        return this;
+    }
+
+    public int getActiveViewSize() {
+        return activeViewSize;
+    }
+
+    public NodeConfig setActiveViewSize(int activeViewSize) {
+        this.activeViewSize = activeViewSize;
+        return this;
+    }
+
+    public int getMaxLinks() {
+        return maxLinks;
+    }
+
+    public NodeConfig setMaxLinks(int maxLinks) {
+        this.maxLinks = maxLinks;
+        return this;
+    }
+
+    public int getPassiveViewSize() {
+        return passiveViewSize;
+    }
+
+    public NodeConfig setPassiveViewSize(int passiveViewSize) {
+        this.passiveViewSize = passiveViewSize;
+        return this;
+    }
+
+    public long getDiscoveryBatchMillis() {
+        return discoveryBatchMillis;
+    }
+
+    public NodeConfig setDiscoveryBatchMillis(long discoveryBatchMillis) {
+        this.discoveryBatchMillis = discoveryBatchMillis;
+        return this;
+    }
+
+    public long getCircuitLinkIdleMillis() {
+        return circuitLinkIdleMillis;
+    }
+
+    public NodeConfig setCircuitLinkIdleMillis(long circuitLinkIdleMillis) {
+        this.circuitLinkIdleMillis = circuitLinkIdleMillis;
+        return this;
+    }
+}
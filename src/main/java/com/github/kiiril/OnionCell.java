@@ -0,0 +1,159 @@
+package com.github.kiiril;
+
+import com.github.kiiril.messages.Layer;
+import javax.crypto.SecretKey;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Binary onion layers. The plain text of a layer is a routing header followed by the body:
+// [byte flags][short next hop length][next hop][short previous hop length][previous hop][int streamId][int sequence][body]
+// A relay's body is the raw ciphertext of the next layer, the exit node's body is the chunk, so every layer only
+// adds its header and the IV and tag (or padding) of the cipher. On the way back only the exit node adds a header,
+// the relays encrypt what they got as a whole.
+// With the ONION circuit setup every layer on the way out starts with [short key length][ephemeral public key] in
+// clear, the key is empty once the circuit is set up.
+// With a cell size set every onion message is exactly that long, [int ciphertext length][ciphertext][zero padding],
+// whatever the chunk and the position in the circuit, and relays work on buffers of one size.
+// Relays decrypt in place and hand the inner ciphertext on as a view of the same buffer, nothing is copied.
+// Buffers keep their absolute positions (duplicates rather than slices), so a layer can grow back into its header.
+final class OnionCell {
+    static final int FIXED_HEADER_SIZE = Byte.BYTES + 2 * Short.BYTES + 2 * Integer.BYTES;
+    static final int LENGTH_SIZE = Integer.BYTES;
+    // the exit node sizes response chunks for circuits of up to this many hops when cells have a fixed size
+    static final int MAX_HOPS = 8;
+    private static final int FLAG_LAST = 1;
+    // on the last chunk of a response the exit node could not fetch, the origin failed or the body broke off
+    private static final int FLAG_FAILED = 2;
+
+    private OnionCell() {
+    }
+
+    static byte[] address(String address) {
+        return address == null ? new byte[0] : address.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static int headerSize(byte[] nextHop, byte[] previousHop) {
+        return FIXED_HEADER_SIZE + nextHop.length + previousHop.length;
+    }
+
+    static void putHeader(ByteBuffer buffer, byte[] nextHop, byte[] previousHop, int streamId, int sequence, boolean last) {
+        putHeader(buffer, nextHop, previousHop, streamId, sequence, last, false);
+    }
+
+    static void putHeader(ByteBuffer buffer, byte[] nextHop, byte[] previousHop, int streamId, int sequence, boolean last,
+                          boolean failed) {
+        buffer.put((byte) ((last ? FLAG_LAST : 0) | (failed ? FLAG_FAILED : 0)))
+                .putShort((short) nextHop.length).put(nextHop)
+                .putShort((short) previousHop.length).put(previousHop)
+                .putInt(streamId).putInt(sequence);
+    }
+
+    // Reads the header, the rest of the plain text is the body, null if the plain text is malformed
+    static Layer readLayer(ByteBuffer plain) {
+        try {
+            byte flags = plain.get();
+            String nextHop = getAddress(plain);
+            String previousHop = getAddress(plain);
+            int streamId = plain.getInt();
+            int sequence = plain.getInt();
+            return new Layer(plain.duplicate(), nextHop, previousHop, streamId, sequence, (flags & FLAG_LAST) != 0,
+                    (flags & FLAG_FAILED) != 0);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private static String getAddress(ByteBuffer buffer) {
+        byte[] address = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(address);
+        return address.length == 0 ? null : new String(address, StandardCharsets.UTF_8);
+    }
+
+    static int keySize(byte[] key) {
+        return Short.BYTES + key.length;
+    }
+
+    static void putKey(ByteBuffer buffer, byte[] key) {
+        buffer.putShort((short) key.length).put(key);
+    }
+
+    // Reads the ephemeral public key in front of a layer, empty if there is none and null if the layer is malformed
+    static byte[] getKey(ByteBuffer layer) {
+        if (layer.remaining() < Short.BYTES) return null;
+        int length = Short.toUnsignedInt(layer.getShort());
+        if (length > layer.remaining()) return null;
+        byte[] key = new byte[length];
+        layer.get(key);
+        return key;
+    }
+
+    // The ciphertext an onion message carries, null if the cell is malformed
+    static ByteBuffer ciphertext(ByteBuffer message, int cellSize) {
+        if (cellSize == 0) return message;
+        if (message.remaining() != cellSize) return null;
+        int start = message.position() + LENGTH_SIZE;
+        int length = message.getInt(message.position());
+        if (length < 0 || length > cellSize - LENGTH_SIZE) return null;
+        return message.duplicate().limit(start + length).position(start);
+    }
+
+    // Decrypts a layer in place, returns its plain text or null if it cannot be decrypted
+    static ByteBuffer decrypt(AES.Mode mode, SecretKey key, ByteBuffer ciphertext) {
+        ByteBuffer plain = ciphertext.duplicate();
+        int start = plain.position();
+        int length = AES.decrypt(mode, key, ciphertext, plain);
+        if (length == -1) return null;
+        plain.limit(start + length).position(start);
+        return plain;
+    }
+
+    // The message carrying an inner ciphertext, null if it does not fit a cell. A cell is padded in place over
+    // the header in front of the ciphertext when the buffer has room for it, and copied otherwise.
+    static ByteBuffer toMessage(ByteBuffer ciphertext, int cellSize) {
+        if (cellSize == 0) return ciphertext;
+        int length = ciphertext.remaining();
+        if (LENGTH_SIZE + length > cellSize) return null;
+
+        int start = ciphertext.position() - LENGTH_SIZE;
+        if (start < 0 || start + cellSize > ciphertext.capacity()) {
+            ByteBuffer cell = ByteBuffer.allocate(cellSize).putInt(length).put(ciphertext);
+            return cell.position(0);
+        }
+        // whatever follows the ciphertext may be plain text of this layer or of an earlier user of the buffer
+        ByteBuffer cell = ciphertext.duplicate();
+        cell.putInt(start, length);
+        Arrays.fill(cell.array(), cell.arrayOffset() + ciphertext.limit(), cell.arrayOffset() + start + cellSize, (byte) 0);
+        return cell.limit(start + cellSize).position(start);
+    }
+
+    // Encrypts plain as one layer straight into a new pooled message, null if it does not fit a cell or cannot be encrypted
+    static ByteBuffer seal(AES.Mode mode, SecretKey key, ByteBuffer plain, int cellSize) {
+        int size = AES.encryptedSize(mode, plain.remaining());
+        if (cellSize > 0 && LENGTH_SIZE + size > cellSize) return null;
+
+        ByteBuffer message = BufferPool.acquire(cellSize == 0 ? size : cellSize);
+        if (cellSize > 0) {
+            message.putInt(size);
+            Arrays.fill(message.array(), LENGTH_SIZE + size, cellSize, (byte) 0);
+        }
+        if (AES.encrypt(mode, key, plain, message) == -1) {
+            BufferPool.release(message);
+            return null;
+        }
+        return message.position(0);
+    }
+
+    // Largest response chunk the exit node can put into one message
+    static int maxResponseChunkSize(NodeConfig config) {
+        int cellSize = config.getCellSize();
+        if (cellSize == 0) return config.getStreamChunkSize();
+
+        int chunkSize = cellSize - LENGTH_SIZE - FIXED_HEADER_SIZE - MAX_HOPS * AES.maxEncryptedSize(config.getCipherMode(), 0);
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Cells of " + cellSize + " bytes leave no room for a response chunk");
+        }
+        return Math.min(config.getStreamChunkSize(), chunkSize);
+    }
+}
@@ -0,0 +1,293 @@
+package com.github.kiiril;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Sends GET requests through pooled circuits and completes a future with every response. Requests in flight are
+// kept in a correlation table by session and stream id; the session's stream puts the response chunks back
+// together and completes the request's future once the last one has been decrypted. At most
+// maxConcurrentRequests requests are in flight, the rest wait in a queue. A request that times out or whose
+// future is cancelled gives up its stream, chunks of it that still arrive are dropped.
+public class OnionClient {
+    private static final Logger logger = LogManager.getLogger();
+    // chunks of a response that may overtake others before the request is given up
+    private static final int MAX_PENDING_CHUNKS = 64;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final CircuitPool circuitPool;
+    private final PeerConnectionManager manager;
+    // building a circuit and waiting for flow control credits must not hold up the caller
+    private final ExecutorService senders;
+    private final ScheduledExecutorService timeouts;
+    private final long defaultTimeoutMillis;
+    private final int defaultMaxResponseBytes;
+    private final int maxConcurrentRequests;
+
+    private final Map<Long, PendingRequest> inFlight = new ConcurrentHashMap<>();
+    private final Queue<PendingRequest> pendingRequests = new ConcurrentLinkedQueue<>();
+    // slots taken by started requests, a request holds its slot from leaving the queue until its future completes
+    private final AtomicInteger slotsTaken = new AtomicInteger();
+    private volatile boolean closed;
+
+    public OnionClient(PeerConnectionManager manager, NodeConfig config) {
+        this.manager = manager;
+        this.circuitPool = manager.getCircuitPool();
+        this.senders = Executors.newCachedThreadPool(new NamedThreadFactory(config.getNodeName(), "client-sender"));
+        this.timeouts = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(config.getNodeName(), "client-timeout"));
+        this.defaultTimeoutMillis = config.getClientRequestTimeoutMillis();
+        this.defaultMaxResponseBytes = config.getClientMaxResponseBytes();
+        this.maxConcurrentRequests = config.getClientMaxConcurrentRequests();
+    }
+
+    public CompletableFuture<Response> send(String url) {
+        return send(url, new RequestOptions());
+    }
+
+    // The future fails with a TimeoutException once the request's timeout has passed, with an IOException if the
+    // link to one of the circuit's routers closes, the exit node could not fetch the url (the origin did not answer
+    // 200 or the body broke off), the response is too large or its sink fails, and cancelling it
+    // drops the request. A circuit that breaks further along, between two routers, is only noticed by the timeout.
+    // The future also fails if the request cannot be sent at all. A sink of a request that fails is aborted.
+    public CompletableFuture<Response> send(String url, RequestOptions options) {
+        PendingRequest request = new PendingRequest(url,
+                options.getMaxResponseBytes() > 0 ? options.getMaxResponseBytes() : defaultMaxResponseBytes, options.getSink());
+        if (closed) {
+            request.response.completeExceptionally(new IllegalStateException("The client is shut down"));
+            return request.response;
+        }
+
+        long timeoutMillis = options.getTimeoutMillis() > 0 ? options.getTimeoutMillis() : defaultTimeoutMillis;
+        ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+            if (request.response.completeExceptionally(new TimeoutException("No response for " + url + " within " + timeoutMillis + " ms"))) {
+                Metrics.CLIENT_TIMEOUTS.increment();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        request.response.whenComplete((response, e) -> {
+            timeout.cancel(false);
+            finish(request);
+        });
+
+        pendingRequests.add(request);
+        startPendingRequests();
+        return request.response;
+    }
+
+    private void startPendingRequests() {
+        while (!pendingRequests.isEmpty()) {
+            int taken = slotsTaken.get();
+            if (taken >= maxConcurrentRequests) return;
+            if (!slotsTaken.compareAndSet(taken, taken + 1)) continue;
+
+            PendingRequest request = pendingRequests.poll();
+            if (request == null) {
+                slotsTaken.decrementAndGet();
+                continue;
+            }
+            // the future may complete at any time from here on, finish gives the slot back exactly once
+            request.holdsSlot.set(true);
+            if (request.response.isDone()) {
+                finish(request);
+                continue;
+            }
+            try {
+                senders.execute(() -> start(request));
+            } catch (RejectedExecutionException e) {
+                request.response.completeExceptionally(new IllegalStateException("The client is shut down"));
+            }
+        }
+    }
+
+    // Runs on a sender thread, nothing may escape from it or the request would wait for its timeout
+    private void start(PendingRequest request) {
+        try {
+            sendOnCircuit(request);
+        } catch (IOException | RuntimeException e) {
+            request.response.completeExceptionally(e);
+        }
+    }
+
+    private void sendOnCircuit(PendingRequest request) throws IOException {
+        Circuit circuit;
+        int streamId;
+        do {
+            // another request may take the last stream of a circuit in the meantime
+            circuit = circuitPool.acquire();
+            streamId = circuit == null ? 0 : circuit.openStream();
+        } while (streamId == -1);
+        if (circuit == null) {
+            request.response.completeExceptionally(new IllegalStateException("No active peers to build a circuit through"));
+            return;
+        }
+
+        // registered before the request leaves, so the first chunk of the response finds it
+        if (!request.attach(circuit.getSession(), streamId)) return;
+        if (closed) {
+            // shutdown may have gone over the table before the request was in it
+            request.response.completeExceptionally(new IllegalStateException("The client is shut down"));
+            return;
+        }
+        manager.sendStream(circuit, streamId, new ByteArrayInputStream(request.url.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void finish(PendingRequest request) {
+        request.detach();
+        if (request.holdsSlot.compareAndSet(true, false)) {
+            slotsTaken.decrementAndGet();
+            startPendingRequests();
+        } else {
+            pendingRequests.remove(request);
+        }
+    }
+
+    // Requests that did not complete yet fail
+    public void shutdown() {
+        closed = true;
+        IllegalStateException shutDown = new IllegalStateException("The client is shut down");
+        PendingRequest request;
+        while ((request = pendingRequests.poll()) != null) {
+            request.response.completeExceptionally(shutDown);
+        }
+        for (PendingRequest running : inFlight.values()) {
+            running.response.completeExceptionally(shutDown);
+        }
+        senders.shutdownNow();
+        timeouts.shutdownNow();
+    }
+
+    public int getRequestsInFlight() {
+        return slotsTaken.get();
+    }
+
+    public int getPendingRequests() {
+        return pendingRequests.size();
+    }
+
+    private static long key(int sessionId, int streamId) {
+        return (long) sessionId << 32 | (streamId & 0xffffffffL);
+    }
+
+    private class PendingRequest {
+        private final String url;
+        private final int maxResponseBytes;
+        private final RequestOptions.SinkFactory sinkFactory;
+        private final long startNanos = System.nanoTime();
+        private final CompletableFuture<Response> response = new CompletableFuture<>();
+        private final AtomicBoolean holdsSlot = new AtomicBoolean();
+        // set once the request has a stream, guarded by this
+        private Session session;
+        private int streamId;
+
+        PendingRequest(String url, int maxResponseBytes, RequestOptions.SinkFactory sinkFactory) {
+            this.url = url;
+            this.maxResponseBytes = maxResponseBytes;
+            this.sinkFactory = sinkFactory;
+        }
+
+        // Registers the request for the responses of the stream, false if it completed in the meantime
+        synchronized boolean attach(Session session, int streamId) {
+            if (response.isDone()) return false;
+            this.session = session;
+            this.streamId = streamId;
+            inFlight.put(key(session.getSessionId(), streamId), this);
+            StreamSink sink = sinkFactory == null
+                    ? new MemoryStreamSink(maxResponseBytes, body -> complete(body, body.length), this::aborted)
+                    : new ForwardingSink(this, sinkFactory.create(session.getSessionId(), streamId));
+            session.getStream(streamId, () -> new StreamAssembler(sink, MAX_PENDING_CHUNKS));
+            return true;
+        }
+
+        // Called on the worker thread that decrypted the last chunk or on the sink's thread, the caller's callbacks run elsewhere
+        private void complete(byte[] body, long bodySize) {
+            long latencyNanos = System.nanoTime() - startNanos;
+            Metrics.CLIENT_REQUEST.record(latencyNanos);
+            Response complete = new Response(url, session.getSessionId(), streamId, body, bodySize, latencyNanos);
+            try {
+                response.completeAsync(() -> complete, senders);
+            } catch (RejectedExecutionException e) {
+                // shut down, the request has failed already
+            }
+        }
+
+        private void fail(Throwable e) {
+            try {
+                senders.execute(() -> response.completeExceptionally(e));
+            } catch (RejectedExecutionException rejected) {
+                response.completeExceptionally(e);
+            }
+        }
+
+        private void aborted() {
+            fail(new IOException("Response for streamId=" + streamId + " was aborted, the exit node may have failed to fetch " + url));
+        }
+
+        // A request that failed gives up its stream, so its sink is aborted
+        synchronized void detach() {
+            if (session == null) return;
+            inFlight.remove(key(session.getSessionId(), streamId));
+            StreamAssembler stream = session.getStream(streamId);
+            session.removeStream(streamId);
+            if (stream != null && response.isCompletedExceptionally()) {
+                try {
+                    stream.abort();
+                } catch (IOException e) {
+                    logger.warn("Cannot abort streamId={} of session id={}: {}", streamId, session.getSessionId(), e.getMessage());
+                }
+            }
+            logger.debug("Request with streamId={} of session id={} is done", streamId, session.getSessionId());
+        }
+    }
+
+    // Passes the response on to the caller's sink up to the request's limit, the request completes once the sink is done
+    private static class ForwardingSink implements StreamSink {
+        private final PendingRequest request;
+        private final StreamSink sink;
+        private long size;
+
+        ForwardingSink(PendingRequest request, StreamSink sink) {
+            this.request = request;
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(byte[] chunk) throws IOException {
+            if (size + chunk.length > request.maxResponseBytes) {
+                IOException tooLarge = new IOException("Stream exceeds the limit of " + request.maxResponseBytes + " bytes");
+                request.fail(tooLarge);
+                throw tooLarge;
+            }
+            size += chunk.length;
+            sink.write(chunk);
+        }
+
+        @Override
+        public CompletableFuture<Void> written() {
+            return sink.written();
+        }
+
+        @Override
+        public void close() throws IOException {
+            sink.close();
+            sink.completion().whenComplete((done, e) -> {
+                if (e == null) request.complete(EMPTY, size);
+                else request.fail(e);
+            });
+        }
+
+        @Override
+        public void abort() throws IOException {
+            try {
+                sink.abort();
+            } finally {
+                request.aborted();
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.kiiril;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Frames waiting to be written to a link. Any thread may add frames, a single writer drains them in batches.
+// The queue is bounded in bytes, counted until the writer reports them written: above the high watermark the link reports itself as not writable until the
+// writer has brought it below the low watermark, frames that would exceed the limit are rejected.
+public class OutboundQueue {
+    private final BlockingQueue<ByteBuffer> frames = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final long maxBytes;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final Consumer<Boolean> writabilityListener;
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+
+    private final AtomicLong peakQueuedBytes = new AtomicLong();
+    private final LongAdder rejectedFrames = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedFrames = new LongAdder();
+    private final LongAdder flushedBytes = new LongAdder();
+
+    OutboundQueue(long maxBytes, Consumer<Boolean> writabilityListener) {
+        this.maxBytes = maxBytes;
+        this.highWatermark = maxBytes / 2;
+        this.lowWatermark = maxBytes / 4;
+        this.writabilityListener = writabilityListener;
+    }
+
+    // Returns false if the frame was rejected because the queue is full, a frame always fits into an empty queue
+    boolean offer(ByteBuffer frame) {
+        return offer(frame, false);
+    }
+
+    // Control frames are queued even above the limit, they are small and the other side may wait for them
+    boolean offer(ByteBuffer frame, boolean control) {
+        long size = frame.remaining();
+        long queued = queuedBytes.addAndGet(size);
+        if (queued > maxBytes && queued != size && !control) {
+            queuedBytes.addAndGet(-size);
+            rejectedFrames.increment();
+            return false;
+        }
+
+        frames.add(frame);
+        peakQueuedBytes.accumulateAndGet(queued, Math::max);
+        if (queued >= highWatermark && writable.compareAndSet(true, false)) {
+            writabilityListener.accept(false);
+        }
+        return true;
+    }
+
+    // Moves queued frames into batch from offset on, returns how many were moved
+    int drainTo(ByteBuffer[] batch, int offset) {
+        int count = 0;
+        ByteBuffer frame;
+        while (offset + count < batch.length && (frame = frames.poll()) != null) {
+            batch[offset + count++] = frame;
+        }
+        return count;
+    }
+
+    // Waits for the next frame, null if none arrived within the timeout
+    ByteBuffer poll(long timeoutMillis) throws InterruptedException {
+        return frames.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Called by the writer after every write with the frames it completed and the bytes it wrote
+    void recordFlush(int completedFrames, long writtenBytes) {
+        flushes.increment();
+        flushedFrames.add(completedFrames);
+        flushedBytes.add(writtenBytes);
+
+        long queued = queuedBytes.addAndGet(-writtenBytes);
+        if (queued <= lowWatermark && writable.compareAndSet(false, true)) {
+            writabilityListener.accept(true);
+        }
+    }
+
+    void clear() {
+        frames.clear();
+        queuedBytes.set(0);
+    }
+
+    public boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    public int getQueuedFrames() {
+        return frames.size();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getPeakQueuedBytes() {
+        return peakQueuedBytes.get();
+    }
+
+    public long getRejectedFrames() {
+        return rejectedFrames.sum();
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    public long getFlushedFrames() {
+        return flushedFrames.sum();
+    }
+
+    public long getFlushedBytes() {
+        return flushedBytes.sum();
+    }
+}
@@ -6,225 +6,532 @@ import org.apache.logging.log4j.Logger;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
-import java.math.BigInteger;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
-
-import static com.github.kiiril.PeerConnectionManager.HOST_IP;
-import static com.github.kiiril.PeerConnectionManager.LISTEN_PORT;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class PeerConnection {
     private static final Logger logger = LogManager.getLogger();
+    private static final String LINK_KEY_INFO = "onion link key";
+    // chunks of a stream that may overtake others before the stream is given up
+    private static final int MAX_PENDING_CHUNKS = 64;
+    // weight of a new round trip time sample in the smoothed value, as for TCP's SRTT
+    private static final double RTT_SAMPLE_WEIGHT = 0.125;
+
+    // the remote IP until the peer's key establishment message tells the address it listens on
+    private volatile String address;
+    private final Link link;
+    // this node opened the link
+    private final boolean initiator;
 
-    private final String ip;
+    private final PeerConnectionManager connectionManager;
+    private final FrameCodec frameCodec;
+    private final AES.Mode cipherMode;
+    private final int cellSize;
+    private final NodeConfig.CircuitSetup circuitSetup;
+    private volatile SecretKey symmetricKey;
+    // the peer's long-lived public key from the link handshake, circuits through the peer agree on keys with it
+    private volatile byte[] peerPublicKey;
+    private final CompletableFuture<PeerConnection> sharedSecretEstablished = new CompletableFuture<>();
+
+    private final FlowControl flowControl;
+    // processes this link's messages in arrival order on the transport's shared executor
+    private final Executor messageProcessor;
+
+    // -1 until the first ping comes back
+    private volatile long rttNanos = -1;
+    // sessions the peer takes part in as of its last ping, and the number it advertised it can carry (0 if not)
+    private volatile int peerLoad;
+    private volatile int peerCapacity;
+    // last time a circuit used the link, links outside the active view are closed once idle for long
+    private volatile long lastCircuitUseNanos = System.nanoTime();
+    // live sessions of this node that go through the peer, as a hop or as a router of a circuit this node sends
+    // through, the link stays open while there are any even if no circuit frame crossed it for long
+    private final AtomicInteger liveSessions = new AtomicInteger();
+    // sessions of this node whose key the peer set up over this link, the key lives on the session
+    private final Set<Session> keyedSessions = ConcurrentHashMap.newKeySet();
+    private final LongAdder evictedSessionKeys = new LongAdder();
+
+    public PeerConnection(Link link, PeerConnectionManager connectionManager) {
+        this(link, connectionManager, true);
+    }
 
-    private BufferedReader input;
-    private BufferedWriter output;
+    public PeerConnection(Link link, PeerConnectionManager connectionManager, boolean initiator) {
+        this.link = link;
+        this.initiator = initiator;
+        this.connectionManager = connectionManager;
+        this.frameCodec = connectionManager.getFrameCodec();
+        this.cipherMode = connectionManager.getConfig().getCipherMode();
+        this.cellSize = connectionManager.getConfig().getCellSize();
+        this.circuitSetup = connectionManager.getConfig().getCircuitSetup();
+        this.messageProcessor = new SerialExecutor(connectionManager.getTransport().getMessageExecutor());
+        this.address = link.getRemoteIp();
+        this.flowControl = new FlowControl(connectionManager.getConfig(), this::sendEncryptedMessage);
+    }
 
-    private final PeerConnectionManager connectionManager;
-    private SecretKey symmetricKey;
+    // Both return false if the message was dropped because the link is closed or its outbound queue is full
+    public boolean sendMessage(Message message) {
+        return sendFrame(message, null, false);
+    }
 
-    private final Map<Integer, SecretKey> sessionKeys = new ConcurrentHashMap<>();
-    private final ExecutorService messageListenersHandler = Executors.newCachedThreadPool();
-    private final ExecutorService newConnectionsHandler = Executors.newCachedThreadPool();
+    public boolean sendEncryptedMessage(Message message) {
+        return sendFrame(message, symmetricKey, false);
+    }
 
-    public PeerConnection(Socket connection, PeerConnectionManager connectionManager) {
-        this.connectionManager = connectionManager;
-        this.ip = connection.getInetAddress().getHostAddress();
-        try {
-            input = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            output = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream()));
-        } catch (IOException e) {
-            logger.error("Cannot get input or output stream from Socket: {}", e.getMessage());
-        }
+    // SENDMEs bypass the outbound queue's limit, the peer's data waits for them
+    private void sendSendme(Message sendme) {
+        sendFrame(sendme, symmetricKey, true);
     }
 
-    public void sendMessage(String message) {
-        logger.info("Sending message: {} to {}", message, getIp());
-        try {
-            output.write(message);
-            output.newLine();
-            output.flush();
-        } catch (IOException e) {
-            logger.error("Cannot send the message to output stream: {}", e.getMessage());
+    private boolean sendFrame(Message message, SecretKey key, boolean control) {
+        long start = System.nanoTime();
+        ByteBuffer frame = frameCodec.encode(message, key);
+        Metrics.FRAME_ENCODE.recordSince(start);
+        // the onion of a data message is in the frame now, the buffer it came in can take the next one
+        BufferPool.release(pooledBuffer(message));
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending {} frame of {} bytes to {}", message.getType(), frame.remaining(), getAddress());
+        }
+        if (control ? link.writeControl(frame) : link.write(frame)) {
+            if (isCircuitMessage(message.getType())) lastCircuitUseNanos = System.nanoTime();
+            Metrics.FRAMES_SENT.increment();
+            return true;
         }
+
+        Metrics.FRAMES_DROPPED.increment();
+        logger.warn("Dropped {} frame to {}, the link is closed or its outbound queue is full", message.getType(), getAddress());
+        return false;
     }
 
-    public void sendEncryptedMessage(String message) {
-        String encryptedMessage = AES.encrypt(message, symmetricKey);
-        sendMessage(encryptedMessage);
+    // Sends a FORWARD or BACKWARD message once the circuit and the link have credits for it, the future
+    // completes when the message is handed to the link and fails if the link drops it or closes first
+    public CompletableFuture<Void> sendFlowControlled(int sessionId, Message message) {
+        return flowControl.send(sessionId, message);
     }
 
-    public void startReceivingMessages() {
-        // create a new thread for receiving messages from the peer
-        logger.info("Starting to receive messages from: {}", getIp());
-        messageListenersHandler.submit(new MessageReceiver());
+    // A data message of the circuit that came over this link was forwarded or delivered, the peer gets credits back
+    public void consumed(int sessionId) {
+        Message sendme = flowControl.onConsumed(sessionId);
+        if (sendme != null) sendSendme(sendme);
     }
 
-    public void establishSharedSecret() {
-        logger.info("Starting to establish shared secret with {}", getIp());
+    public void removeCircuit(int sessionId) {
+        flowControl.remove(sessionId);
+    }
 
-        // Send my DH public key
-        String publicKey = DH.getPublicKey().toString();
-        SymmetricKeyEstablishmentMessage message = new SymmetricKeyEstablishmentMessage(publicKey);
-        String jsonMessage = Util.messageToJson(message);
+    public long getFlowBlockedMessages() {
+        return flowControl.getBlockedMessages();
+    }
 
-        sendMessage(jsonMessage);
-        logger.info("Sent my public key to {}", getIp());
+    public long getFlowBlockedNanos() {
+        return flowControl.getBlockedNanos();
+    }
 
-        // Receive and handle peer's DH public key
-        String receivedJsonMessage;
-        try {
-            receivedJsonMessage = input.readLine();
-            logger.info("Received public key from {}", getIp());
-        } catch (IOException e) {
-            logger.error("Cannot receive the public key from {} during key establishment {}", getIp(), e.getMessage());
-            return;
-        }
+    public int getFlowQueuedMessages() {
+        return flowControl.getQueuedMessages();
+    }
+
+    // Measures the round trip time, the peer answers with its own load
+    public void sendPing() {
+        if (symmetricKey == null) return;
+        sendEncryptedMessage(new PingMessage(System.nanoTime(), false, connectionManager.getLoad()));
+    }
+
+    private static ByteBuffer pooledBuffer(Message message) {
+        if (message.getType() == MessageType.FORWARD_MESSAGE) return ((ForwardMessage) message).getBuffer();
+        if (message.getType() == MessageType.BACKWARD_MESSAGE) return ((BackwardMessage) message).getBuffer();
+        return null;
+    }
+
+    private static boolean isCircuitMessage(MessageType type) {
+        return type == MessageType.FORWARD_MESSAGE || type == MessageType.BACKWARD_MESSAGE
+                || type == MessageType.SESSION_KEY_ESTABLISHMENT;
+    }
+
+    public long getIdleNanos() {
+        return System.nanoTime() - lastCircuitUseNanos;
+    }
+
+    void addSession() {
+        liveSessions.incrementAndGet();
+    }
+
+    void removeSession() {
+        liveSessions.decrementAndGet();
+    }
+
+    public boolean hasLiveSessions() {
+        return liveSessions.get() > 0;
+    }
 
-        SymmetricKeyEstablishmentMessage receivedMessage = (SymmetricKeyEstablishmentMessage) Util.jsonToMessage(receivedJsonMessage);
+    void addKeyedSession(Session session) {
+        keyedSessions.add(session);
+    }
 
-        logger.info("{} public key: {}", getIp(), receivedMessage.getBody());
+    void removeKeyedSession(Session session) {
+        keyedSessions.remove(session);
+    }
 
-        if (receivedMessage.getType() != MessageType.SYMMETRIC_KEY_ESTABLISHMENT) {
-            logger.warn("Unexpected message type during key establishment");
-            return;
+    // The least recently used session keyed over this link, null if there is none
+    Session getIdlestKeyedSession() {
+        Session idlest = null;
+        for (Session session : keyedSessions) {
+            if (idlest == null || session.getLastAccessNanos() - idlest.getLastAccessNanos() < 0) idlest = session;
         }
+        return idlest;
+    }
+
+    void onSessionKeyEvicted() {
+        evictedSessionKeys.increment();
+    }
 
-        BigInteger otherPublicKey = new BigInteger(receivedMessage.getBody());
-        BigInteger sharedSecret = DH.generateSharedSecret(otherPublicKey);
-        setSymmetricKey(sharedSecret);
+    public int getSessionKeyCount() {
+        return keyedSessions.size();
+    }
+
+    public long getEvictedSessionKeyCount() {
+        return evictedSessionKeys.sum();
+    }
+
+    // Smoothed round trip time in nanoseconds, -1 if not measured yet
+    public long getRttNanos() {
+        return rttNanos;
+    }
+
+    public int getPeerLoad() {
+        return peerLoad;
+    }
 
-        logger.info("Symmetric key established with {}", getIp());
+    public int getPeerCapacity() {
+        return peerCapacity;
+    }
+
+    // False while the link's outbound queue is above its high watermark, senders should hold back
+    public boolean isWritable() {
+        return link.isWritable();
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return link.getOutboundQueue();
+    }
+
+    // Completes once the peer's public key has arrived, messages are received from then on. A peer that does not
+    // answer within onion.handshakeKeyTimeoutMillis has its link closed.
+    public CompletableFuture<PeerConnection> establishSharedSecret() {
+        logger.info("Starting to establish shared secret with {}", getAddress());
+
+        long start = System.nanoTime();
+        sharedSecretEstablished.orTimeout(connectionManager.getConfig().getHandshakeKeyTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((peerConnection, e) -> {
+                    if (e == null) {
+                        Metrics.HANDSHAKE.recordSince(start);
+                        return;
+                    }
+                    Metrics.HANDSHAKE_FAILURES.increment();
+                    if (e instanceof TimeoutException) {
+                        Metrics.HANDSHAKE_TIMEOUTS.increment();
+                        logger.warn("{} did not send its public key in time, closing the link", getAddress());
+                        link.close();
+                    }
+                });
+        link.start(new MessageReceiver());
+
+        // Send my key exchange public key
+        String publicKey = Base64.getEncoder().encodeToString(connectionManager.getKeyExchange().getPublicKey());
+        SymmetricKeyEstablishmentMessage message = new SymmetricKeyEstablishmentMessage(publicKey, connectionManager.getAddress());
+
+        sendMessage(message);
+        logger.info("Sent my public key to {}", getAddress());
+
+        return sharedSecretEstablished;
+    }
+
+    public void close() {
+        link.close();
+    }
 
-        startReceivingMessages();
+    public boolean isOpen() {
+        return link.isOpen();
     }
 
-    private void setSymmetricKey(BigInteger sharedSecret) {
-        symmetricKey = AES.generateKey(sharedSecret);
+    private void setSymmetricKey(byte[] sharedSecret) {
+        symmetricKey = AES.deriveKey(sharedSecret, LINK_KEY_INFO);
     }
 
     public SecretKey getSymmetricKey() {
         return symmetricKey;
     }
 
-    public void addSessionKey(int sessionId, SecretKey sessionKey) {
-        logger.info("(Sender) Save session key for {} with sessionId={} and sessionKey={}", getIp(), sessionId, sessionKey.toString());
-        sessionKeys.put(sessionId, sessionKey);
+    // host:port the peer listens on, the id of the peer everywhere in the network
+    public String getAddress() {
+        return address;
     }
 
-    public SecretKey getSessionKey(int sessionId) {
-        logger.info("Get session key for {} with sessionId={} and sessionKey={}", getIp(), sessionId, sessionKeys.get(sessionId).toString());
-        return sessionKeys.get(sessionId);
+    public byte[] getPeerPublicKey() {
+        return peerPublicKey;
     }
 
-    public String getIp() {
-        return ip;
+    public boolean isInitiator() {
+        return initiator;
     }
 
-    private class MessageReceiver implements Runnable {
+    // Address of this node as its peers know it
+    public String getLocalAddress() {
+        return connectionManager.getAddress();
+    }
+
+    private class MessageReceiver implements LinkHandler {
+        @Override
+        public void onData(ByteBuffer buffer) throws ProtocolException {
+            ByteBuffer frame;
+            while ((frame = frameCodec.readFrame(buffer)) != null) {
+                Metrics.FRAMES_RECEIVED.increment();
+                ByteBuffer receivedFrame = frame;
+                messageProcessor.execute(() -> process(receivedFrame));
+            }
+        }
+
         @Override
-        public void run() {
-            String receivedJsonMessage;
+        public void onWritabilityChanged(boolean writable) {
+            logger.info("Link to {} is {}", getAddress(), writable ? "writable again" : "backed up");
+        }
+
+        @Override
+        public void onClosed() {
+            sharedSecretEstablished.completeExceptionally(new IllegalStateException("Link to " + getAddress() + " was closed"));
+            flowControl.close();
+            connectionManager.removePeerConnection(PeerConnection.this);
+        }
+
+        private void process(ByteBuffer frame) {
             try {
-                while ((receivedJsonMessage = input.readLine()) != null) {
-                    logger.info("Received message: {}", receivedJsonMessage);
-
-                    String decryptedText = AES.decrypt(receivedJsonMessage, symmetricKey);
-
-                    logger.info("Successfully decrypted outer layer");
-
-                    Message receivedMessage = Util.jsonToMessage(decryptedText);
-                    MessageType type = receivedMessage.getType();
-
-                    if (type == MessageType.DISCOVERY) {
-                        logger.info("Received discovery message");
-                        processDiscoveryMessage(receivedMessage);
-                    } else if (type == MessageType.FORWARD_MESSAGE) {
-                        logger.info("Received forward message");
-                        processForwardMessage(receivedMessage);
-                    } else if (type == MessageType.BACKWARD_MESSAGE) {
-                        logger.info("Received backward message");
-                        processBackwardMessage(receivedMessage);
-                    } else if (type == MessageType.SESSION_KEY_ESTABLISHMENT) {
-                        logger.info("Received session key establishment message");
-                        processSessionKeyEstablishmentMessage(receivedMessage);
-                    } else {
-                        logger.warn("Unexpected message type");
-                    }
+                if (symmetricKey == null) {
+                    processSymmetricKeyEstablishmentMessage(frameCodec.decode(frame, null));
+                    return;
                 }
-            } catch (IOException e) {
-                logger.error("Cannot receive the message from {}'s input stream: {}", getIp(), e.getMessage());
+
+                long start = System.nanoTime();
+                Message receivedMessage = frameCodec.decode(frame, symmetricKey);
+                Metrics.FRAME_DECODE.recordSince(start);
+
+                MessageType type = receivedMessage.getType();
+                if (isCircuitMessage(type)) lastCircuitUseNanos = System.nanoTime();
+                if (type == MessageType.FORWARD_MESSAGE || type == MessageType.BACKWARD_MESSAGE) {
+                    // the link window only covers messages waiting to be processed, circuits cover the rest
+                    Message sendme = flowControl.onReceived();
+                    if (sendme != null) sendSendme(sendme);
+                }
+
+                if (type == MessageType.DISCOVERY) {
+                    processDiscoveryMessage((DiscoveryMessage) receivedMessage);
+                } else if (type == MessageType.NEIGHBOR) {
+                    connectionManager.getMembership().onNeighbor(PeerConnection.this, (NeighborMessage) receivedMessage);
+                } else if (type == MessageType.FORWARD_MESSAGE) {
+                    start = System.nanoTime();
+                    processForwardMessage(receivedMessage);
+                    Metrics.FORWARD_HOP.recordSince(start);
+                } else if (type == MessageType.BACKWARD_MESSAGE) {
+                    start = System.nanoTime();
+                    processBackwardMessage(receivedMessage);
+                    Metrics.BACKWARD_HOP.recordSince(start);
+                } else if (type == MessageType.SESSION_KEY_ESTABLISHMENT) {
+                    logger.info("Received session key establishment message");
+                    processSessionKeyEstablishmentMessage(receivedMessage);
+                } else if (type == MessageType.SENDME) {
+                    flowControl.onSendme(((SendmeMessage) receivedMessage).getSessionId());
+                } else if (type == MessageType.PING) {
+                    processPingMessage((PingMessage) receivedMessage);
+                } else {
+                    logger.warn("Unexpected message type");
+                }
+            } catch (ProtocolException e) {
+                logger.error("Cannot decode the message from {}: {}", getAddress(), e.getMessage());
+                close();
+            } catch (RuntimeException e) {
+                logger.error("Cannot process the message from {}", getAddress(), e);
             }
         }
 
-        private void processDiscoveryMessage(Message receivedMessage) {
-            DiscoveryMessage discoveryMessage = (DiscoveryMessage) receivedMessage;
-            Set<String> newPossibleIps = Util.stringToSet(discoveryMessage.getBody());
-            logger.info("New possible peers: {}", newPossibleIps);
+        private void processSymmetricKeyEstablishmentMessage(Message receivedMessage) {
+            if (receivedMessage.getType() != MessageType.SYMMETRIC_KEY_ESTABLISHMENT) {
+                logger.warn("Unexpected message type during key establishment");
+                close();
+                return;
+            }
 
-            for (String newIp : newPossibleIps) {
-                if (!connectionManager.getActiveIps().contains(newIp) && !newIp.equals(HOST_IP)) {
-                    logger.info("New peer found: {}", newIp);
-                    try {
-                        PeerConnection peerConnection = new PeerConnection(new Socket(newIp, LISTEN_PORT), connectionManager);
+            SymmetricKeyEstablishmentMessage keyMessage = (SymmetricKeyEstablishmentMessage) receivedMessage;
+            logger.debug("Received the public key of {}", getAddress());
+            if (keyMessage.getAddress() != null) address = keyMessage.getAddress();
 
-                        newConnectionsHandler.submit(() ->{
-                            peerConnection.establishSharedSecret();
-                            connectionManager.addPeerConnection(peerConnection);
-                        }); // we want to receive messages from peer and not be blocked while establishing secret with other peers
+            try {
+                byte[] otherPublicKey = Base64.getDecoder().decode(keyMessage.getBody());
+                setSymmetricKey(connectionManager.getKeyExchange().generateSharedSecret(otherPublicKey));
+                peerPublicKey = otherPublicKey;
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid public key from {}: {}", getAddress(), e.getMessage());
+                close();
+                return;
+            }
 
-                    } catch (IOException e) {
-                        logger.error("Cannot create a Socket for a new peer ({})", newIp);
-                    }
-                }
+            logger.info("Symmetric key established with {}", getAddress());
+            sharedSecretEstablished.complete(PeerConnection.this);
+        }
+
+        private void processPingMessage(PingMessage ping) {
+            peerLoad = ping.getLoad();
+            if (!ping.isReply()) {
+                sendEncryptedMessage(new PingMessage(ping.getTimestampNanos(), true, connectionManager.getLoad()));
+                return;
+            }
+
+            long sample = System.nanoTime() - ping.getTimestampNanos();
+            if (sample < 0) return;
+            Metrics.LINK_RTT.record(sample);
+            long rtt = rttNanos;
+            rttNanos = rtt < 0 ? sample : Math.round(rtt + RTT_SAMPLE_WEIGHT * (sample - rtt));
+        }
+
+        private void processDiscoveryMessage(DiscoveryMessage discoveryMessage) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Received discovery message from {}: joined={}, left={}", getAddress(),
+                        discoveryMessage.getJoined(), discoveryMessage.getLeft());
             }
+            if (discoveryMessage.getCapacity() > 0) peerCapacity = discoveryMessage.getCapacity();
+            connectionManager.getMembership().onDiscovery(PeerConnection.this, discoveryMessage);
         }
 
         private void processForwardMessage(Message receivedMessage) {
             ForwardMessage forwardMessage = (ForwardMessage) receivedMessage;
 
-            Session session = connectionManager.getSession(forwardMessage.getSessionId());
-            String decryptedJsonMessage = AES.decrypt(forwardMessage.getBody(), session.getMySessionKey());
-            Layer decryptedMessage = (Layer) Util.jsonToMessage(decryptedJsonMessage);
+            ByteBuffer ciphertext = OnionCell.ciphertext(forwardMessage.getBody(), cellSize);
+            Session session = ciphertext == null ? null : getOrCreateSession(forwardMessage.getSessionId(), ciphertext);
+            if (session == null) {
+                logger.warn("Dropping a layer of sessionId={} from {}, the session is unknown or the layer is malformed",
+                        forwardMessage.getSessionId(), getAddress());
+                BufferPool.release(forwardMessage.getBuffer());
+                return;
+            }
+            flowControl.open(forwardMessage.getSessionId());
+            ByteBuffer plain = OnionCell.decrypt(cipherMode, session.getMySessionKey(), ciphertext);
+            Layer decryptedMessage = plain == null ? null : OnionCell.readLayer(plain);
+            if (decryptedMessage == null) {
+                logger.warn("Dropping a malformed layer of sessionId={} from {}", forwardMessage.getSessionId(), getAddress());
+                BufferPool.release(forwardMessage.getBuffer());
+                consumed(forwardMessage.getSessionId());
+                return;
+            }
 
-            logger.info("Successfully decrypted layer of encrypted message and get sessionId={}, previousPeer={}, nextPeer={}", forwardMessage.getSessionId(), decryptedMessage.getPreviousPeer(), decryptedMessage.getNextPeer());
+            if (logger.isDebugEnabled()) {
+                logger.debug("Decrypted layer of sessionId={}, previousPeer={}, nextPeer={}", forwardMessage.getSessionId(),
+                        decryptedMessage.getPreviousPeer(), decryptedMessage.getNextPeer());
+            }
 
-            String previousPeerIp = decryptedMessage.getPreviousPeer();
-            PeerConnection previousPeerConnection = connectionManager.getActivePeerConnection(previousPeerIp);
+            // the message came over this link, so its peer is the previous hop
+            PeerConnection previousPeerConnection = PeerConnection.this;
             session.setPreviousPeer(previousPeerConnection);
 
-            logger.info("Set previous peer {} for sessionId={}", previousPeerConnection.getIp(), forwardMessage.getSessionId());
-
             String nextPeerIp = decryptedMessage.getNextPeer();
 
             if (nextPeerIp == null) {
-                logger.info("I am the last peer in the chain with message: {}", decryptedMessage.getBody());
-
-                String response = Util.makeRequest(decryptedMessage.getBody());
+                int streamId = decryptedMessage.getStreamId();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("I am the last peer in the chain with chunk {} of streamId={}", decryptedMessage.getSequence(), streamId);
+                }
 
-                Layer layer = new Layer(response, null, null);
-                String jsonMessage = Util.messageToJson(layer);
-                String encryptedLayer = AES.encrypt(jsonMessage, session.getMySessionKey());
+                // the request is made once all of its chunks are there
+                int maxRequestSize = connectionManager.getConfig().getMaxFrameSize();
+                StreamAssembler request = session.getStream(streamId, () -> new StreamAssembler(
+                        new MemoryStreamSink(maxRequestSize, payload -> makeRequest(session, streamId, new String(payload, StandardCharsets.UTF_8))),
+                        MAX_PENDING_CHUNKS));
+                CompletableFuture<Void> written = acceptChunk(session, request, decryptedMessage);
+                BufferPool.release(forwardMessage.getBuffer());
+                written.thenRun(() -> consumed(forwardMessage.getSessionId()));
+            } else {
+                logger.debug("Forward the message to the next peer in the chain: {}", nextPeerIp);
+
+                // the inner layer goes on in the buffer it arrived in, decrypted in place
+                int sessionId = forwardMessage.getSessionId();
+                ByteBuffer innerLayer = OnionCell.toMessage(decryptedMessage.getBody(), cellSize);
+                ForwardMessage message = new ForwardMessage(sessionId, innerLayer, forwardMessage.getBuffer());
+                // the next hop may be outside the active view, the link to it is opened on first use
+                connectionManager.linkTo(nextPeerIp)
+                        .thenCompose(nextPeerConnection -> {
+                            session.setNextPeer(nextPeerConnection);
+                            // the previous peer gets its credit back once the next one has taken the message
+                            return nextPeerConnection.sendFlowControlled(sessionId, message);
+                        })
+                        .whenComplete((sent, e) -> {
+                            if (e == null) consumed(sessionId);
+                            else logger.warn("Cannot forward a message of sessionId={} to {}: {}", sessionId, nextPeerIp, e.getMessage());
+                        });
+            }
+        }
 
-                logger.info("Encrypted response with the sessionKey={}", session.getMySessionKey());
+        // With the ONION circuit setup the layer starts with an ephemeral key, the first message of a circuit that
+        // gets here sets up the session and later ones find it. Null if there is no session for the layer.
+        private Session getOrCreateSession(int sessionId, ByteBuffer ciphertext) {
+            Session session = connectionManager.getSession(sessionId);
+            if (circuitSetup != NodeConfig.CircuitSetup.ONION) return session;
 
-                BackwardMessage backwardMessage = new BackwardMessage(forwardMessage.getSessionId(), encryptedLayer);
-                String jsonBackwardMessage = Util.messageToJson(backwardMessage);
-                previousPeerConnection.sendEncryptedMessage(jsonBackwardMessage);
+            byte[] ephemeralKey = OnionCell.getKey(ciphertext);
+            if (ephemeralKey == null) return null;
+            if (session == null && ephemeralKey.length > 0) {
+                session = connectionManager.createSessionWithKeyAgreement(sessionId, ephemeralKey, PeerConnection.this);
+            }
+            return session;
+        }
 
-                logger.info("Sent response to the previous peer in the chain");
-            } else {
-                logger.info("Forward the message to the next peer in the chain: {}", nextPeerIp);
+        // Streams the response back chunk by chunk, every chunk is encrypted and sent as soon as it arrives.
+        // The request runs on the exit client's threads, this link goes on with its other messages meanwhile.
+        private void makeRequest(Session session, int streamId, String url) {
+            if (logger.isDebugEnabled()) logger.debug("Making request for streamId={}", streamId);
+            PeerConnection previousPeerConnection = session.getPreviousPeer();
+
+            // a cached response is encrypted with this session's key like a fresh one
+            connectionManager.makeExitRequest(url, (chunk, sequence, last, failed) -> {
+                byte[] noHop = OnionCell.address(null);
+                ByteBuffer layer = ByteBuffer.allocate(OnionCell.headerSize(noHop, noHop) + chunk.length);
+                OnionCell.putHeader(layer, noHop, noHop, streamId, sequence, last, failed);
+                layer.put(chunk).flip();
+                ByteBuffer encryptedLayer = OnionCell.seal(cipherMode, session.getMySessionKey(), layer, cellSize);
+                if (encryptedLayer == null) {
+                    return CompletableFuture.failedFuture(new IOException("Cannot encrypt chunk " + sequence + " of streamId=" + streamId));
+                }
 
-                ForwardMessage message = new ForwardMessage(forwardMessage.getSessionId(), decryptedMessage.getBody());
-                String jsonMessage = Util.messageToJson(message);
-                PeerConnection nextPeerConnection = connectionManager.getActivePeerConnection(nextPeerIp);
+                BackwardMessage backwardMessage = new BackwardMessage(session.getSessionId(), encryptedLayer, encryptedLayer);
+                if (last && logger.isDebugEnabled()) {
+                    logger.debug("Sending the rest of the response for streamId={} to the previous peer in the chain", streamId);
+                }
+                return previousPeerConnection.sendFlowControlled(session.getSessionId(), backwardMessage);
+            });
+        }
 
-                nextPeerConnection.sendEncryptedMessage(jsonMessage);
+        // The chunk is copied out of its frame, the frame goes back to the pool afterwards. The future completes
+        // once the stream's sink has taken the chunk, the circuit's credit for it is given back then.
+        private CompletableFuture<Void> acceptChunk(Session session, StreamAssembler stream, Layer chunk) {
+            ByteBuffer body = chunk.getBody();
+            byte[] bytes = new byte[body.remaining()];
+            body.get(bytes);
+            try {
+                if (stream.accept(chunk.getSequence(), bytes, chunk.isLast(), chunk.isFailed())) {
+                    session.removeStream(chunk.getStreamId());
+                }
+                return stream.written();
+            } catch (IOException e) {
+                logger.error("Giving up streamId={} of session id={}: {}", chunk.getStreamId(), session.getSessionId(), e.getMessage());
+                session.removeStream(chunk.getStreamId());
+                try {
+                    stream.abort();
+                } catch (IOException abortException) {
+                    logger.warn("Cannot abort streamId={}: {}", chunk.getStreamId(), abortException.getMessage());
+                }
+                return Util.DONE;
             }
         }
 
@@ -232,34 +539,56 @@ public class PeerConnection {
             BackwardMessage backwardMessage = (BackwardMessage) receivedMessage;
 
             Session session = connectionManager.getSession(backwardMessage.getSessionId());
+            if (session == null) {
+                // expired or evicted while the response was on its way
+                logger.warn("Dropping a response of sessionId={} from {}, the session is unknown", backwardMessage.getSessionId(), getAddress());
+                BufferPool.release(backwardMessage.getBuffer());
+                return;
+            }
+            flowControl.open(backwardMessage.getSessionId());
             if (session.isSendingPeer()) {
-                logger.info("I am the sender and I received the response!");
-
-                String response = session.decryptLayers(backwardMessage.getBody());
+                Layer response = session.decryptLayers(backwardMessage.getBody());
+                if (response == null) {
+                    logger.warn("Dropping a malformed response of sessionId={}", backwardMessage.getSessionId());
+                    BufferPool.release(backwardMessage.getBuffer());
+                    consumed(backwardMessage.getSessionId());
+                    return;
+                }
+                // every router has its key now, later layers leave the ephemeral keys out
+                session.setEstablished();
+                int streamId = response.getStreamId();
 
-                logger.info("Decrypted response: {}", response);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Decrypted chunk {} of the response for streamId={}", response.getSequence(), streamId);
+                }
 
-                try (FileWriter fileWriter = new FileWriter(String.format("output/%s-response.html", backwardMessage.getSessionId()), false)) {
-                    fileWriter.write(response);
-                } catch (IOException e) {
-                    System.out.println("Cannot write the response to the file" + e);
+                // the client registered the stream when it sent the request, it is gone if the request timed out or was cancelled
+                StreamAssembler stream = session.getStream(streamId);
+                CompletableFuture<Void> written = Util.DONE;
+                if (stream != null) {
+                    written = acceptChunk(session, stream, response);
+                } else {
+                    logger.debug("Dropping chunk {} of streamId={}, no request waits for it", response.getSequence(), streamId);
                 }
+                BufferPool.release(backwardMessage.getBuffer());
+                int sessionId = backwardMessage.getSessionId();
+                written.thenRun(() -> consumed(sessionId));
             } else {
-                logger.info("I am not the sender and I need to forward the message to previous peer");
-
-                Layer layer = new Layer(backwardMessage.getBody(), null, null);
-                String jsonMessage = Util.messageToJson(layer);
-                String encryptedLayer = AES.encrypt(jsonMessage, session.getMySessionKey());
-
-                logger.info("Encrypted the message with my layer and sessionId={}, sessionKey={}", backwardMessage.getSessionId(), session.getMySessionKey());
-
-                BackwardMessage backwardMessageToSend = new BackwardMessage(backwardMessage.getSessionId(), encryptedLayer);
-                String jsonBackwardMessage = Util.messageToJson(backwardMessageToSend);
+                // relays wrap the layer they got as a whole, only the exit node adds a header on the way back
+                int sessionId = backwardMessage.getSessionId();
+                ByteBuffer ciphertext = OnionCell.ciphertext(backwardMessage.getBody(), cellSize);
+                ByteBuffer encryptedLayer = ciphertext == null ? null : OnionCell.seal(cipherMode, session.getMySessionKey(), ciphertext, cellSize);
+                BufferPool.release(backwardMessage.getBuffer());
+                if (encryptedLayer == null) {
+                    logger.warn("Dropping a response of sessionId={} that cannot be wrapped", sessionId);
+                    consumed(sessionId);
+                    return;
+                }
+                BackwardMessage backwardMessageToSend = new BackwardMessage(sessionId, encryptedLayer, encryptedLayer);
                 PeerConnection previousPeerConnection = session.getPreviousPeer();
 
-                previousPeerConnection.sendEncryptedMessage(jsonBackwardMessage);
-
-                logger.info("Sent the message to the previous peer in the chain: {}", previousPeerConnection.getIp());
+                previousPeerConnection.sendFlowControlled(sessionId, backwardMessageToSend).thenRun(() -> consumed(sessionId));
+                logger.debug("Sent the message to the previous peer in the chain: {}", previousPeerConnection.getAddress());
             }
         }
 
@@ -269,7 +598,7 @@ public class PeerConnection {
             int sessionId = sessionKeyEstablishmentMessage.getSessionId();
             SecretKey sessionKey = new SecretKeySpec(Base64.getDecoder().decode(sessionKeyEstablishmentMessage.getSessionKey()), "AES");
 
-            connectionManager.createSessionWithKey(sessionId, sessionKey);
+            connectionManager.createSessionWithKey(sessionId, sessionKey, PeerConnection.this);
         }
     }
 }
@@ -1,164 +1,569 @@
 package com.github.kiiril;
 
-import com.github.kiiril.messages.DiscoveryMessage;
 import com.github.kiiril.messages.ForwardMessage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import javax.crypto.SecretKey;
+import javax.management.ObjectName;
 import java.io.IOException;
-import java.net.*;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class PeerConnectionManager {
     private static final Logger logger = LogManager.getLogger();
 
-    public static final String HOST_IP;
-    static {
-        try {
-            HOST_IP = InetAddress.getLocalHost().getHostAddress();
-        } catch (UnknownHostException e) {
-            logger.error("Cannot get host IP address", e);
-            throw new RuntimeException("Cannot get host IP address", e);
-        }
-    }
     private static final int NUM_PEERS_IN_CHAIN = 3;
-    private static final String BROADCASTER_IP = "172.17.0.2";
-    public static final int LISTEN_PORT = 80;
+    // longest wait for the links to the routers of a new circuit
+    private static final long CIRCUIT_LINK_TIMEOUT_MILLIS = 10_000;
+
+    private final NodeConfig config;
+    private final String address;
+    private final FrameCodec frameCodec;
+    private final Transport transport;
+
+    private final KeyExchange keyExchange;
+    private final ExitHttpClient exitClient;
+    // null unless the exit cache is enabled
+    private final ResponseCache responseCache;
 
     private final Map<String, PeerConnection> activePeerConnections = new ConcurrentHashMap<>();
-    private final List<Session> sessions = new ArrayList<>();
-    private final ExecutorService newConnectionsHandler = Executors.newCachedThreadPool();
+    // links asked for wait here so only a bounded number of handshakes run at once
+    private final Queue<String> pendingPeers = new ConcurrentLinkedQueue<>();
+    private final Map<String, CompletableFuture<PeerConnection>> connectingPeers = new ConcurrentHashMap<>();
+    private final AtomicInteger handshakesInFlight = new AtomicInteger();
+    // accepted links whose handshake has not finished yet
+    private final AtomicInteger inboundHandshakes = new AtomicInteger();
+    // keys other nodes set up on this node's sessions, each goes with its session
+    private final AtomicInteger sessionKeys = new AtomicInteger();
+    private final LongAdder evictedSessionKeys = new LongAdder();
+    private final SessionRegistry sessions;
+    private final CircuitPool circuitPool;
+    private final RelaySelector relaySelector;
+    private final Membership membership;
+    private final OnionClient client;
+    // null until started and if the metrics endpoint is turned off
+    // this node's gauges on top of the process wide metrics of the hot paths
+    private final MetricsRegistry metrics = new MetricsRegistry(Metrics.REGISTRY);
+    private final ObjectName metricsBean;
+    private MetricsServer metricsServer;
+    // null until started and if the proxy is turned off
+    private ProxyServer proxyServer;
+
+    public PeerConnectionManager(NodeConfig config) throws IOException {
+        this.config = config;
+        this.frameCodec = FrameCodec.create(config);
+        this.transport = Transport.create(config);
+        // bound up front, so a node given port 0 knows the address its peers will know it by
+        int listenPort = transport.bind(config.getListenPort());
+        config.setListenPort(listenPort);
+        this.address = config.getAddress();
+        this.keyExchange = KeyExchange.create(config.getKeyExchange());
+        this.exitClient = new ExitHttpClient(config);
+        this.responseCache = config.isExitCacheEnabled()
+                ? new ResponseCache(exitClient, config.getExitCacheMaxBytes(), config.getExitCacheTtlMillis())
+                : null;
+        this.sessions = new SessionRegistry(config.getMaxSessions(), config.getSessionIdleTtlMillis(), this::onSessionRemoved,
+                config.getNodeName());
+        this.membership = new Membership(this, config);
+        this.relaySelector = new RelaySelector(membership::getKnownAddresses, activePeerConnections::get, config);
+        this.circuitPool = new CircuitPool(this::buildCircuit,
+                circuit -> sessions.get(circuit.getSessionId()) == circuit.getSession(),
+                this::removeCircuitSession,
+                config.getCircuitPoolSize(), config.getCircuitPoolRefillMillis(), config.getNodeName());
+        this.client = new OnionClient(this, config);
+
+        logger.info("Node address is: {}", address);
+        logger.info("Using {} wire format with max frame size of {} bytes", config.getWireFormat(), config.getMaxFrameSize());
+        logger.info("Using {} transport", config.getTransportMode());
+
+        logger.info("Using {} key exchange and {} circuit setup", config.getKeyExchange(), config.getCircuitSetup());
+        logger.info("Selecting relays with a latency bias of {}", config.getRelayLatencyBias());
+
+        registerMetrics(metrics);
+        metricsBean = MetricsMBean.register(metrics, config.getNodeName().isEmpty() ? address : config.getNodeName());
+    }
+
+    // Opens the node to the network: listens for peers, serves metrics and the proxy, reads requests from the console and joins through the bootstrap peer
+    public void start() throws IOException {
+        if (config.getMetricsPort() > 0) {
+            metricsServer = new MetricsServer(metrics, config.getMetricsPort(), config.getNodeName());
+        }
+
+        transport.listen(this::acceptConnection);
+        logger.info("Listening for connections on port {}", config.getListenPort());
+        if (config.getProxyPort() > 0) {
+            proxyServer = new ProxyServer(client, config.getProxyPort(), config.getProxyMaxConcurrentRequests(), config.getNodeName());
+        }
+        if (config.isConsoleEnabled()) {
+            System.out.println("Node address is: " + address);
+            new Thread(this::listenForInputFromKeyboard).start();
+        }
 
-    public PeerConnectionManager() {
-        logger.info("Host ip address is: {}", HOST_IP);
-        System.out.println("Host ip address is: " + HOST_IP);
+        String bootstrapPeer = config.getBootstrapPeer();
+        if (!bootstrapPeer.isEmpty() && !bootstrapPeer.equals(address)) {
+            logger.info("Joining through {}", bootstrapPeer);
+        } else {
+            logger.info("I am the bootstrap peer");
+        }
+        membership.start();
+    }
 
-        DH.generatePublicKey();
-        logger.info("DH public key is generated");
+    // Closes all links and stops the node's threads
+    public void shutdown() {
+        if (metricsServer != null) metricsServer.shutdown();
+        MetricsMBean.unregister(metricsBean);
+        if (proxyServer != null) proxyServer.shutdown();
+        client.shutdown();
+        membership.leave();
+        activePeerConnections.values().forEach(PeerConnection::close);
+        circuitPool.shutdown();
+        relaySelector.shutdown();
+        transport.shutdown();
+        sessions.shutdown();
+        exitClient.shutdown();
+    }
 
-        new Thread(this::listenForConnections).start();
-        new Thread(this::listenForInputFromKeyboard).start();
+    // Sizes and queue depths are read when the metrics are scraped
+    private void registerMetrics(MetricsRegistry registry) {
+        registry.gauge("onion_active_links", "Peers with an established link", activePeerConnections::size);
+        registry.gauge("onion_active_view_size", "Peers in the active view, their links count against onion.activeViewSize", membership::getActiveViewSize);
+        registry.gauge("onion_passive_view_size", "Known peers without a link of the active view", membership::getPassiveViewSize);
+        registry.gauge("onion_active_sessions", "Sessions known to this node", sessions::getActiveSessions);
+        registry.gauge("onion_session_keys", "Session keys peers set up on this node, one per session it relays", sessionKeys::get);
+        registry.gauge("onion_evicted_session_keys", "Sessions removed with their key because a link's peer set up more than onion.maxSessionKeysPerLink keys",
+                evictedSessionKeys::sum);
+        registry.gauge("onion_handshakes_in_flight", "Link handshakes started by this node running right now", handshakesInFlight::get);
+        registry.gauge("onion_inbound_handshakes_in_flight", "Handshakes of accepted links running right now", inboundHandshakes::get);
+        registry.gauge("onion_pending_handshakes", "Links asked for that wait for a handshake slot", pendingPeers::size);
+        registry.gauge("onion_ready_circuits", "Circuits built ahead of time and ready to use", circuitPool::getReadyCircuits);
+        registry.gauge("onion_worker_queue_depth", "Received messages waiting for a worker thread", transport::getQueuedMessages);
+        registry.gauge("onion_outbound_queued_bytes", "Bytes waiting to be written, summed over all links",
+                () -> activePeerConnections.values().stream().mapToLong(p -> p.getOutboundQueue().getQueuedBytes()).sum());
+        registry.gauge("onion_outbound_queued_frames", "Frames waiting to be written, summed over all links",
+                () -> activePeerConnections.values().stream().mapToLong(p -> p.getOutboundQueue().getQueuedFrames()).sum());
+        registry.gauge("onion_flow_queued_messages", "Data messages waiting for flow control credits, summed over all links",
+                () -> activePeerConnections.values().stream().mapToLong(PeerConnection::getFlowQueuedMessages).sum());
+        registry.gauge("onion_client_requests_in_flight", "Requests sent with the client and waiting for their response", client::getRequestsInFlight);
+        registry.gauge("onion_client_pending_requests", "Requests sent with the client and waiting for a free slot", client::getPendingRequests);
+        registry.gauge("onion_exit_requests_in_flight", "Upstream requests of the exit node running right now", exitClient::getRequestsInFlight);
+        registry.gauge("onion_exit_pending_requests", "Upstream requests of the exit node waiting for a slot", exitClient::getPendingRequests);
+        if (responseCache != null) {
+            registry.gauge("onion_exit_cache_bytes", "Bytes of cached responses", responseCache::getCachedBytes);
+        }
+    }
 
+    // Connects to the peer listening on the given host:port
+    public CompletableFuture<PeerConnection> connectToPeer(String peerAddress) {
+        int separator = peerAddress.lastIndexOf(':');
+        int port;
         try {
-            if (!HOST_IP.equals(BROADCASTER_IP)) {
-                logger.info("I am not a broadcaster");
-                PeerConnection peerConnection = new PeerConnection(new Socket(BROADCASTER_IP, LISTEN_PORT), this);
+            port = Integer.parseInt(peerAddress.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            logger.error("Invalid peer address: {}", peerAddress);
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Invalid peer address: " + peerAddress));
+        }
 
-                // can be moved to separate thread, but it is not necessary because main have nothing to do
-                peerConnection.establishSharedSecret();
-                addPeerConnection(peerConnection);
-            } else {
-                logger.info("I am a broadcaster");
+        long start = System.nanoTime();
+        return transport.connect(peerAddress.substring(0, Math.max(separator, 0)), port)
+                .whenComplete((link, e) -> {
+                    if (e == null) {
+                        Metrics.HANDSHAKE_CONNECT.recordSince(start);
+                        return;
+                    }
+                    Metrics.HANDSHAKE_FAILURES.increment();
+                    if (isTimeout(e)) Metrics.HANDSHAKE_TIMEOUTS.increment();
+                })
+                .thenCompose(link -> new PeerConnection(link, this).establishSharedSecret())
+                .thenApply(this::addPeerConnection)
+                .whenComplete((peerConnection, e) -> {
+                    if (e != null) logger.error("Cannot connect to peer {}: {}", peerAddress, e.getMessage());
+                });
+    }
+
+    private static boolean isTimeout(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof UncheckedIOException) cause = cause.getCause();
+        return cause instanceof TimeoutException || cause instanceof SocketTimeoutException;
+    }
+
+    // The link to the peer, opened if there is none yet. At most maxConcurrentHandshakes handshakes run at the same time.
+    public CompletableFuture<PeerConnection> linkTo(String peerAddress) {
+        PeerConnection existing = activePeerConnections.get(peerAddress);
+        if (existing != null) return CompletableFuture.completedFuture(existing);
+
+        CompletableFuture<PeerConnection> link = new CompletableFuture<>();
+        CompletableFuture<PeerConnection> connecting = connectingPeers.putIfAbsent(peerAddress, link);
+        if (connecting != null) return connecting;
+        pendingPeers.add(peerAddress);
+        startPendingHandshakes();
+        return link;
+    }
+
+    private void startPendingHandshakes() {
+        while (!pendingPeers.isEmpty()) {
+            int inFlight = handshakesInFlight.get();
+            if (inFlight >= config.getMaxConcurrentHandshakes()) return;
+            if (!handshakesInFlight.compareAndSet(inFlight, inFlight + 1)) continue;
+
+            String peerAddress = pendingPeers.poll();
+            if (peerAddress == null) {
+                handshakesInFlight.decrementAndGet();
+                continue;
+            }
+            PeerConnection existing = activePeerConnections.get(peerAddress);
+            if (existing != null) {
+                finishHandshake(peerAddress, existing, null);
+                continue;
             }
-        } catch (IOException e) {
-            logger.error("Cannot create a Socket for broadcaster {}", e.getMessage());
+            // this handshake is counted already
+            if (getLinkCount() > config.getMaxLinks() && !membership.closeIdlestCircuitLink()) {
+                logger.warn("Cannot link to {}, {} links are open", peerAddress, config.getMaxLinks());
+                Metrics.LINKS_REFUSED.increment();
+                finishHandshake(peerAddress, null, new IOException("Cannot link to " + peerAddress + ", " + config.getMaxLinks() + " links are open"));
+                continue;
+            }
+            connectToPeer(peerAddress).whenComplete((peerConnection, e) -> finishHandshake(peerAddress, peerConnection, e));
         }
     }
 
-    public void addPeerConnection(PeerConnection peerConnection) {
-        String peerId = peerConnection.getIp();
-        activePeerConnections.putIfAbsent(peerId, peerConnection);
-        logger.info("Added active peer connection: {}", peerConnection.getIp());
+    private void finishHandshake(String peerAddress, PeerConnection peerConnection, Throwable e) {
+        CompletableFuture<PeerConnection> link = connectingPeers.remove(peerAddress);
+        handshakesInFlight.decrementAndGet();
+        // the peer may have closed this link during the handshake in favour of one it opened at the same time
+        PeerConnection existing = e == null ? peerConnection : activePeerConnections.get(peerAddress);
+        if (link != null) {
+            if (existing != null) link.complete(existing);
+            else link.completeExceptionally(e);
+        }
+        startPendingHandshakes();
     }
 
-    private void removePeerConnection(String peerId) {
-        activePeerConnections.remove(peerId);
+    // Returns the link kept for the peer. Two peers that opened links to each other at the same time both keep
+    // the one opened by the peer with the lower address and close the other.
+    public PeerConnection addPeerConnection(PeerConnection peerConnection) {
+        String peerId = peerConnection.getAddress();
+        PeerConnection existing;
+        while ((existing = activePeerConnections.putIfAbsent(peerId, peerConnection)) != null) {
+            if (isPreferred(existing) || !isPreferred(peerConnection)) {
+                logger.info("Closing the duplicate link to {}", peerId);
+                Metrics.DUPLICATE_LINKS.increment();
+                peerConnection.close();
+                return existing;
+            }
+            if (activePeerConnections.replace(peerId, existing, peerConnection)) {
+                logger.info("Replacing the duplicate link to {}", peerId);
+                Metrics.DUPLICATE_LINKS.increment();
+                existing.close();
+                break;
+            }
+        }
+        logger.info("Added active peer connection: {}", peerConnection.getAddress());
+        membership.onLinkAdded(peerConnection);
+        peerConnection.sendPing();
+        relaySelector.refresh();
+        circuitPool.scheduleRefill();
+        return peerConnection;
     }
 
-    public void createSessionWithKey(int sessionId, SecretKey sessionKey) {
-        logger.info("Creating session with session id={} and session key={}", sessionId, sessionKey.toString());
-        Session session = new Session(sessionId);
-        session.setMySessionKey(sessionKey);
-        sessions.add(session);
+    // True for the link opened by the peer with the lower address
+    private boolean isPreferred(PeerConnection peerConnection) {
+        boolean lowerAddress = address.compareTo(peerConnection.getAddress()) < 0;
+        return peerConnection.isInitiator() == lowerAddress;
     }
 
-    public Session getSession(int sessionId) {
-        Session session = sessions.stream().filter(s -> s.getSessionId() == sessionId).findFirst().orElse(null);
-        logger.info("Get session with session id={}", sessionId);
-        return session;
-    }
-
-    public void listenForConnections() {
-        logger.info("Starting to listen for connections...");
-        try (ServerSocket serverSocket = new ServerSocket(LISTEN_PORT)) {
-            while (true) {
-                Socket requestedConnection = serverSocket.accept();
-                logger.info("Accepted connection from: {}", requestedConnection.getInetAddress().getHostAddress());
-
-                if (activePeerConnections.containsKey(requestedConnection.getInetAddress().getHostAddress())) continue;
-
-                PeerConnection peerConnection = new PeerConnection(requestedConnection, this);
-
-                newConnectionsHandler.submit(() -> {
-                    // Establish shared secret with the new peer
-                    peerConnection.establishSharedSecret();
-                    // Notify others about the new peer
-                    notifyPeersAboutNewPeer(peerConnection);
-                    // Notify the new peer about existing peers
-                    notifyNewPeerAboutExistingPeers(peerConnection);
-                    // Add new peer to active connections
-                    addPeerConnection(peerConnection);
-                });
+    public void removePeerConnection(PeerConnection peerConnection) {
+        if (activePeerConnections.remove(peerConnection.getAddress(), peerConnection)) {
+            logger.info("Removed active peer connection: {}", peerConnection.getAddress());
+            membership.onLinkClosed(peerConnection);
+            relaySelector.refresh();
+            circuitPool.onPeerRemoved(peerConnection);
+        }
+    }
+
+    // The key lives on the session, it expires and is evicted together with it. A link's peer may set up at most
+    // onion.maxSessionKeysPerLink keys, beyond that the least recently used session keyed over the link is removed.
+    public void createSessionWithKey(int sessionId, SecretKey sessionKey, PeerConnection keyLink) {
+        // the key itself is never logged
+        if (logger.isDebugEnabled()) logger.debug("Creating session with session id={}", sessionId);
+        Session session = new Session(sessionId, config.getCipherMode(), config.getCellSize());
+        session.setMySessionKey(sessionKey);
+        session.setKeyLink(keyLink);
+        if (!sessions.register(session)) {
+            logger.warn("Session id={} is already in use, ignoring the session key", sessionId);
+            return;
+        }
+        sessionKeys.incrementAndGet();
+        keyLink.addKeyedSession(session);
+
+        while (keyLink.getSessionKeyCount() > Math.max(1, config.getMaxSessionKeysPerLink())) {
+            Session idlest = keyLink.getIdlestKeyedSession();
+            if (idlest == null) break;
+            if (sessions.remove(idlest.getSessionId()) == idlest) {
+                logger.info("Evicted session with session id={}, {} has set up too many session keys", idlest.getSessionId(), keyLink.getAddress());
+                keyLink.onSessionKeyEvicted();
+                evictedSessionKeys.increment();
+            } else {
+                // removed meanwhile
+                keyLink.removeKeyedSession(idlest);
             }
-        } catch (IOException e) {
-            System.out.println("Cannot create a ServerSocket to listen for connections" + e);
         }
     }
 
-    // Notify all peers about a new peer
-    private void notifyPeersAboutNewPeer(PeerConnection newPeerConnection) {
-        logger.info("Notifying other peers about a new peer: {}", newPeerConnection.getIp());
-        DiscoveryMessage message = new DiscoveryMessage(Util.setToString(Collections.singleton(newPeerConnection.getIp())));
-        String jsonMessage = Util.messageToJson(message);
-        activePeerConnections.values().parallelStream().forEach(e -> e.sendEncryptedMessage(jsonMessage));
+    // The router's side of the ONION circuit setup, null if the ephemeral key is invalid
+    public Session createSessionWithKeyAgreement(int sessionId, byte[] ephemeralPublicKey, PeerConnection keyLink) {
+        try {
+            byte[] sharedSecret = keyExchange.generateSharedSecret(ephemeralPublicKey);
+            createSessionWithKey(sessionId, AES.deriveKey(sharedSecret, Session.SESSION_KEY_INFO), keyLink);
+        } catch (IllegalArgumentException e) {
+            logger.warn("Invalid ephemeral key for session id={}: {}", sessionId, e.getMessage());
+            return null;
+        }
+        return sessions.get(sessionId);
+    }
+
+    // The session's streams are aborted right away, the requests on them fail instead of waiting for their timeout
+    private void removeCircuitSession(Circuit circuit) {
+        if (sessions.get(circuit.getSessionId()) == circuit.getSession()) sessions.remove(circuit.getSessionId());
+    }
+
+    // Unfinished streams, flow control state and the hold on its links go together with the session
+    private void onSessionRemoved(Session session) {
+        int sessionId = session.getSessionId();
+        logger.info("Removed session with session id={}", sessionId);
+        session.abortStreams();
+        session.releaseLinks();
+        if (session.getKeyLink() != null) {
+            session.getKeyLink().removeKeyedSession(session);
+            sessionKeys.decrementAndGet();
+        }
+        if (session.getPreviousPeer() != null) session.getPreviousPeer().removeCircuit(sessionId);
+        if (session.getNextPeer() != null) session.getNextPeer().removeCircuit(sessionId);
+
+        PeerConnection[] selectedRouters = session.getSelectedRouters();
+        if (selectedRouters != null && selectedRouters.length > 0) selectedRouters[0].removeCircuit(sessionId);
+    }
+
+    public Session getSession(int sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    // Sends requests through this node's circuits
+    public OnionClient getClient() {
+        return client;
+    }
+
+    public CircuitPool getCircuitPool() {
+        return circuitPool;
+    }
+
+    // Links open or being set up, the active view's and circuit links alike. It is checked before a link is set up,
+    // handshakes running at the same time may take it a few past onion.maxLinks. At the limit the idlest circuit
+    // link this node opened and no session uses is closed for the new one, without such a link the new one fails
+    private int getLinkCount() {
+        return activePeerConnections.size() + handshakesInFlight.get() + inboundHandshakes.get();
+    }
+
+    // Runs on the accept thread, which only takes a handshake slot. Beyond maxInboundHandshakes running handshakes
+    // new connections are closed right away, the peers dial again later.
+    private void acceptConnection(Link link) {
+        if (getLinkCount() >= config.getMaxLinks() && !membership.closeIdlestCircuitLink()) {
+            logger.warn("{} links are open, closing the connection from: {}", config.getMaxLinks(), link.getRemoteIp());
+            Metrics.LINKS_REFUSED.increment();
+            link.close();
+            return;
+        }
+        int inFlight;
+        do {
+            inFlight = inboundHandshakes.get();
+            if (inFlight >= config.getMaxInboundHandshakes()) {
+                logger.warn("Too many handshakes in flight, closing the connection from: {}", link.getRemoteIp());
+                Metrics.HANDSHAKES_REJECTED.increment();
+                link.close();
+                return;
+            }
+        } while (!inboundHandshakes.compareAndSet(inFlight, inFlight + 1));
+        logger.info("Accepted connection from: {}", link.getRemoteIp());
+
+        try {
+            transport.getHandshakeExecutor().execute(() -> startInboundHandshake(link));
+        } catch (RejectedExecutionException e) {
+            inboundHandshakes.decrementAndGet();
+            link.close();
+        }
     }
 
-    // Notify new peer about existing peers
-    private void notifyNewPeerAboutExistingPeers(PeerConnection newPeerConnection) {
-        logger.info("Notifying new peer about existing peers: {}", getActiveIps());
-        DiscoveryMessage message = new DiscoveryMessage(Util.setToString(getActiveIps()));
-        String jsonMessage = Util.messageToJson(message);
-        newPeerConnection.sendEncryptedMessage(jsonMessage);
+    private void startInboundHandshake(Link link) {
+        // Establish shared secret with the new peer, it tells the address it listens on on the way
+        new PeerConnection(link, this, false).establishSharedSecret().whenComplete((peerConnection, e) -> {
+            inboundHandshakes.decrementAndGet();
+            if (e != null) {
+                logger.error("Cannot establish shared secret with {}: {}", link.getRemoteIp(), e.getMessage());
+                return;
+            }
+            // the peer asks to join the active view if it wants the link to stay, otherwise it only carries circuits
+            addPeerConnection(peerConnection);
+        });
     }
 
+    // Every line is a url to request, the response is appended to a file as it arrives
     public void listenForInputFromKeyboard() {
         logger.info("Starting to listen for input from keyboard...");
 
         System.out.println("You can use a console to make an http request to the server");
         Scanner scanner = new Scanner(System.in);
+        RequestOptions options = new RequestOptions().setSink((sessionId, streamId) -> new FileStreamSink(responsePath(sessionId, streamId)));
         while (true) {
             System.out.println("Please enter message that you want to send: ");
             String text = scanner.nextLine();
 
-            int sessionId = (int) (Math.random() * Integer.MAX_VALUE); // fixme uniqueness?
-            Session session = new Session(sessionId);
-            logger.info("Created a session as sender with session id={}", sessionId);
-            PeerConnection[] selectedRouters = session.selectRouters(NUM_PEERS_IN_CHAIN, activePeerConnections);
-            sessions.add(session);
+            logger.info("I know these peers: {}", Arrays.toString(activePeerConnections.values().stream().map(PeerConnection::getAddress).toArray()));
+
+            if (activePeerConnections.isEmpty()) {
+                logger.info("No active peers to send message to");
+                continue;
+            }
+
+            client.send(text, options).whenComplete((response, e) -> {
+                if (e != null) {
+                    logger.error("Request for {} failed: {}", text, e.toString());
+                    return;
+                }
+                logger.info("Saved the response for streamId={} to {}", response.getStreamId(),
+                        responsePath(response.getSessionId(), response.getStreamId()));
+            });
+        }
+    }
 
-            logger.info("Selected peers: {}", Arrays.toString(Arrays.stream(selectedRouters).map(PeerConnection::getIp).toArray()));
+    private static Path responsePath(int sessionId, int streamId) {
+        return Path.of(String.format("output/%s-%s-response.html", sessionId, streamId));
+    }
 
-            String encryptedJson = session.encryptLayers(text);
+    // Sends the payload through the circuit in chunks as it is read, the exit node puts the chunks back together
+    public void sendStream(Circuit circuit, int streamId, InputStream payload) throws IOException {
+        Session session = circuit.getSession();
+        PeerConnection firstPeer = circuit.getFirstHop();
+        int chunkSize = session.getMaxChunkSize(config.getStreamChunkSize());
+        if (chunkSize < 1) {
+            throw new IOException("Cells of " + config.getCellSize() + " bytes leave no room for a chunk through session id=" + session.getSessionId());
+        }
+        // waits for flow control credits before reading the next chunk
+        Util.readChunks(payload, chunkSize, (chunk, sequence, last, failed) -> {
+            byte[] layers = session.encryptLayers(chunk, streamId, sequence, last);
+            return firstPeer.sendFlowControlled(circuit.getSessionId(), new ForwardMessage(circuit.getSessionId(), layers));
+        });
+        logger.info("Sent message with streamId={} to the first peer in the chain: {}", streamId, firstPeer.getAddress());
+    }
 
-            logger.info("I know these peers: {}", Arrays.toString(activePeerConnections.values().stream().map(PeerConnection::getIp).toArray()));
+    // Routers are picked from all known peers, links to the ones outside the active view are opened on the way
+    private Circuit buildCircuit() {
+        String[] routerAddresses = relaySelector.select(NUM_PEERS_IN_CHAIN);
+        if (routerAddresses.length == 0) return null;
 
-            if (activePeerConnections.isEmpty()) logger.info("No active peers to send message to");
-            else {
-                PeerConnection firstPeer = selectedRouters[0];
-                firstPeer.sendEncryptedMessage(Util.messageToJson(new ForwardMessage(sessionId, encryptedJson)));
-                logger.info("Sent message to the first peer in the chain: {}", firstPeer.getIp());
+        PeerConnection[] selectedRouters = new PeerConnection[routerAddresses.length];
+        try {
+            for (int i = 0; i < routerAddresses.length; i++) {
+                selectedRouters[i] = linkTo(routerAddresses[i]).get(CIRCUIT_LINK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
             }
+        } catch (ExecutionException | TimeoutException e) {
+            logger.warn("Cannot link to the routers {} of a new circuit: {}", Arrays.toString(routerAddresses), e.toString());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        Session session = sessions.create(id -> new Session(id, config.getCipherMode(), config.getCellSize()));
+        logger.info("Created a session as sender with session id={}", session.getSessionId());
+        session.setSelectedRouters(selectedRouters);
+        logger.info("Selected peers: {}", Arrays.toString(routerAddresses));
+
+        if (config.getCircuitSetup() == NodeConfig.CircuitSetup.ONION) {
+            session.agreeOnSessionKeys(config.getKeyExchange());
+        } else {
+            session.generateAndSpreadSessionKey();
         }
+        return new Circuit(session, config.getCircuitMaxAgeMillis(), config.getCircuitMaxRequests());
+    }
+
+    // Address peers know this node by
+    public String getAddress() {
+        return address;
+    }
+
+    // Sessions this node takes part in, reported to its peers for relay selection
+    public int getLoad() {
+        return sessions.getActiveSessions();
+    }
+
+    public RelaySelector getRelaySelector() {
+        return relaySelector;
+    }
+
+    Membership getMembership() {
+        return membership;
+    }
+
+    // Peers of the active and passive views and those with a link for a circuit
+    public Set<String> getKnownAddresses() {
+        return membership.getKnownAddresses();
+    }
+
+    public Collection<PeerConnection> getLinks() {
+        return activePeerConnections.values();
     }
 
-    public Set<String> getActiveIps() {
+    public Set<String> getActiveAddresses() {
         return activePeerConnections.keySet();
     }
 
     public PeerConnection getActivePeerConnection(String ip) {
         return activePeerConnections.get(ip);
     }
+
+    // Upstream request of an exit node, answered from the cache when it is enabled
+    public void makeExitRequest(String url, Util.ChunkHandler handler) {
+        if (responseCache != null) responseCache.send(url, handler);
+        else exitClient.send(url, handler);
+    }
+
+    public ExitHttpClient getExitClient() {
+        return exitClient;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    public KeyExchange getKeyExchange() {
+        return keyExchange;
+    }
+
+    public NodeConfig getConfig() {
+        return config;
+    }
+
+    public FrameCodec getFrameCodec() {
+        return frameCodec;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
 }
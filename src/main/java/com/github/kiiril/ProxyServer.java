@@ -0,0 +1,148 @@
+package com.github.kiiril;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+
+// Local HTTP proxy for applications without the client API, reachable from the node's host only. A GET for an
+// absolute url, the way clients talk to a proxy, goes out through a circuit and the body is streamed back with
+// status 200 as its chunks arrive.
+// The exit node only makes GET requests and passes on no headers, only whether the origin answered 200 with a
+// complete body, so other methods get 405 and a failed upstream request 502. A body that breaks off after its first
+// chunk went out just ends early. CONNECT cannot be tunneled through a circuit, the JDK server closes such
+// connections. At most maxConcurrentRequests requests wait for a response, more get 503.
+class ProxyServer {
+    private static final Logger logger = LogManager.getLogger();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final OnionClient client;
+    private final Semaphore slots;
+
+    ProxyServer(OnionClient client, int port, int maxConcurrentRequests, String nodeName) throws IOException {
+        this.client = client;
+        this.slots = new Semaphore(maxConcurrentRequests);
+        this.executor = Executors.newCachedThreadPool(new NamedThreadFactory(nodeName, "proxy"));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        logger.info("Serving the HTTP proxy at 127.0.0.1:{}", getPort());
+    }
+
+    // Returns right away, the body is streamed to the client as the circuit delivers it
+    private void handle(HttpExchange exchange) {
+        long start = System.nanoTime();
+        URI url = exchange.getRequestURI();
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            reply(exchange, 405, start);
+            return;
+        }
+        if (!"http".equalsIgnoreCase(url.getScheme()) && !"https".equalsIgnoreCase(url.getScheme())) {
+            reply(exchange, 400, start);
+            return;
+        }
+        if (!slots.tryAcquire()) {
+            logger.warn("Too many proxy requests in flight, rejecting request to: {}", url);
+            reply(exchange, 503, start);
+            return;
+        }
+
+        ProxyResponse proxyResponse = new ProxyResponse(exchange);
+        RequestOptions options = new RequestOptions().setSink((sessionId, streamId) -> new CallbackStreamSink(executor, proxyResponse));
+        client.send(url.toString(), options).whenCompleteAsync((response, e) -> {
+            try {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause != null) logger.warn("Proxy request to {} failed: {}", url, cause.toString());
+                proxyResponse.finish(cause, start);
+            } finally {
+                slots.release();
+            }
+        }, executor);
+    }
+
+    private static void reply(HttpExchange exchange, int status, long startNanos) {
+        try {
+            exchange.sendResponseHeaders(status, -1);
+        } catch (IOException e) {
+            logger.warn("Cannot answer the proxy request to {}: {}", exchange.getRequestURI(), e.getMessage());
+        } finally {
+            exchange.close();
+        }
+        logLatency(exchange, status, 0, startNanos);
+    }
+
+    private static void logLatency(HttpExchange exchange, int status, long bytes, long startNanos) {
+        logger.info("Proxied {} {}: {} with {} bytes in {} ms", exchange.getRequestMethod(), exchange.getRequestURI(), status,
+                bytes, (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    // Writes the body chunked as it arrives, its length is not known up front. The status can only change until
+    // the first chunk went out, a request that fails after that just ends early, the JDK server has no way to
+    // reset the connection instead.
+    private static class ProxyResponse implements CallbackStreamSink.Callbacks {
+        private final HttpExchange exchange;
+        // null until the headers are sent
+        private OutputStream body;
+        private long bytes;
+        private boolean finished;
+
+        ProxyResponse(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        @Override
+        public synchronized void onChunk(byte[] chunk) throws IOException {
+            if (finished || chunk.length == 0) return;
+            if (body == null) {
+                exchange.sendResponseHeaders(200, 0);
+                body = exchange.getResponseBody();
+            }
+            body.write(chunk);
+            body.flush();
+            bytes += chunk.length;
+        }
+
+        @Override
+        public synchronized void onClose() throws IOException {
+            if (finished) return;
+            if (body == null) exchange.sendResponseHeaders(200, -1);
+            else body.close();
+        }
+
+        synchronized void finish(Throwable failure, long startNanos) {
+            finished = true;
+            int status = 200;
+            if (failure != null && body == null) {
+                status = failure instanceof TimeoutException ? 504 : 502;
+                try {
+                    exchange.sendResponseHeaders(status, -1);
+                } catch (IOException e) {
+                    logger.warn("Cannot answer the proxy request to {}: {}", exchange.getRequestURI(), e.getMessage());
+                }
+            }
+            exchange.close();
+            logLatency(exchange, status, bytes, startNanos);
+        }
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    void shutdown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
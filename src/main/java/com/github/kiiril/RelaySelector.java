@@ -0,0 +1,181 @@
+package com.github.kiiril;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Picks the routers of new circuits among the known peers. Every peer gets a weight from its measured round trip
+// time and how busy it is compared to the capacity it advertised: weight = (1 / ((rtt in ms + 1) * (1 + load / capacity)))^bias.
+// A bias of 0 picks uniformly, which spreads circuits the most, larger values favour fast and idle peers more.
+// Weights go into an alias table that is rebuilt when peers come and go or new probe results arrive, and
+// circuits sample from the current table without locking, one draw per router. Peers without a link have not
+// been measured and count as average.
+public class RelaySelector {
+    private static final Logger logger = LogManager.getLogger();
+    // draws per router before falling back to a scan, only reached when few peers hold most of the weight
+    private static final int MAX_DRAWS_PER_ROUTER = 16;
+    // assumed for peers that do not advertise a capacity
+    private static final int DEFAULT_CAPACITY = 1000;
+
+    private final Supplier<Collection<String>> candidates;
+    // the link to a peer, null if there is none
+    private final Function<String, PeerConnection> links;
+    private final double latencyBias;
+    private final ScheduledExecutorService prober;
+    private volatile Snapshot snapshot = new Snapshot(new String[0], new double[0]);
+
+    public RelaySelector(Supplier<Collection<String>> candidates, Function<String, PeerConnection> links, NodeConfig config) {
+        this.candidates = candidates;
+        this.links = links;
+        this.latencyBias = config.getRelayLatencyBias();
+        this.prober = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(config.getNodeName(), "relay-prober"));
+        prober.scheduleWithFixedDelay(this::probe, 0, config.getProbeIntervalMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // Up to numberOfRouters distinct routers in the order of the circuit, all peers if there are not more than that
+    public String[] select(int numberOfRouters) {
+        Snapshot current = snapshot;
+        int size = current.peers.length;
+        if (size <= numberOfRouters) {
+            String[] all = current.peers.clone();
+            shuffle(all);
+            return all;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] selected = new int[numberOfRouters];
+        int count = 0;
+        for (int draws = 0; count < numberOfRouters && draws < MAX_DRAWS_PER_ROUTER * numberOfRouters; draws++) {
+            int candidate = current.sample(random);
+            if (!contains(selected, count, candidate)) selected[count++] = candidate;
+        }
+        for (int candidate = random.nextInt(size); count < numberOfRouters; candidate = (candidate + 1) % size) {
+            if (!contains(selected, count, candidate)) selected[count++] = candidate;
+        }
+
+        String[] routers = new String[numberOfRouters];
+        for (int i = 0; i < numberOfRouters; i++) {
+            routers[i] = current.peers[selected[i]];
+        }
+        return routers;
+    }
+
+    private static boolean contains(int[] selected, int count, int candidate) {
+        for (int i = 0; i < count; i++) {
+            if (selected[i] == candidate) return true;
+        }
+        return false;
+    }
+
+    private static void shuffle(String[] routers) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = routers.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            String router = routers[i];
+            routers[i] = routers[j];
+            routers[j] = router;
+        }
+    }
+
+    // Peers were added or removed, or their measurements changed
+    public synchronized void refresh() {
+        String[] current = candidates.get().toArray(new String[0]);
+        PeerConnection[] currentLinks = new PeerConnection[current.length];
+        double[] weights = new double[current.length];
+
+        // peers without a measurement yet are assumed to be as far away as the others on average
+        double measuredRtt = 0;
+        int measured = 0;
+        for (int i = 0; i < current.length; i++) {
+            PeerConnection link = links.apply(current[i]);
+            if (link != null && link.isOpen()) currentLinks[i] = link;
+            if (currentLinks[i] != null && link.getRttNanos() >= 0) {
+                measuredRtt += link.getRttNanos();
+                measured++;
+            }
+        }
+        double assumedRtt = measured == 0 ? 0 : measuredRtt / measured;
+
+        for (int i = 0; i < current.length; i++) {
+            PeerConnection link = currentLinks[i];
+            double rttNanos = link != null && link.getRttNanos() >= 0 ? link.getRttNanos() : assumedRtt;
+            int capacity = link != null && link.getPeerCapacity() > 0 ? link.getPeerCapacity() : DEFAULT_CAPACITY;
+            int load = link != null ? link.getPeerLoad() : 0;
+            double cost = (rttNanos / 1e6 + 1) * (1 + (double) load / capacity);
+            weights[i] = Math.pow(1 / cost, latencyBias);
+        }
+        snapshot = new Snapshot(current, weights);
+    }
+
+    // Measures every link and picks up the loads reported back
+    private void probe() {
+        try {
+            for (String peer : candidates.get()) {
+                PeerConnection link = links.apply(peer);
+                if (link != null) link.sendPing();
+            }
+            refresh();
+        } catch (RuntimeException e) {
+            logger.error("Cannot probe the peers", e);
+        }
+    }
+
+    public void shutdown() {
+        prober.shutdownNow();
+    }
+
+    // Immutable alias table (Vose's method): a draw picks a column uniformly and then either the column's
+    // peer or its alias, so sampling takes constant time whatever the number of peers
+    static class Snapshot {
+        private final String[] peers;
+        private final double[] probability;
+        private final int[] alias;
+
+        Snapshot(String[] peers, double[] weights) {
+            this.peers = peers;
+            int size = peers.length;
+            this.probability = new double[size];
+            this.alias = new int[size];
+
+            double total = 0;
+            for (double weight : weights) {
+                total += weight;
+            }
+            if (size == 0) return;
+
+            // columns are filled up to 1 by moving weight from the heavy peers to the light ones
+            double[] scaled = new double[size];
+            Deque<Integer> small = new ArrayDeque<>();
+            Deque<Integer> large = new ArrayDeque<>();
+            for (int i = 0; i < size; i++) {
+                scaled[i] = total > 0 ? weights[i] * size / total : 1;
+                (scaled[i] < 1 ? small : large).push(i);
+            }
+            while (!small.isEmpty() && !large.isEmpty()) {
+                int light = small.pop();
+                int heavy = large.pop();
+                probability[light] = scaled[light];
+                alias[light] = heavy;
+                scaled[heavy] = scaled[heavy] + scaled[light] - 1;
+                (scaled[heavy] < 1 ? small : large).push(heavy);
+            }
+            // left overs are 1 up to rounding errors
+            while (!large.isEmpty()) probability[large.pop()] = 1;
+            while (!small.isEmpty()) probability[small.pop()] = 1;
+        }
+
+        int sample(Random random) {
+            int column = random.nextInt(peers.length);
+            return random.nextDouble() < probability[column] ? column : alias[column];
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.kiiril;
+
+// Settings of one request sent with OnionClient, 0 leaves a setting to the node's configuration
+public class RequestOptions {
+    // covers the wait for a free slot as well as the round trip through the circuit
+    private long timeoutMillis;
+    private int maxResponseBytes;
+    // null keeps the body in memory and hands it over with the response
+    private SinkFactory sink;
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public RequestOptions setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    public int getMaxResponseBytes() {
+        return maxResponseBytes;
+    }
+
+    public RequestOptions setMaxResponseBytes(int maxResponseBytes) {
+        this.maxResponseBytes = maxResponseBytes;
+        return this;
+    }
+
+    public SinkFactory getSink() {
+        return sink;
+    }
+
+    // The response body goes to the sink chunk by chunk instead, the request completes once the sink is done
+    public RequestOptions setSink(SinkFactory sink) {
+        this.sink = sink;
+        return this;
+    }
+
+    // Called once the request has a stream on a circuit
+    public interface SinkFactory {
+        StreamSink create(int sessionId, int streamId);
+    }
+}
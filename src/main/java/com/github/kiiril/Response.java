@@ -0,0 +1,46 @@
+package com.github.kiiril;
+
+// A response that came back through a circuit, the body is empty if it went to a sink
+public class Response {
+    private final String url;
+    private final int sessionId;
+    private final int streamId;
+    private final byte[] body;
+    private final long bodySize;
+    private final long latencyNanos;
+
+    public Response(String url, int sessionId, int streamId, byte[] body, long bodySize, long latencyNanos) {
+        this.url = url;
+        this.sessionId = sessionId;
+        this.streamId = streamId;
+        this.body = body;
+        this.bodySize = bodySize;
+        this.latencyNanos = latencyNanos;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    // bytes of the body, also when it went to a sink
+    public long getBodySize() {
+        return bodySize;
+    }
+
+    // from the call to send to the last chunk, including the wait for a free slot
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.kiiril;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Responses of the exit node's upstream requests kept as plain chunks, each session encrypts them with its own key
+// when they are served. Entries expire after the TTL, the least recently used ones are evicted once the cached
+// bytes exceed the budget. Identical requests in flight at the same time share one upstream request: later callers
+// are replayed the chunks received so far and then follow the live response.
+public class ResponseCache {
+    private static final Logger logger = LogManager.getLogger();
+
+    private final ExitHttpClient client;
+    private final long maxBytes;
+    // so a single response cannot flush the whole cache
+    private final long maxEntryBytes;
+    private final long ttlNanos;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalescedRequests = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public ResponseCache(ExitHttpClient client, long maxBytes, long ttlMillis) {
+        this.client = client;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 8;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    // Same contract as ExitHttpClient.send, a cached response is replayed on the calling thread.
+    // Cached and replayed chunks are in memory already, only chunks read from the origin wait for the handler.
+    public void send(String url, Util.ChunkHandler handler) {
+        while (true) {
+            List<byte[]> chunks = get(url);
+            if (chunks != null) {
+                hits.increment();
+                logger.debug("Serving cached response of {} chunks for: {}", chunks.size(), url);
+                for (int i = 0; i < chunks.size(); i++) {
+                    handler.onChunk(chunks.get(i), i, i == chunks.size() - 1, false);
+                }
+                return;
+            }
+
+            Flight flight = new Flight(url);
+            Flight running = flights.putIfAbsent(url, flight);
+            if (running == null) {
+                misses.increment();
+                flight.join(handler);
+                client.send(url, flight);
+                return;
+            }
+            if (running.join(handler)) {
+                coalescedRequests.increment();
+                logger.debug("Joined the request in flight for: {}", url);
+                return;
+            }
+            // the flight has just finished or stopped taking callers, look again
+        }
+    }
+
+    private synchronized List<byte[]> get(String url) {
+        Entry entry = entries.get(url);
+        if (entry == null) return null;
+        if (System.nanoTime() - entry.createdAtNanos > ttlNanos) {
+            remove(url);
+            expirations.increment();
+            return null;
+        }
+        return entry.chunks;
+    }
+
+    private synchronized void put(String url, List<byte[]> chunks, long size) {
+        remove(url);
+        entries.put(url, new Entry(chunks, size));
+        cachedBytes += size;
+
+        Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = entries.entrySet().iterator();
+        while (cachedBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+            Entry evicted = leastRecentlyUsed.next().getValue();
+            leastRecentlyUsed.remove();
+            cachedBytes -= evicted.size;
+            evictions.increment();
+        }
+    }
+
+    private void remove(String url) {
+        Entry removed = entries.remove(url);
+        if (removed != null) cachedBytes -= removed.size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getCoalescedRequests() {
+        return coalescedRequests.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        final List<byte[]> chunks;
+        final long size;
+        final long createdAtNanos = System.nanoTime();
+
+        Entry(List<byte[]> chunks, long size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+    }
+
+    // One upstream request and the callers waiting for its response
+    private class Flight implements Util.ChunkHandler {
+        private final String url;
+        private final List<byte[]> chunks = new ArrayList<>();
+        private final List<Util.ChunkHandler> handlers = new ArrayList<>();
+        private long size;
+        // once the response outgrows an entry it is neither cached nor joined anymore
+        private boolean cacheable = true;
+        private boolean done;
+
+        Flight(String url) {
+            this.url = url;
+        }
+
+        synchronized boolean join(Util.ChunkHandler handler) {
+            if (done || !cacheable) return false;
+            for (int i = 0; i < chunks.size(); i++) {
+                handler.onChunk(chunks.get(i), i, false, false);
+            }
+            handlers.add(handler);
+            return true;
+        }
+
+        // The origin is read on once every caller has taken the chunk
+        @Override
+        public synchronized CompletableFuture<Void> onChunk(byte[] chunk, int sequence, boolean last, boolean failed) {
+            if (cacheable) {
+                size += chunk.length;
+                if (size > maxEntryBytes) {
+                    cacheable = false;
+                    chunks.clear();
+                    flights.remove(url, this);
+                } else {
+                    chunks.add(chunk);
+                }
+            }
+            // stored before the flight goes, so a caller that misses the flight finds the entry.
+            // Failed or cut off responses are not cached
+            if (last && !failed && cacheable) {
+                put(url, Collections.unmodifiableList(chunks), size);
+            }
+            CompletableFuture<?>[] taken = new CompletableFuture<?>[handlers.size()];
+            for (int i = 0; i < taken.length; i++) {
+                // one caller going away must not stop the others
+                taken[i] = handlers.get(i).onChunk(chunk, sequence, last, failed).exceptionally(e -> null);
+            }
+            if (last) {
+                done = true;
+                flights.remove(url, this);
+            }
+            return CompletableFuture.allOf(taken);
+        }
+    }
+}
@@ -5,108 +5,224 @@ import com.github.kiiril.messages.SessionKeyEstablishmentMessage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import javax.crypto.SecretKey;
-import java.math.BigInteger;
-import java.security.SecureRandom;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
-
-import static com.github.kiiril.PeerConnectionManager.HOST_IP;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 public class Session {
     private static final Logger logger = LogManager.getLogger();
+    static final String SESSION_KEY_INFO = "onion session key";
 
     private final int sessionId;
+    private final AES.Mode cipherMode;
+    // size of every onion message of the session, 0 if they are as long as their layers
+    private final int cellSize;
 
     private PeerConnection[] selectedRouters;
+    // the key of every router of a circuit this node sends through, in the order of the circuit
+    private SecretKey[] routerKeys;
+    // ephemeral public keys the routers derive their keys from, null if the keys were sent in key messages
+    private byte[][] ephemeralKeys;
+    // a response came back, so every router has its key and the layers no longer carry the ephemeral keys
+    private volatile boolean established;
 
     private SecretKey mySessionKey;
+    // the link the peer that set up mySessionKey sent it over, counted against its onion.maxSessionKeysPerLink
+    private PeerConnection keyLink;
     private PeerConnection previousPeer;
+    private PeerConnection nextPeer;
+    // the links of the session are counted as in use until it is removed, guarded by this
+    private boolean linksReleased;
+    private volatile long lastAccessNanos;
+    private final Map<Integer, StreamAssembler> streams = new ConcurrentHashMap<>();
+
+    public Session(int sessionId, AES.Mode cipherMode) {
+        this(sessionId, cipherMode, 0);
+    }
 
-    public Session(int sessionId) {
+    public Session(int sessionId, AES.Mode cipherMode, int cellSize) {
         this.sessionId = sessionId;
+        this.cipherMode = cipherMode;
+        this.cellSize = cellSize;
     }
 
     public boolean isSendingPeer() {
         return previousPeer == null && selectedRouters != null;
     }
 
-    public PeerConnection[] selectRouters(int numberOfRouters, Map<String, PeerConnection> activePeerConnections) {
-        if (activePeerConnections.size() < numberOfRouters) {
-            logger.info("Not enough peers to select from, returning all peers");
-            this.selectedRouters = activePeerConnections.values().toArray(new PeerConnection[0]); // return all peers if not enough
-            return selectedRouters;
+    // Routers chosen by the caller, in the order of the circuit
+    public synchronized void setSelectedRouters(PeerConnection[] selectedRouters) {
+        if (!linksReleased) {
+            for (PeerConnection router : selectedRouters) {
+                router.addSession();
+            }
         }
+        this.selectedRouters = selectedRouters;
+    }
 
-        PeerConnection[] selectedPeers = new PeerConnection[numberOfRouters];
+    // Wraps one chunk of a stream, chunks of a stream may be large so the payload is never logged.
+    // All layers are encrypted in place in one buffer from the innermost out: the sizes of the layers are known
+    // up front, so every layer's plain text is laid out right after the key, IV and header of the layer around it.
+    // Until the circuit is established every layer carries its router's ephemeral public key, whichever message
+    // reaches a router first sets up its key.
+    public byte[] encryptLayers(byte[] chunk, int streamId, int sequence, boolean last) {
+        if (logger.isDebugEnabled()) logger.debug("Encrypting chunk {} with layers for streamId={}", sequence, streamId);
+
+        int hops = selectedRouters.length;
+        byte[][] keys = layerKeys();
+        byte[][] nextHops = new byte[hops][];
+        byte[][] previousHops = new byte[hops][];
+        int[] keySizes = new int[hops];
+        int[] headerSizes = new int[hops];
+        int[] sizes = new int[hops];
+        int innerSize = chunk.length;
+        for (int i = hops - 1; i >= 0; i--) {
+            // Prepare routing information, only the last peer learns the stream
+            nextHops[i] = OnionCell.address(i < hops - 1 ? selectedRouters[i + 1].getAddress() : null);
+            previousHops[i] = OnionCell.address(i > 0 ? selectedRouters[i - 1].getAddress() : selectedRouters[i].getLocalAddress());
+            keySizes[i] = keys == null ? 0 : OnionCell.keySize(keys[i]);
+            headerSizes[i] = OnionCell.headerSize(nextHops[i], previousHops[i]);
+            sizes[i] = keySizes[i] + AES.encryptedSize(cipherMode, headerSizes[i] + innerSize);
+            innerSize = sizes[i];
+        }
+        if (cellSize > 0 && OnionCell.LENGTH_SIZE + sizes[0] > cellSize) {
+            throw new IllegalArgumentException("Chunk of " + chunk.length + " bytes does not fit a cell of " + cellSize + " bytes");
+        }
 
-        List<String> allIps = new ArrayList<>(activePeerConnections.keySet());
-        Collections.shuffle(allIps);
+        ByteBuffer message = ByteBuffer.allocate(cellSize > 0 ? cellSize : sizes[0]);
+        int start = cellSize > 0 ? OnionCell.LENGTH_SIZE : 0;
+        int[] starts = new int[hops];
+        for (int i = 0; i < hops; i++) {
+            starts[i] = start;
+            start += keySizes[i] + AES.ivLength(cipherMode) + headerSizes[i];
+        }
 
-        for (int i = 0; i < numberOfRouters; i++) {
-            selectedPeers[i] = activePeerConnections.get(allIps.get(i));
+        for (int i = hops - 1; i >= 0; i--) {
+            message.limit(message.capacity()).position(starts[i]);
+            if (keys != null) OnionCell.putKey(message, keys[i]);
+            int cipherStart = message.position();
+            int plainStart = cipherStart + AES.ivLength(cipherMode);
+            message.position(plainStart);
+            if (i == hops - 1) {
+                OnionCell.putHeader(message, nextHops[i], previousHops[i], streamId, sequence, last);
+                message.put(chunk);
+            } else {
+                OnionCell.putHeader(message, nextHops[i], previousHops[i], 0, 0, false);
+                message.position(message.position() + sizes[i + 1]);
+            }
+            ByteBuffer plain = message.duplicate().limit(message.position()).position(plainStart);
+            message.position(cipherStart);
+            if (AES.encrypt(cipherMode, routerKeys[i], plain, message) == -1) {
+                throw new IllegalStateException("Cannot encrypt a layer of session id=" + sessionId);
+            }
         }
+        if (cellSize > 0) message.putInt(0, sizes[0]);
+        return message.array();
+    }
 
-        logger.info("Routers were selected");
+    // Keys in front of the layers: the ephemeral ones until the circuit is established, then empty ones
+    private byte[][] layerKeys() {
+        if (ephemeralKeys == null || !established) return ephemeralKeys;
+        byte[][] none = new byte[ephemeralKeys.length][];
+        Arrays.fill(none, new byte[0]);
+        return none;
+    }
 
-        this.selectedRouters = selectedPeers;
-        return selectedRouters;
+    // Largest chunk that fits one message through this circuit, the first ones carry the ephemeral keys
+    public int getMaxChunkSize(int streamChunkSize) {
+        if (cellSize == 0) return streamChunkSize;
+        int overhead = OnionCell.LENGTH_SIZE;
+        for (int i = 0; i < selectedRouters.length; i++) {
+            byte[] nextHop = OnionCell.address(i < selectedRouters.length - 1 ? selectedRouters[i + 1].getAddress() : null);
+            byte[] previousHop = OnionCell.address(i > 0 ? selectedRouters[i - 1].getAddress() : selectedRouters[i].getLocalAddress());
+            if (ephemeralKeys != null) overhead += OnionCell.keySize(ephemeralKeys[i]);
+            overhead += AES.maxEncryptedSize(cipherMode, OnionCell.headerSize(nextHop, previousHop));
+        }
+        return Math.min(streamChunkSize, cellSize - overhead);
     }
 
-    public String encryptLayers(String plainText) {
-        generateAndSpreadSessionKey();
+    // Returns the innermost layer, it carries a chunk of the response with its stream id and sequence,
+    // null if the message cannot be decrypted. The layers are decrypted in place in the message.
+    public Layer decryptLayers(ByteBuffer message) {
+        logger.debug("Decrypting message with layers");
 
-        logger.info("Encrypting message with layers");
+        ByteBuffer layer = OnionCell.ciphertext(message, cellSize);
+        for (int i = 0; i < selectedRouters.length && layer != null; i++) {
+            layer = OnionCell.decrypt(cipherMode, routerKeys[i], layer);
+        }
+        return layer == null ? null : OnionCell.readLayer(layer);
+    }
 
-        String currentPayload = plainText;
-        for (int i = selectedRouters.length - 1; i >= 0; i--) {
-            PeerConnection peerConnection = selectedRouters[i];
+    // Done once per circuit instead of sending keys: every router's key comes from the router's long-lived public
+    // key, learnt from its link handshake, and an ephemeral key pair of this circuit. The routers derive the same
+    // key from the ephemeral public key in their layer of the first message that reaches them.
+    public void agreeOnSessionKeys(KeyExchange.Algorithm algorithm) {
+        logger.info("Deriving the session keys of all peers in the chain from ephemeral keys");
+
+        SecretKey[] keys = new SecretKey[selectedRouters.length];
+        ephemeralKeys = new byte[selectedRouters.length][];
+        for (int i = 0; i < selectedRouters.length; i++) {
+            KeyExchange ephemeral = KeyExchange.create(algorithm);
+            byte[] sharedSecret = ephemeral.generateSharedSecret(selectedRouters[i].getPeerPublicKey());
+            keys[i] = AES.deriveKey(sharedSecret, SESSION_KEY_INFO);
+            ephemeralKeys[i] = ephemeral.getPublicKey();
+        }
+        routerKeys = keys;
+    }
 
-            // Prepare routing information
-            String nextPeer = (i < selectedRouters.length - 1) ? selectedRouters[i + 1].getIp() : null;
-            String previousPeer = (i > 0) ? selectedRouters[i - 1].getIp() : HOST_IP;
+    // Done once per circuit, every request on it reuses the keys
+    public void generateAndSpreadSessionKey() {
+        logger.info("Establishing and sending session keys to all peers in the chain");
 
-            // Create a new layer with the current payload and routing info
-            Layer layer = new Layer(currentPayload, nextPeer, previousPeer);
-            logger.info("Layer: body={}, nextPeer={}, previousPeer={}", layer.getBody(), layer.getNextPeer(), layer.getPreviousPeer());
-            String jsonLayerMessage = Util.messageToJson(layer);
+        SecretKey[] keys = new SecretKey[selectedRouters.length];
+        for (int i = 0; i < selectedRouters.length; i++) {
+            keys[i] = AES.generateRandomKey();
 
-            logger.info("Encrypt layer with sessionKey={}", peerConnection.getSessionKey(sessionId));
-            currentPayload = AES.encrypt(jsonLayerMessage, peerConnection.getSessionKey(sessionId));
+            // Send the session key to all peers in the chain
+            SessionKeyEstablishmentMessage message = new SessionKeyEstablishmentMessage(sessionId, Base64.getEncoder().encodeToString(keys[i].getEncoded()));
+            selectedRouters[i].sendEncryptedMessage(message);
         }
-        return currentPayload;
+        routerKeys = keys;
     }
 
-    public String decryptLayers(String cipherText) {
-        logger.info("Decrypting message with layers");
+    // Chunks of a stream that are being put back together: the request at the exit node, the response at the sender
+    public StreamAssembler getStream(int streamId, Supplier<StreamAssembler> streamFactory) {
+        return streams.computeIfAbsent(streamId, id -> streamFactory.get());
+    }
 
-        String currentPayload = cipherText;
-        for (PeerConnection peerConnection : selectedRouters) {
-            // Decrypt current layer
-            logger.info("Decrypt layer with sessionKey={}", peerConnection.getSessionKey(sessionId));
-            String decryptedLayer = AES.decrypt(currentPayload, peerConnection.getSessionKey(sessionId));
+    // null if nobody waits for the stream anymore
+    public StreamAssembler getStream(int streamId) {
+        return streams.get(streamId);
+    }
 
-            Layer layerMessage = (Layer) Util.jsonToMessage(decryptedLayer);
-            logger.info("Layer: body={}", layerMessage.getBody());
+    public void removeStream(int streamId) {
+        streams.remove(streamId);
+    }
 
-            currentPayload = layerMessage.getBody();
+    public void abortStreams() {
+        for (StreamAssembler stream : streams.values()) {
+            try {
+                stream.abort();
+            } catch (IOException e) {
+                logger.warn("Cannot abort a stream of session id={}: {}", sessionId, e.getMessage());
+            }
         }
-        return currentPayload;
-
+        streams.clear();
     }
 
-    private void generateAndSpreadSessionKey() {
-        logger.info("Establishing and sending session keys to all peers in the chain");
-
-        for (PeerConnection selectedPeer : selectedRouters) {
-            BigInteger randomSecret = new BigInteger(2048, new SecureRandom());
-            SecretKey sessionKey = AES.generateKey(randomSecret);
+    void setEstablished() {
+        established = true;
+    }
 
-            selectedPeer.addSessionKey(sessionId, sessionKey);
+    public PeerConnection[] getSelectedRouters() {
+        return selectedRouters;
+    }
 
-            // Send the session key to all peers in the chain
-            SessionKeyEstablishmentMessage message = new SessionKeyEstablishmentMessage(sessionId, Base64.getEncoder().encodeToString(sessionKey.getEncoded()));
-            String jsonMessage = Util.messageToJson(message);
-            selectedPeer.sendMessage(AES.encrypt(jsonMessage, selectedPeer.getSymmetricKey()));
-        }
+    // Key of the router at the given position of the circuit, null until the keys are set up
+    public SecretKey getRouterKey(int hop) {
+        return routerKeys == null ? null : routerKeys[hop];
     }
 
     public void setMySessionKey(SecretKey mySessionKey) {
@@ -117,15 +233,60 @@ public class Session {
         return mySessionKey;
     }
 
-    public void setPreviousPeer(PeerConnection previousPeer) {
-        this.previousPeer = previousPeer;
+    void setKeyLink(PeerConnection keyLink) {
+        this.keyLink = keyLink;
+    }
+
+    // null on the sender, its keys are not set up by a peer
+    PeerConnection getKeyLink() {
+        return keyLink;
+    }
+
+    public synchronized void setPreviousPeer(PeerConnection previousPeer) {
+        this.previousPeer = hold(this.previousPeer, previousPeer);
     }
 
     public PeerConnection getPreviousPeer() {
         return previousPeer;
     }
 
+    public synchronized void setNextPeer(PeerConnection nextPeer) {
+        this.nextPeer = hold(this.nextPeer, nextPeer);
+    }
+
+    // Called with the lock held
+    private PeerConnection hold(PeerConnection current, PeerConnection next) {
+        if (current == next || linksReleased) return next;
+        if (current != null) current.removeSession();
+        if (next != null) next.addSession();
+        return next;
+    }
+
+    // Once the session is removed its links may be closed when idle
+    synchronized void releaseLinks() {
+        if (linksReleased) return;
+        linksReleased = true;
+        if (previousPeer != null) previousPeer.removeSession();
+        if (nextPeer != null) nextPeer.removeSession();
+        if (selectedRouters == null) return;
+        for (PeerConnection router : selectedRouters) {
+            router.removeSession();
+        }
+    }
+
+    public PeerConnection getNextPeer() {
+        return nextPeer;
+    }
+
     public int getSessionId() {
         return sessionId;
     }
+
+    void touch() {
+        lastAccessNanos = System.nanoTime();
+    }
+
+    long getLastAccessNanos() {
+        return lastAccessNanos;
+    }
 }
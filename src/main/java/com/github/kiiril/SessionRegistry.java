@@ -0,0 +1,271 @@
+package com.github.kiiril;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+// Sessions of this node keyed by session id. The table is split into stripes, each an open addressing
+// int -> Session map with its own lock, lookups are optimistic and normally take no lock at all.
+// Idle sessions expire after the TTL and the idlest session of a stripe is evicted when the table is full.
+public class SessionRegistry {
+    private static final Logger logger = LogManager.getLogger();
+    private static final int STRIPE_BITS = 4;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+    // 0 marks an empty slot and is never handed out as a session id
+    private static final int NO_SESSION = 0;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final int maxSessionsPerStripe;
+    private final long idleTtlNanos;
+    private final Consumer<Session> removalListener;
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final LongAdder expiredSessions = new LongAdder();
+    private final LongAdder evictedSessions = new LongAdder();
+
+    public SessionRegistry(int maxSessions, long idleTtlMillis, Consumer<Session> removalListener, String nodeName) {
+        this.maxSessionsPerStripe = Math.max(1, maxSessions / STRIPES);
+        this.idleTtlNanos = TimeUnit.MILLISECONDS.toNanos(idleTtlMillis);
+        this.removalListener = removalListener;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(nodeName, "session-sweeper"));
+        long sweepPeriod = Math.max(1000, idleTtlMillis / 4);
+        sweeper.scheduleWithFixedDelay(this::expireIdleSessions, sweepPeriod, sweepPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    // Creates a session under a random id that is not used by any other session of this node
+    public Session create(IntFunction<Session> sessionFactory) {
+        while (true) {
+            int sessionId = random.nextInt();
+            if (sessionId == NO_SESSION) continue;
+
+            Session session = sessionFactory.apply(sessionId);
+            if (register(session)) return session;
+        }
+    }
+
+    // Adds a session created with an id chosen elsewhere, returns false if the id is already taken
+    public boolean register(Session session) {
+        if (session.getSessionId() == NO_SESSION) return false;
+
+        session.touch();
+        Session evicted = stripeFor(session.getSessionId()).putIfAbsent(session);
+        if (evicted == session) return false;
+
+        activeSessions.incrementAndGet();
+        if (evicted != null) {
+            activeSessions.decrementAndGet();
+            evictedSessions.increment();
+            logger.info("Evicted session with session id={} to make room", evicted.getSessionId());
+            removalListener.accept(evicted);
+        }
+        return true;
+    }
+
+    public Session get(int sessionId) {
+        if (sessionId == NO_SESSION) return null;
+
+        Session session = stripeFor(sessionId).get(sessionId);
+        if (session != null) session.touch();
+        return session;
+    }
+
+    public Session remove(int sessionId) {
+        if (sessionId == NO_SESSION) return null;
+
+        Session session = stripeFor(sessionId).remove(sessionId);
+        if (session != null) {
+            activeSessions.decrementAndGet();
+            removalListener.accept(session);
+        }
+        return session;
+    }
+
+    private void expireIdleSessions() {
+        long now = System.nanoTime();
+        for (Stripe stripe : stripes) {
+            for (Session session : stripe.removeIdle(now - idleTtlNanos)) {
+                activeSessions.decrementAndGet();
+                expiredSessions.increment();
+                removalListener.accept(session);
+            }
+        }
+    }
+
+    private Stripe stripeFor(int sessionId) {
+        // high bits pick the stripe, low bits the slot inside it
+        return stripes[mix(sessionId) >>> (Integer.SIZE - STRIPE_BITS)];
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    public long getExpiredSessions() {
+        return expiredSessions.sum();
+    }
+
+    public long getEvictedSessions() {
+        return evictedSessions.sum();
+    }
+
+    private class Stripe {
+        private final StampedLock lock = new StampedLock();
+        private int[] keys = new int[16];
+        private Session[] values = new Session[16];
+        private int size;
+
+        Session get(int sessionId) {
+            long stamp = lock.tryOptimisticRead();
+            Session session = find(keys, values, sessionId);
+            if (lock.validate(stamp)) return session;
+
+            stamp = lock.readLock();
+            try {
+                return find(keys, values, sessionId);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Returns null if added, the session itself if the id is taken or the evicted session
+        Session putIfAbsent(Session session) {
+            long stamp = lock.writeLock();
+            try {
+                int sessionId = session.getSessionId();
+                if (find(keys, values, sessionId) != null) return session;
+
+                Session evicted = null;
+                if (size >= maxSessionsPerStripe) {
+                    evicted = idlest();
+                    delete(evicted.getSessionId());
+                }
+                if ((size + 1) * 2 > keys.length) resize(keys.length * 2);
+
+                insert(keys, values, session);
+                size++;
+                return evicted;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        Session remove(int sessionId) {
+            long stamp = lock.writeLock();
+            try {
+                return delete(sessionId);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        List<Session> removeIdle(long idleSince) {
+            List<Session> removed = new ArrayList<>();
+            long stamp = lock.writeLock();
+            try {
+                for (Session session : values.clone()) {
+                    if (session != null && session.getLastAccessNanos() - idleSince < 0) {
+                        delete(session.getSessionId());
+                        removed.add(session);
+                    }
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            return removed;
+        }
+
+        private Session idlest() {
+            Session idlest = null;
+            for (Session session : values) {
+                if (session != null && (idlest == null || session.getLastAccessNanos() - idlest.getLastAccessNanos() < 0)) {
+                    idlest = session;
+                }
+            }
+            return idlest;
+        }
+
+        // Safe to call without the lock, a torn read is detected by the caller's stamp validation
+        private Session find(int[] keys, Session[] values, int sessionId) {
+            if (keys.length != values.length) return null;
+
+            int mask = keys.length - 1;
+            for (int i = mix(sessionId) & mask, probes = 0; probes < keys.length; i = (i + 1) & mask, probes++) {
+                int key = keys[i];
+                if (key == NO_SESSION) return null;
+                if (key == sessionId) return values[i];
+            }
+            return null;
+        }
+
+        private void insert(int[] keys, Session[] values, Session session) {
+            int mask = keys.length - 1;
+            int i = mix(session.getSessionId()) & mask;
+            while (keys[i] != NO_SESSION) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = session.getSessionId();
+            values[i] = session;
+        }
+
+        // Linear probing removal with backward shift, so no tombstones are left behind
+        private Session delete(int sessionId) {
+            int mask = keys.length - 1;
+            int i = mix(sessionId) & mask;
+            while (keys[i] != sessionId) {
+                if (keys[i] == NO_SESSION) return null;
+                i = (i + 1) & mask;
+            }
+
+            Session removed = values[i];
+            int gap = i;
+            for (int j = (i + 1) & mask; keys[j] != NO_SESSION; j = (j + 1) & mask) {
+                int home = mix(keys[j]) & mask;
+                // move the entry into the gap unless its home slot lies cyclically in (gap, j]
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            keys[gap] = NO_SESSION;
+            values[gap] = null;
+            size--;
+            return removed;
+        }
+
+        private void resize(int capacity) {
+            int[] newKeys = new int[capacity];
+            Session[] newValues = new Session[capacity];
+            for (Session session : values) {
+                if (session != null) insert(newKeys, newValues, session);
+            }
+            keys = newKeys;
+            values = newValues;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.github.kiiril;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.UnaryOperator;
+
+// A whole network in one JVM: node i listens on 127.0.0.1:(basePort + i) and joins through node 0.
+// Every node gets its own NodeConfig, system properties still provide the defaults. Threads of node i
+// are named "node<i>-...", which is how CPU time and allocations are told apart per node.
+public class Simulation {
+    private static final Logger logger = LogManager.getLogger();
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final long SAMPLE_PERIOD_MILLIS = 500;
+
+    private final List<PeerConnectionManager> nodes = new ArrayList<>();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("simulation-sampler"));
+    // latest CPU time and allocated bytes of every thread seen so far, threads that ended keep their last sample
+    private final Map<Long, ThreadSample> threadSamples = new HashMap<>();
+
+    // configurer adjusts each node's config, e.g. to change the wire format of the whole network.
+    // Nodes listen on basePort and the ports after it, on free ports picked by the system if basePort is 0.
+    public Simulation(int nodeCount, int basePort, UnaryOperator<NodeConfig> configurer) throws IOException {
+        if (threads.isThreadCpuTimeSupported()) threads.setThreadCpuTimeEnabled(true);
+        // the first node joins nobody, the others join it
+        String bootstrapPeer = basePort == 0 ? "" : LOOPBACK + ":" + basePort;
+        for (int i = 0; i < nodeCount; i++) {
+            NodeConfig config = configurer.apply(new NodeConfig()
+                    .setHost(LOOPBACK)
+                    .setListenPort(basePort == 0 ? 0 : basePort + i)
+                    .setBootstrapPeer(bootstrapPeer)
+                    .setConsoleEnabled(false)
+                    .setMetricsPort(0)
+                    .setProxyPort(0)
+                    .setNodeName(nodeName(i)));
+            PeerConnectionManager node = new PeerConnectionManager(config);
+            nodes.add(node);
+            if (bootstrapPeer.isEmpty()) bootstrapPeer = node.getAddress();
+            try {
+                node.start();
+            } catch (IOException e) {
+                shutdown();
+                throw e;
+            }
+        }
+        sampler.scheduleWithFixedDelay(this::sampleThreads, 0, SAMPLE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static String nodeName(int index) {
+        return "node" + index;
+    }
+
+    // Waits until every node knows every other node, as far as its views can hold them, and has a circuit ready
+    public void awaitReady(long timeoutMillis) throws InterruptedException, TimeoutException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!isReady()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new TimeoutException("Network of " + nodes.size() + " nodes did not form within " + timeoutMillis + " ms");
+            }
+            Thread.sleep(100);
+        }
+        logger.info("Network of {} nodes is ready", nodes.size());
+    }
+
+    private boolean isReady() {
+        for (PeerConnectionManager node : nodes) {
+            if (node.getKnownAddresses().size() < Math.min(nodes.size() - 1, node.getConfig().getPassiveViewSize())) return false;
+            if (node.getCircuitPool().getReadyCircuits() == 0) return false;
+        }
+        return true;
+    }
+
+    public List<PeerConnectionManager> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    private synchronized void sampleThreads() {
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threads : null;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            String node = nodeOf(thread.getName());
+            if (node == null) continue;
+
+            long threadId = thread.getId();
+            long cpuNanos = threads.isThreadCpuTimeSupported() ? threads.getThreadCpuTime(threadId) : -1;
+            long allocatedBytes = allocations != null ? allocations.getThreadAllocatedBytes(threadId) : -1;
+            // -1 once the thread has ended, its last sample stays
+            if (cpuNanos == -1 && allocatedBytes == -1) continue;
+            threadSamples.put(threadId, new ThreadSample(node, Math.max(cpuNanos, 0), Math.max(allocatedBytes, 0)));
+        }
+    }
+
+    private String nodeOf(String threadName) {
+        int separator = threadName.indexOf('-');
+        if (separator == -1 || !threadName.startsWith("node")) return null;
+        return threadName.substring(0, separator);
+    }
+
+    // CPU time of each node's threads so far, by node name
+    public synchronized Map<String, Long> getCpuNanos() {
+        sampleThreads();
+        Map<String, Long> cpuNanos = new TreeMap<>(Comparator.comparingInt(name -> Integer.parseInt(name.substring(4))));
+        for (int i = 0; i < nodes.size(); i++) cpuNanos.put(nodeName(i), 0L);
+        threadSamples.values().forEach(sample -> cpuNanos.merge(sample.node, sample.cpuNanos, Long::sum));
+        return cpuNanos;
+    }
+
+    // Bytes allocated by each node's threads so far. The heap is shared by all nodes of the JVM,
+    // allocations are the part of it that can be attributed to a node.
+    public synchronized Map<String, Long> getAllocatedBytes() {
+        sampleThreads();
+        Map<String, Long> allocatedBytes = new TreeMap<>(Comparator.comparingInt(name -> Integer.parseInt(name.substring(4))));
+        for (int i = 0; i < nodes.size(); i++) allocatedBytes.put(nodeName(i), 0L);
+        threadSamples.values().forEach(sample -> allocatedBytes.merge(sample.node, sample.allocatedBytes, Long::sum));
+        return allocatedBytes;
+    }
+
+    public void shutdown() {
+        sampler.shutdownNow();
+        nodes.forEach(PeerConnectionManager::shutdown);
+    }
+
+    private static class ThreadSample {
+        private final String node;
+        private final long cpuNanos;
+        private final long allocatedBytes;
+
+        ThreadSample(String node, long cpuNanos, long allocatedBytes) {
+            this.node = node;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+}
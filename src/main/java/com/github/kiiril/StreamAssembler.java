@@ -0,0 +1,73 @@
+package com.github.kiiril;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// Puts the chunks of one stream back in order. A chunk is written to the sink as soon as every chunk before it
+// has arrived, only chunks that overtook others are held back, at most maxPendingChunks of them.
+// A stream whose last chunk is marked failed aborts its sink once all chunks are written instead of closing it.
+public class StreamAssembler {
+    private final StreamSink sink;
+    private final int maxPendingChunks;
+    private final Map<Integer, byte[]> pendingChunks = new HashMap<>();
+    private int nextSequence;
+    private int lastSequence = -1;
+    private boolean failed;
+    private boolean closed;
+
+    public StreamAssembler(StreamSink sink, int maxPendingChunks) {
+        this.sink = sink;
+        this.maxPendingChunks = maxPendingChunks;
+    }
+
+    public boolean accept(int sequence, byte[] chunk, boolean last) throws IOException {
+        return accept(sequence, chunk, last, false);
+    }
+
+    // Returns true once the last chunk has been written and the sink is closed or aborted
+    public synchronized boolean accept(int sequence, byte[] chunk, boolean last, boolean failed) throws IOException {
+        if (closed || sequence < nextSequence || pendingChunks.containsKey(sequence)) return closed;
+        if (last) {
+            lastSequence = sequence;
+            this.failed = failed;
+        }
+
+        if (sequence != nextSequence) {
+            if (pendingChunks.size() >= maxPendingChunks) {
+                throw new IOException("More than " + maxPendingChunks + " chunks arrived out of order");
+            }
+            pendingChunks.put(sequence, chunk);
+            return false;
+        }
+
+        sink.write(chunk);
+        nextSequence++;
+        byte[] pending;
+        while ((pending = pendingChunks.remove(nextSequence)) != null) {
+            sink.write(pending);
+            nextSequence++;
+        }
+
+        if (lastSequence != -1 && nextSequence > lastSequence) {
+            closed = true;
+            if (failed) sink.abort();
+            else sink.close();
+        }
+        return closed;
+    }
+
+    // Completes once the sink has taken the chunks written to it so far
+    public CompletableFuture<Void> written() {
+        return sink.written();
+    }
+
+    // Gives up on a stream that will never complete
+    public synchronized void abort() throws IOException {
+        if (closed) return;
+        closed = true;
+        pendingChunks.clear();
+        sink.abort();
+    }
+}
@@ -0,0 +1,29 @@
+package com.github.kiiril;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+// Receives the chunks of a stream in order, close is called once after the last chunk
+// and abort instead of close if the stream breaks off. Calls come from the worker thread that decrypted
+// the chunk, sinks that do I/O hand the work to another thread and report through completion.
+public interface StreamSink {
+    void write(byte[] chunk) throws IOException;
+
+    default void close() throws IOException {
+    }
+
+    // Releases what the sink holds without reporting the stream as complete
+    default void abort() throws IOException {
+    }
+
+    // Completes once the chunks written so far are taken, a circuit only gets its credits for them back then,
+    // so a slow sink holds the sender back instead of piling chunks up in memory
+    default CompletableFuture<Void> written() {
+        return Util.DONE;
+    }
+
+    // Completes once the stream is where it belongs after close, fails if it never gets there
+    default CompletableFuture<Void> completion() {
+        return Util.DONE;
+    }
+}
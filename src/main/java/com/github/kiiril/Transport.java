@@ -0,0 +1,44 @@
+package com.github.kiiril;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+// Moves frames between peers, decides which threads read, write and process messages
+public interface Transport {
+    enum Mode {
+        BLOCKING,
+        NIO
+    }
+
+    // Binds the listening socket and returns its port, a free one is picked if port is 0
+    int bind(int port) throws IOException;
+
+    // Starts accepting on the bound socket, accepted links are handed over before they start reading
+    void listen(Consumer<Link> acceptHandler);
+
+    CompletableFuture<Link> connect(String host, int port);
+
+    // Executor that processes received messages, wrapped per link to keep their order
+    Executor getMessageExecutor();
+
+    // Executor that starts the handshakes of accepted links, so the accept thread only accepts
+    Executor getHandshakeExecutor();
+
+    // Received messages waiting for a thread to process them
+    int getQueuedMessages();
+
+    void shutdown();
+
+    static Transport create(NodeConfig config) throws IOException {
+        switch (config.getTransportMode()) {
+            case BLOCKING:
+                return new BlockingTransport(config);
+            case NIO:
+                return new NioTransport(config);
+            default:
+                throw new IllegalArgumentException("Unknown transport mode: " + config.getTransportMode());
+        }
+    }
+}
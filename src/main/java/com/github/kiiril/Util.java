@@ -3,68 +3,75 @@ package com.github.kiiril;
 import com.github.kiiril.messages.Message;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.Scanner;
-import java.util.Set;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class Util {
     private static final Logger logger = LogManager.getLogger();
 
     private static final Gson gson = new GsonBuilder()
             .registerTypeAdapter(Message.class, new MessageAdapter())
+            // onion layers are raw bytes, JSON carries their remaining bytes as Base64
+            .registerTypeHierarchyAdapter(ByteBuffer.class, new TypeAdapter<ByteBuffer>() {
+                @Override
+                public void write(JsonWriter out, ByteBuffer value) throws IOException {
+                    out.value(Base64.getEncoder().encodeToString(Arrays.copyOfRange(value.array(),
+                            value.arrayOffset() + value.position(), value.arrayOffset() + value.limit())));
+                }
+
+                @Override
+                public ByteBuffer read(JsonReader in) throws IOException {
+                    return ByteBuffer.wrap(Base64.getDecoder().decode(in.nextString()));
+                }
+            }.nullSafe())
             .create();
 
     public static String messageToJson(Message message) {
-        return gson.toJson(message);
+        long start = System.nanoTime();
+        String json = gson.toJson(message);
+        Metrics.SERIALIZE.recordSince(start);
+        return json;
     }
 
     public static Message jsonToMessage(String json) {
-        return gson.fromJson(json, Message.class);
+        long start = System.nanoTime();
+        Message message = gson.fromJson(json, Message.class);
+        Metrics.DESERIALIZE.recordSince(start);
+        return message;
     }
 
-    public static String setToString(Set<String> set) {
-        return gson.toJson(set);
+    public interface ChunkHandler {
+        // A producer that can wait holds the next chunk back until the returned future completes. failed is only
+        // set on the last chunk, the stream broke off or never started and is not to be taken as complete.
+        CompletableFuture<Void> onChunk(byte[] chunk, int sequence, boolean last, boolean failed);
     }
 
-    public static Set<String> stringToSet(String string) {
-        Type setType = new TypeToken<Set<String>>() {}.getType();
-        return gson.fromJson(string, setType);
-    }
-
-    public static String makeRequest(String stringUrl) {
-        logger.info("Making request to: {}", stringUrl);
-        try {
-            URL url = new URL(stringUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
+    public static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
 
-            int responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                logger.info("Status code is OK");
-                Scanner scanner = new Scanner(connection.getInputStream());
-                StringBuilder response = new StringBuilder();
-                while (scanner.hasNextLine()) {
-                    response.append(scanner.nextLine());
-                }
-                scanner.close();
-                return response.toString();
-            } else {
-                logger.warn("Cannot get response from URL: {}", stringUrl);
-                return "";
+    // Splits the input into chunks of chunkSize bytes, the last chunk is shorter and may be empty.
+    // Waits for every chunk to be taken before reading the next one.
+    public static void readChunks(InputStream input, int chunkSize, ChunkHandler handler) throws IOException {
+        for (int sequence = 0; ; sequence++) {
+            // readNBytes only returns fewer bytes than asked for at the end of the stream
+            byte[] chunk = input.readNBytes(chunkSize);
+            boolean last = chunk.length < chunkSize;
+            try {
+                handler.onChunk(chunk, sequence, last, false).join();
+            } catch (CompletionException e) {
+                throw new IOException("Chunk " + sequence + " was not taken", e.getCause());
             }
-        } catch (MalformedURLException e) {
-            logger.warn("Cannot create URL from string: {} (error={})", stringUrl, e);
-        } catch (IOException e) {
-            logger.warn("Cannot open connection to URL: {} (error={})", stringUrl, e);
+            if (last) return;
         }
-        return "";
     }
 }
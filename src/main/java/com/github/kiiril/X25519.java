@@ -0,0 +1,64 @@
+package com.github.kiiril;
+
+import javax.crypto.KeyAgreement;
+import java.math.BigInteger;
+import java.security.*;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPublicKeySpec;
+
+// Elliptic curve Diffie-Hellman on Curve25519, public keys travel as the 32 byte little-endian u coordinate
+public class X25519 implements KeyExchange {
+    private static final int KEY_LENGTH = 32;
+
+    private final KeyPair keyPair;
+    private final byte[] publicKey;
+
+    public X25519() {
+        try {
+            keyPair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("X25519 is not supported by this JDK", e);
+        }
+        publicKey = encode(((XECPublicKey) keyPair.getPublic()).getU());
+    }
+
+    @Override
+    public byte[] getPublicKey() {
+        return publicKey.clone();
+    }
+
+    @Override
+    public byte[] generateSharedSecret(byte[] otherPublicKey) {
+        try {
+            PublicKey other = KeyFactory.getInstance("XDH")
+                    .generatePublic(new XECPublicKeySpec(NamedParameterSpec.X25519, decode(otherPublicKey)));
+            KeyAgreement keyAgreement = KeyAgreement.getInstance("XDH");
+            keyAgreement.init(keyPair.getPrivate());
+            keyAgreement.doPhase(other, true);
+            return keyAgreement.generateSecret();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Invalid X25519 public key", e);
+        }
+    }
+
+    private static byte[] encode(BigInteger u) {
+        byte[] bigEndian = u.toByteArray();
+        byte[] littleEndian = new byte[KEY_LENGTH];
+        for (int i = 0; i < Math.min(bigEndian.length, KEY_LENGTH); i++) {
+            littleEndian[i] = bigEndian[bigEndian.length - 1 - i];
+        }
+        return littleEndian;
+    }
+
+    private static BigInteger decode(byte[] littleEndian) {
+        if (littleEndian.length != KEY_LENGTH) {
+            throw new IllegalArgumentException("X25519 public key must be " + KEY_LENGTH + " bytes");
+        }
+        byte[] bigEndian = new byte[KEY_LENGTH];
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            bigEndian[i] = littleEndian[KEY_LENGTH - 1 - i];
+        }
+        return new BigInteger(1, bigEndian);
+    }
+}
@@ -1,19 +1,32 @@
 package com.github.kiiril.messages;
 
 import com.github.kiiril.MessageType;
+import java.nio.ByteBuffer;
 
 public class BackwardMessage extends Message {
     private final int sessionId;
-    private final String body;
+    private final ByteBuffer body;
+    // pooled buffer the body lies in, null if it is not pooled; given back once the message is sent on or consumed
+    private final transient ByteBuffer buffer;
 
-    public BackwardMessage(int sessionId, String body) {
+    public BackwardMessage(int sessionId, byte[] body) {
+        this(sessionId, ByteBuffer.wrap(body), null);
+    }
+
+    public BackwardMessage(int sessionId, ByteBuffer body, ByteBuffer buffer) {
         super(MessageType.BACKWARD_MESSAGE);
         this.sessionId = sessionId;
         this.body = body;
+        this.buffer = buffer;
+    }
+
+    // A view of the body, callers may move its position and limit
+    public ByteBuffer getBody() {
+        return body.duplicate();
     }
 
-    public String getBody() {
-        return body;
+    public ByteBuffer getBuffer() {
+        return buffer;
     }
 
     public int getSessionId() {
@@ -1,16 +1,32 @@
 package com.github.kiiril.messages;
 
 import com.github.kiiril.MessageType;
+import java.util.Map;
 
+// Membership changes batched since the last message over a link. Both maps go from a peer's address to the
+// number of hops the change may still travel, 0 stops it at the receiver.
 public class DiscoveryMessage extends Message {
-    private final String body;
+    private final Map<String, Integer> joined;
+    private final Map<String, Integer> left;
+    // sessions the sender is willing to carry, 0 if it does not advertise a capacity
+    private final int capacity;
 
-    public DiscoveryMessage(String body) {
+    public DiscoveryMessage(Map<String, Integer> joined, Map<String, Integer> left, int capacity) {
         super(MessageType.DISCOVERY);
-        this.body = body;
+        this.joined = joined;
+        this.left = left;
+        this.capacity = capacity;
     }
 
-    public String getBody() {
-        return body;
+    public Map<String, Integer> getJoined() {
+        return joined;
+    }
+
+    public Map<String, Integer> getLeft() {
+        return left;
+    }
+
+    public int getCapacity() {
+        return capacity;
     }
 }
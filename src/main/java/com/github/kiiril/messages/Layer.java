@@ -1,20 +1,38 @@
 package com.github.kiiril.messages;
 
 import com.github.kiiril.MessageType;
+import java.nio.ByteBuffer;
 
+// A decrypted onion layer, OnionCell reads and writes its binary form. The body is a view of the decrypted
+// message rather than a copy.
 public class Layer extends Message {
-    private final String body;
+    private final ByteBuffer body;
     private final String nextPeer;
     private final String previousPeer;
+    // only set in the innermost layer, identifies the request on a circuit
+    private final int streamId;
+    // position of the chunk the innermost layer carries within its stream, and whether it ends the stream
+    private final int sequence;
+    private final boolean last;
+    // the last chunk of a response the exit node could not fetch
+    private final boolean failed;
 
-    public Layer(String body, String nextPeer, String previousPeer) {
+    public Layer(ByteBuffer body, String nextPeer, String previousPeer) {
+        this(body, nextPeer, previousPeer, 0, 0, false, false);
+    }
+
+    public Layer(ByteBuffer body, String nextPeer, String previousPeer, int streamId, int sequence, boolean last, boolean failed) {
         super(MessageType.LAYER);
         this.body = body;
         this.nextPeer = nextPeer;
         this.previousPeer = previousPeer;
+        this.streamId = streamId;
+        this.sequence = sequence;
+        this.last = last;
+        this.failed = failed;
     }
 
-    public String getBody() {
+    public ByteBuffer getBody() {
         return body;
     }
 
@@ -25,4 +43,20 @@ public class Layer extends Message {
     public String getPreviousPeer() {
         return previousPeer;
     }
+
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
 }
@@ -0,0 +1,28 @@
+package com.github.kiiril.messages;
+
+import com.github.kiiril.MessageType;
+
+// Moves a link in or out of the active views of its two peers, links outside them only carry circuits
+public class NeighborMessage extends Message {
+    public enum Kind {
+        // a node without neighbors joins through the receiver, which never refuses it
+        JOIN,
+        // a node asks to fill a free slot of its view, refused when the receiver's view is full
+        REQUEST,
+        ACCEPT,
+        REJECT,
+        // the sender took the link out of its view to make room for a joining node
+        DISCONNECT
+    }
+
+    private final Kind kind;
+
+    public NeighborMessage(Kind kind) {
+        super(MessageType.NEIGHBOR);
+        this.kind = kind;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+}
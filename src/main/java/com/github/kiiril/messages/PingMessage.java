@@ -0,0 +1,30 @@
+package com.github.kiiril.messages;
+
+import com.github.kiiril.MessageType;
+
+// Measures a link's round trip time: the peer echoes the timestamp back in a reply. Both directions
+// carry the sender's load, the number of sessions it currently takes part in.
+public class PingMessage extends Message {
+    private final long timestampNanos;
+    private final boolean reply;
+    private final int load;
+
+    public PingMessage(long timestampNanos, boolean reply, int load) {
+        super(MessageType.PING);
+        this.timestampNanos = timestampNanos;
+        this.reply = reply;
+        this.load = load;
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    public boolean isReply() {
+        return reply;
+    }
+
+    public int getLoad() {
+        return load;
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.kiiril.messages;
+
+import com.github.kiiril.MessageType;
+
+// Gives the other side of a link back a window increment of credits, for the whole link when sessionId is 0
+public class SendmeMessage extends Message {
+    private final int sessionId;
+
+    public SendmeMessage(int sessionId) {
+        super(MessageType.SENDME);
+        this.sessionId = sessionId;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+}
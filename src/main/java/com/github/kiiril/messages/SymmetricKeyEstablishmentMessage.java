@@ -4,13 +4,20 @@ import com.github.kiiril.MessageType;
 
 public class SymmetricKeyEstablishmentMessage extends Message {
     private final String body;
+    // host:port the sender listens on, an accepted link only knows the peer's ephemeral port
+    private final String address;
 
-    public SymmetricKeyEstablishmentMessage(String body) {
+    public SymmetricKeyEstablishmentMessage(String body, String address) {
         super(MessageType.SYMMETRIC_KEY_ESTABLISHMENT);
         this.body = body;
+        this.address = address;
     }
 
     public String getBody() {
         return body;
     }
+
+    public String getAddress() {
+        return address;
+    }
 }
@@ -0,0 +1,90 @@
+package com.github.kiiril;
+
+import com.github.kiiril.messages.ForwardMessage;
+import org.junit.jupiter.api.Test;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+    // the largest size class, which nothing else in the tests keeps buffers of
+    private static final int SIZE_CLASS = 2 * 1024 * 1024;
+    private static final int SIZE = SIZE_CLASS - 100_000;
+
+    // Takes every free buffer of the size class, so the next release is the next one acquired
+    private static List<ByteBuffer> drain() {
+        List<ByteBuffer> taken = new ArrayList<>();
+        for (int i = 0; i < 16 * 1024 * 1024 / SIZE_CLASS; i++) {
+            taken.add(BufferPool.acquire(SIZE));
+        }
+        return taken;
+    }
+
+    @Test
+    void releasedBufferIsReusedForItsSizeClass() {
+        ByteBuffer buffer = BufferPool.acquire(SIZE);
+        assertEquals(SIZE_CLASS, buffer.capacity());
+        assertEquals(0, buffer.position());
+        assertEquals(SIZE, buffer.limit());
+        buffer.put(new byte[1000]);
+
+        drain();
+        BufferPool.release(buffer);
+        ByteBuffer reused = BufferPool.acquire(SIZE_CLASS / 2 + 1);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(SIZE_CLASS / 2 + 1, reused.limit());
+    }
+
+    @Test
+    void buffersOfOtherSizesAreNotTakenBack() {
+        List<ByteBuffer> others = List.of(
+                ByteBuffer.allocate(SIZE),
+                ByteBuffer.allocate(SIZE_CLASS + 1).position(1).slice(),
+                ByteBuffer.allocateDirect(SIZE_CLASS));
+
+        drain();
+        BufferPool.release(null);
+        for (ByteBuffer other : others) {
+            BufferPool.release(other);
+        }
+        ByteBuffer buffer = BufferPool.acquire(SIZE);
+        for (ByteBuffer other : others) {
+            assertNotSame(other, buffer);
+        }
+    }
+
+    @Test
+    void oversizedBuffersAreNotPooled() {
+        ByteBuffer buffer = BufferPool.acquire(SIZE_CLASS + 1);
+        assertEquals(SIZE_CLASS + 1, buffer.capacity());
+
+        BufferPool.release(buffer);
+        assertNotSame(buffer, BufferPool.acquire(SIZE_CLASS + 1));
+    }
+
+    @Test
+    void frameThatCannotBeDecryptedGoesBackToThePool() {
+        BinaryFrameCodec codec = new BinaryFrameCodec(2 * SIZE_CLASS, AES.Mode.GCM);
+        ByteBuffer frame = codec.encode(new ForwardMessage(1, StubOrigin.randomBody(SIZE)), AES.generateRandomKey());
+        assertEquals(SIZE_CLASS, frame.capacity());
+
+        drain();
+        assertThrows(ProtocolException.class, () -> codec.decode(frame, AES.generateRandomKey()));
+        assertSame(frame, BufferPool.acquire(SIZE));
+    }
+
+    @Test
+    void frameOfUnknownTypeGoesBackToThePool() {
+        BinaryFrameCodec codec = new BinaryFrameCodec(2 * SIZE_CLASS, AES.Mode.GCM);
+        ByteBuffer frame = codec.encode(new ForwardMessage(1, StubOrigin.randomBody(SIZE)), null);
+        frame.put(BinaryFrameCodec.LENGTH_SIZE, (byte) 0x7F);
+
+        drain();
+        assertThrows(ProtocolException.class, () -> codec.decode(frame, null));
+        assertSame(frame, BufferPool.acquire(SIZE));
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.kiiril;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Chunk handler that keeps everything it is given, done completes with the whole body after the last chunk
+class ChunkRecorder implements Util.ChunkHandler {
+    final CompletableFuture<byte[]> done = new CompletableFuture<>();
+    final List<Integer> sequences = new ArrayList<>();
+    final List<Integer> sizes = new ArrayList<>();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private int lastChunks;
+    private boolean failed;
+
+    @Override
+    public synchronized CompletableFuture<Void> onChunk(byte[] chunk, int sequence, boolean last, boolean failed) {
+        sequences.add(sequence);
+        sizes.add(chunk.length);
+        body.write(chunk, 0, chunk.length);
+        if (last) {
+            lastChunks++;
+            this.failed = failed;
+            done.complete(body.toByteArray());
+        }
+        return Util.DONE;
+    }
+
+    synchronized int getLastChunks() {
+        return lastChunks;
+    }
+
+    // Whether the last chunk was marked failed
+    synchronized boolean isFailed() {
+        return failed;
+    }
+}
@@ -0,0 +1,132 @@
+package com.github.kiiril;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExitHttpClientTest {
+    private static final int CHUNK_SIZE = 4096;
+
+    private ExitHttpClient client;
+    private StubOrigin origin;
+
+    @AfterEach
+    void tearDown() {
+        if (client != null) client.shutdown();
+        if (origin != null) origin.close();
+    }
+
+    private ExitHttpClient client(int maxConcurrentRequests, int maxPendingRequests) {
+        return new ExitHttpClient(new NodeConfig()
+                .setNodeName("test")
+                .setStreamChunkSize(CHUNK_SIZE)
+                .setExitMaxConcurrentRequests(maxConcurrentRequests)
+                .setExitMaxPendingRequests(maxPendingRequests));
+    }
+
+    @Test
+    void streamsTheBodyInChunks() throws Exception {
+        byte[] body = StubOrigin.randomBody(10 * CHUNK_SIZE + 123);
+        origin = new StubOrigin(200, body, false);
+        client = client(4, 16);
+
+        ChunkRecorder recorder = new ChunkRecorder();
+        assertTrue(client.send(origin.url("/"), recorder).get(10, TimeUnit.SECONDS));
+
+        assertArrayEquals(body, recorder.done.get());
+        assertEquals(1, recorder.getLastChunks());
+        assertFalse(recorder.isFailed());
+        for (int i = 0; i < recorder.sequences.size(); i++) {
+            assertEquals(i, recorder.sequences.get(i));
+            assertTrue(recorder.sizes.get(i) <= CHUNK_SIZE);
+        }
+    }
+
+    @Test
+    void failedRequestEndsWithAnEmptyFailedLastChunk() throws Exception {
+        origin = new StubOrigin(404, "missing".getBytes(), false);
+        client = client(4, 16);
+
+        ChunkRecorder recorder = new ChunkRecorder();
+        assertFalse(client.send(origin.url("/"), recorder).get(10, TimeUnit.SECONDS));
+
+        assertEquals(0, recorder.done.get().length);
+        assertEquals(1, recorder.getLastChunks());
+        assertTrue(recorder.isFailed());
+    }
+
+    @Test
+    void failedChunkStopsTheResponse() throws Exception {
+        origin = new StubOrigin(200, StubOrigin.randomBody(100 * CHUNK_SIZE), false);
+        client = client(4, 16);
+
+        // the first chunk is cut from the same read as the ones after it
+        ChunkRecorder recorder = new ChunkRecorder() {
+            @Override
+            public synchronized CompletableFuture<Void> onChunk(byte[] chunk, int sequence, boolean last, boolean failed) {
+                super.onChunk(chunk, sequence, last, failed);
+                return sequence == 0 ? CompletableFuture.failedFuture(new IOException("circuit closed")) : Util.DONE;
+            }
+        };
+        assertFalse(client.send(origin.url("/"), recorder).get(10, TimeUnit.SECONDS));
+        assertEquals(1, recorder.getLastChunks());
+        assertTrue(recorder.isFailed());
+        assertTrue(recorder.sequences.size() < 100);
+    }
+
+    @Test
+    void runsAtMostMaxConcurrentRequests() throws Exception {
+        origin = new StubOrigin(200, StubOrigin.randomBody(100), true);
+        client = client(2, 16);
+
+        List<CompletableFuture<Boolean>> requests = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            requests.add(client.send(origin.url("/" + i), new ChunkRecorder()));
+        }
+        waitFor(() -> origin.getRunning() == 2);
+        Thread.sleep(200);
+        assertEquals(2, origin.getRunning());
+        assertEquals(4, client.getPendingRequests());
+
+        origin.release();
+        for (CompletableFuture<Boolean> request : requests) {
+            assertTrue(request.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(6, origin.getRequests());
+        assertEquals(2, origin.getMaxRunning());
+    }
+
+    @Test
+    void rejectsRequestsBeyondMaxPendingRequests() throws Exception {
+        origin = new StubOrigin(200, StubOrigin.randomBody(100), true);
+        client = client(1, 1);
+
+        CompletableFuture<Boolean> running = client.send(origin.url("/running"), new ChunkRecorder());
+        waitFor(() -> origin.getRunning() == 1);
+        CompletableFuture<Boolean> pending = client.send(origin.url("/pending"), new ChunkRecorder());
+        ChunkRecorder rejected = new ChunkRecorder();
+        assertFalse(client.send(origin.url("/rejected"), rejected).get(1, TimeUnit.SECONDS));
+        assertEquals(0, rejected.done.get().length);
+        assertTrue(rejected.isFailed());
+
+        origin.release();
+        assertTrue(running.get(10, TimeUnit.SECONDS));
+        assertTrue(pending.get(10, TimeUnit.SECONDS));
+        assertEquals(2, origin.getRequests());
+    }
+
+    static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the condition");
+            Thread.sleep(10);
+        }
+    }
+}
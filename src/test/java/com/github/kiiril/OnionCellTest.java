@@ -0,0 +1,168 @@
+package com.github.kiiril;
+
+import com.github.kiiril.messages.Layer;
+import org.junit.jupiter.api.Test;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OnionCellTest {
+    private static final int CELL_SIZE = 2048;
+    private static final AES.Mode MODE = AES.Mode.GCM;
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer layer(String nextHop, String previousHop, int streamId, int sequence, boolean last,
+                                    boolean failed, byte[] body) {
+        byte[] next = OnionCell.address(nextHop);
+        byte[] previous = OnionCell.address(previousHop);
+        ByteBuffer layer = ByteBuffer.allocate(OnionCell.headerSize(next, previous) + body.length);
+        OnionCell.putHeader(layer, next, previous, streamId, sequence, last, failed);
+        return layer.put(body).flip();
+    }
+
+    // The bytes after the ciphertext up to the end of the cell
+    private static void assertZeroPadding(ByteBuffer cell) {
+        int length = cell.getInt(cell.position());
+        for (int i = cell.position() + OnionCell.LENGTH_SIZE + length; i < cell.limit(); i++) {
+            assertEquals(0, cell.get(i), "padding byte at " + i);
+        }
+    }
+
+    @Test
+    void headerIsWrittenAndReadBack() {
+        byte[] body = StubOrigin.randomBody(100);
+        ByteBuffer plain = layer("10.0.0.2:8080", "10.0.0.1:8080", 7, 3, true, true, body);
+
+        // [flags][short length][next hop][short length][previous hop][int streamId][int sequence][body]
+        assertEquals(OnionCell.FIXED_HEADER_SIZE + 13 + 13 + body.length, plain.remaining());
+        assertEquals(3, plain.get(0));
+        assertEquals(13, plain.getShort(1));
+
+        Layer layer = OnionCell.readLayer(plain);
+        assertNotNull(layer);
+        assertEquals("10.0.0.2:8080", layer.getNextPeer());
+        assertEquals("10.0.0.1:8080", layer.getPreviousPeer());
+        assertEquals(7, layer.getStreamId());
+        assertEquals(3, layer.getSequence());
+        assertTrue(layer.isLast());
+        assertTrue(layer.isFailed());
+        assertArrayEquals(body, bytes(layer.getBody()));
+    }
+
+    @Test
+    void emptyHopsAndFlagsReadBackAsNone() {
+        Layer layer = OnionCell.readLayer(layer(null, null, 1, 0, false, false, new byte[0]));
+        assertNotNull(layer);
+        assertNull(layer.getNextPeer());
+        assertNull(layer.getPreviousPeer());
+        assertFalse(layer.isLast());
+        assertFalse(layer.isFailed());
+        assertEquals(0, layer.getBody().remaining());
+    }
+
+    @Test
+    void truncatedHeaderIsMalformed() {
+        ByteBuffer plain = layer("10.0.0.2:8080", "10.0.0.1:8080", 7, 3, false, false, new byte[0]);
+        plain.limit(plain.limit() - 1);
+        assertNull(OnionCell.readLayer(plain));
+    }
+
+    @Test
+    void sealedCellHasTheCellSizeAndZeroPadding() {
+        SecretKey key = AES.generateRandomKey();
+        byte[] body = StubOrigin.randomBody(300);
+        ByteBuffer cell = OnionCell.seal(MODE, key, ByteBuffer.wrap(body), CELL_SIZE);
+
+        assertNotNull(cell);
+        assertEquals(CELL_SIZE, cell.remaining());
+        assertEquals(AES.encryptedSize(MODE, body.length), cell.getInt(0));
+        assertZeroPadding(cell);
+
+        ByteBuffer plain = OnionCell.decrypt(MODE, key, OnionCell.ciphertext(cell, CELL_SIZE));
+        assertNotNull(plain);
+        assertArrayEquals(body, bytes(plain));
+    }
+
+    @Test
+    void malformedCellsHaveNoCiphertext() {
+        ByteBuffer cell = OnionCell.seal(MODE, AES.generateRandomKey(), ByteBuffer.wrap(new byte[10]), CELL_SIZE);
+        assertNull(OnionCell.ciphertext(cell.duplicate().limit(CELL_SIZE - 1), CELL_SIZE));
+
+        cell.putInt(0, CELL_SIZE);
+        assertNull(OnionCell.ciphertext(cell, CELL_SIZE));
+        cell.putInt(0, -1);
+        assertNull(OnionCell.ciphertext(cell, CELL_SIZE));
+    }
+
+    @Test
+    void layerThatDoesNotFitIsNotSealed() {
+        assertNull(OnionCell.seal(MODE, AES.generateRandomKey(), ByteBuffer.wrap(new byte[CELL_SIZE]), CELL_SIZE));
+        assertNull(OnionCell.toMessage(ByteBuffer.wrap(new byte[CELL_SIZE]), CELL_SIZE));
+    }
+
+    @Test
+    void relayHandsOnACellOfTheSameSize() {
+        SecretKey relayKey = AES.generateRandomKey();
+        SecretKey exitKey = AES.generateRandomKey();
+        byte[] chunk = StubOrigin.randomBody(500);
+
+        ByteBuffer inner = OnionCell.seal(MODE, exitKey, layer(null, "10.0.0.1:8080", 1, 0, true, false, chunk), CELL_SIZE);
+        ByteBuffer outer = OnionCell.seal(MODE, relayKey,
+                layer("10.0.0.3:8080", "10.0.0.0:8080", 0, 0, false, false, bytes(OnionCell.ciphertext(inner, CELL_SIZE))), CELL_SIZE);
+
+        // the relay decrypts in place and pads the inner ciphertext back to a whole cell
+        ByteBuffer plain = OnionCell.decrypt(MODE, relayKey, OnionCell.ciphertext(outer, CELL_SIZE));
+        Layer relayLayer = OnionCell.readLayer(plain);
+        assertEquals("10.0.0.3:8080", relayLayer.getNextPeer());
+        ByteBuffer forwarded = OnionCell.toMessage(relayLayer.getBody(), CELL_SIZE);
+        assertNotNull(forwarded);
+        assertEquals(CELL_SIZE, forwarded.remaining());
+        assertZeroPadding(forwarded);
+
+        Layer exitLayer = OnionCell.readLayer(OnionCell.decrypt(MODE, exitKey, OnionCell.ciphertext(forwarded, CELL_SIZE)));
+        assertNull(exitLayer.getNextPeer());
+        assertTrue(exitLayer.isLast());
+        assertArrayEquals(chunk, bytes(exitLayer.getBody()));
+    }
+
+    @Test
+    void largestResponseChunkFitsThroughEveryHop() {
+        NodeConfig config = new NodeConfig().setCellSize(CELL_SIZE).setCipherMode(MODE).setStreamChunkSize(64 * 1024);
+        byte[] chunk = StubOrigin.randomBody(OnionCell.maxResponseChunkSize(config));
+
+        // on the way back only the exit node adds a header, every relay encrypts what it got as a whole
+        SecretKey[] keys = new SecretKey[OnionCell.MAX_HOPS];
+        keys[0] = AES.generateRandomKey();
+        ByteBuffer cell = OnionCell.seal(MODE, keys[0], layer(null, null, 1, 0, true, false, chunk), CELL_SIZE);
+        for (int hop = 1; hop < OnionCell.MAX_HOPS; hop++) {
+            keys[hop] = AES.generateRandomKey();
+            cell = OnionCell.seal(MODE, keys[hop], OnionCell.ciphertext(cell, CELL_SIZE), CELL_SIZE);
+            assertNotNull(cell, "hop " + hop);
+            assertEquals(CELL_SIZE, cell.remaining());
+        }
+
+        ByteBuffer ciphertext = OnionCell.ciphertext(cell, CELL_SIZE);
+        for (int hop = OnionCell.MAX_HOPS - 1; hop >= 0; hop--) {
+            ciphertext = OnionCell.decrypt(MODE, keys[hop], ciphertext);
+        }
+        assertArrayEquals(chunk, bytes(OnionCell.readLayer(ciphertext).getBody()));
+    }
+
+    @Test
+    void ephemeralKeyIsReadBack() {
+        byte[] key = StubOrigin.randomBody(32);
+        ByteBuffer buffer = ByteBuffer.allocate(OnionCell.keySize(key) + 5);
+        OnionCell.putKey(buffer, key);
+        buffer.put(new byte[5]).flip();
+
+        assertArrayEquals(key, OnionCell.getKey(buffer));
+        assertEquals(5, buffer.remaining());
+        assertNull(OnionCell.getKey(ByteBuffer.allocate(Short.BYTES + 1).putShort((short) 2).flip()));
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.kiiril;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Runs a small network on free loopback ports and sends through a proxy on its first node
+class ProxyServerTest {
+    private static final int NODES = 4;
+
+    private static Simulation simulation;
+    private static StubOrigin origin;
+    private static StubOrigin missing;
+    private static byte[] body;
+    private static ProxyServer proxy;
+    private static HttpClient proxyClient;
+
+    @BeforeAll
+    static void startNetwork() throws Exception {
+        body = StubOrigin.randomBody(100_000);
+        origin = new StubOrigin(200, body, false);
+        missing = new StubOrigin(404, "missing".getBytes(), false);
+        simulation = new Simulation(NODES, 0, UnaryOperator.identity());
+        simulation.awaitReady(60_000);
+        proxy = new ProxyServer(simulation.getNodes().get(0).getClient(), 0, 16, "node0");
+        InetSocketAddress proxyAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), proxy.getPort());
+        proxyClient = HttpClient.newBuilder().proxy(ProxySelector.of(proxyAddress)).build();
+    }
+
+    @AfterAll
+    static void stopNetwork() {
+        if (proxy != null) proxy.shutdown();
+        if (simulation != null) simulation.shutdown();
+        if (origin != null) origin.close();
+        if (missing != null) missing.close();
+    }
+
+    @Test
+    void getIsAnsweredWithTheOriginBody() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(origin.url("/through-the-proxy")))
+                .timeout(Duration.ofSeconds(30))
+                .build();
+        HttpResponse<byte[]> response = proxyClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(body, response.body());
+    }
+
+    @Test
+    void originErrorIsAnsweredWithBadGateway() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(missing.url("/missing")))
+                .timeout(Duration.ofSeconds(30))
+                .build();
+        HttpResponse<byte[]> response = proxyClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+
+        assertEquals(502, response.statusCode());
+        assertEquals(1, missing.getRequests());
+    }
+
+    @Test
+    void otherMethodsAreRejected() throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(origin.url("/post")))
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.ofString("body"))
+                .build();
+        HttpResponse<Void> response = proxyClient.send(request, HttpResponse.BodyHandlers.discarding());
+
+        assertEquals(405, response.statusCode());
+    }
+
+    @Test
+    void otherSchemesAreRejected() throws Exception {
+        assertEquals("HTTP/1.1 400 Bad Request", statusLine("GET ftp://127.0.0.1/file HTTP/1.1"));
+    }
+
+    private static String statusLine(String requestLine) throws Exception {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxy.getPort())) {
+            socket.setSoTimeout(10_000);
+            OutputStream out = socket.getOutputStream();
+            out.write((requestLine + "\r\nHost: 127.0.0.1\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.kiiril;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RelaySelectorTest {
+    private static final int DRAWS = 1_000_000;
+
+    private RelaySelector selector;
+
+    @AfterEach
+    void tearDown() {
+        if (selector != null) selector.shutdown();
+    }
+
+    // How often each peer of the table is drawn, with a fixed seed so the result is the same on every run
+    private static double[] frequencies(double[] weights) {
+        String[] peers = new String[weights.length];
+        Arrays.setAll(peers, i -> "peer" + i);
+        RelaySelector.Snapshot table = new RelaySelector.Snapshot(peers, weights);
+        Random random = new Random(42);
+        double[] frequencies = new double[weights.length];
+        for (int i = 0; i < DRAWS; i++) {
+            frequencies[table.sample(random)] += 1.0 / DRAWS;
+        }
+        return frequencies;
+    }
+
+    @Test
+    void aliasTableDrawsPeersInProportionToTheirWeights() {
+        double[] weights = {1, 2, 3, 4, 10, 0.5};
+        double total = Arrays.stream(weights).sum();
+        double[] frequencies = frequencies(weights);
+        for (int i = 0; i < weights.length; i++) {
+            assertEquals(weights[i] / total, frequencies[i], 0.003, "peer" + i);
+        }
+    }
+
+    @Test
+    void peerWithoutWeightIsNeverDrawn() {
+        double[] frequencies = frequencies(new double[] {0, 1, 1});
+        assertEquals(0, frequencies[0]);
+        assertEquals(0.5, frequencies[1], 0.003);
+    }
+
+    @Test
+    void tableWithoutAnyWeightDrawsUniformly() {
+        double[] frequencies = frequencies(new double[] {0, 0, 0, 0});
+        for (double frequency : frequencies) {
+            assertEquals(0.25, frequency, 0.003);
+        }
+    }
+
+    @Test
+    void selectPicksDistinctKnownPeers() {
+        List<String> peers = List.of("a:1", "b:1", "c:1", "d:1", "e:1", "f:1", "g:1", "h:1");
+        selector = new RelaySelector(() -> peers, peer -> null, new NodeConfig().setNodeName("test"));
+        selector.refresh();
+
+        for (int i = 0; i < 1000; i++) {
+            String[] routers = selector.select(3);
+            assertEquals(3, routers.length);
+            assertEquals(3, new HashSet<>(Arrays.asList(routers)).size());
+            assertTrue(peers.containsAll(Arrays.asList(routers)));
+        }
+    }
+
+    @Test
+    void selectReturnsEveryPeerWhenThereAreNotEnough() {
+        List<String> peers = List.of("a:1", "b:1");
+        selector = new RelaySelector(() -> peers, peer -> null, new NodeConfig().setNodeName("test"));
+        selector.refresh();
+
+        Set<String> routers = new HashSet<>(Arrays.asList(selector.select(3)));
+        assertEquals(new HashSet<>(peers), routers);
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.kiiril;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCacheTest {
+    private static final int CHUNK_SIZE = 4096;
+
+    private ExitHttpClient client;
+    private StubOrigin origin;
+
+    @AfterEach
+    void tearDown() {
+        if (client != null) client.shutdown();
+        if (origin != null) origin.close();
+    }
+
+    private ResponseCache cache(long ttlMillis) {
+        client = new ExitHttpClient(new NodeConfig().setNodeName("test").setStreamChunkSize(CHUNK_SIZE));
+        return new ResponseCache(client, 64 * 1024 * 1024, ttlMillis);
+    }
+
+    @Test
+    void identicalRequestsInFlightShareOneUpstreamRequest() throws Exception {
+        byte[] body = StubOrigin.randomBody(5 * CHUNK_SIZE + 7);
+        origin = new StubOrigin(200, body, true);
+        ResponseCache cache = cache(60_000);
+
+        List<ChunkRecorder> callers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ChunkRecorder caller = new ChunkRecorder();
+            callers.add(caller);
+            cache.send(origin.url("/shared"), caller);
+        }
+        origin.release();
+
+        for (ChunkRecorder caller : callers) {
+            assertArrayEquals(body, caller.done.get(10, TimeUnit.SECONDS));
+            assertEquals(1, caller.getLastChunks());
+        }
+        assertEquals(1, origin.getRequests());
+        assertEquals(1, cache.getMisses());
+        assertEquals(4, cache.getCoalescedRequests());
+    }
+
+    @Test
+    void callerJoiningMidResponseGetsTheWholeBody() throws Exception {
+        byte[] body = StubOrigin.randomBody(256 * CHUNK_SIZE);
+        origin = new StubOrigin(200, body, false);
+        ResponseCache cache = cache(60_000);
+
+        // the first caller holds on to its first chunk, so the origin is not read on until the second has joined.
+        // The chunks cut from one read are all handed out, so the second may be replayed more than one chunk.
+        CompletableFuture<Void> firstChunkTaken = new CompletableFuture<>();
+        CompletableFuture<Void> firstChunkSeen = new CompletableFuture<>();
+        ChunkRecorder first = new ChunkRecorder() {
+            @Override
+            public synchronized CompletableFuture<Void> onChunk(byte[] chunk, int sequence, boolean last, boolean failed) {
+                super.onChunk(chunk, sequence, last, failed);
+                if (sequence > 0) return Util.DONE;
+                firstChunkSeen.complete(null);
+                return firstChunkTaken;
+            }
+        };
+        cache.send(origin.url("/joined"), first);
+        firstChunkSeen.get(10, TimeUnit.SECONDS);
+        ChunkRecorder second = new ChunkRecorder();
+        cache.send(origin.url("/joined"), second);
+        assertFalse(second.sequences.isEmpty());
+        assertFalse(second.done.isDone());
+        firstChunkTaken.complete(null);
+
+        assertArrayEquals(body, first.done.get(10, TimeUnit.SECONDS));
+        assertArrayEquals(body, second.done.get(10, TimeUnit.SECONDS));
+        for (int i = 0; i < second.sequences.size(); i++) {
+            assertEquals(i, second.sequences.get(i));
+        }
+        assertEquals(1, origin.getRequests());
+        assertEquals(1, cache.getCoalescedRequests());
+    }
+
+    @Test
+    void completeResponseIsServedFromTheCache() throws Exception {
+        byte[] body = StubOrigin.randomBody(3 * CHUNK_SIZE);
+        origin = new StubOrigin(200, body, false);
+        ResponseCache cache = cache(60_000);
+
+        ChunkRecorder first = new ChunkRecorder();
+        cache.send(origin.url("/cached"), first);
+        assertArrayEquals(body, first.done.get(10, TimeUnit.SECONDS));
+
+        // asked for as soon as the first caller has the body, the response is already cached
+        ChunkRecorder second = new ChunkRecorder();
+        cache.send(origin.url("/cached"), second);
+        // replayed on the calling thread
+        assertTrue(second.done.isDone());
+        assertArrayEquals(body, second.done.get());
+        assertEquals(1, origin.getRequests());
+        assertEquals(1, cache.getHits());
+        assertEquals(body.length, cache.getCachedBytes());
+    }
+
+    @Test
+    void expiredResponseIsFetchedAgain() throws Exception {
+        byte[] body = StubOrigin.randomBody(100);
+        origin = new StubOrigin(200, body, false);
+        ResponseCache cache = cache(100);
+
+        ChunkRecorder first = new ChunkRecorder();
+        cache.send(origin.url("/expiring"), first);
+        first.done.get(10, TimeUnit.SECONDS);
+        assertEquals(1, cache.getEntries());
+        Thread.sleep(200);
+
+        ChunkRecorder second = new ChunkRecorder();
+        cache.send(origin.url("/expiring"), second);
+        assertArrayEquals(body, second.done.get(10, TimeUnit.SECONDS));
+        assertEquals(2, origin.getRequests());
+        assertEquals(1, cache.getExpirations());
+    }
+
+    @Test
+    void failedResponseIsNotCached() throws Exception {
+        origin = new StubOrigin(500, "broken".getBytes(), false);
+        ResponseCache cache = cache(60_000);
+
+        ChunkRecorder first = new ChunkRecorder();
+        cache.send(origin.url("/failing"), first);
+        assertEquals(0, first.done.get(10, TimeUnit.SECONDS).length);
+        assertTrue(first.isFailed());
+
+        ChunkRecorder second = new ChunkRecorder();
+        cache.send(origin.url("/failing"), second);
+        second.done.get(10, TimeUnit.SECONDS);
+        assertTrue(second.isFailed());
+        assertEquals(2, origin.getRequests());
+        assertEquals(0, cache.getEntries());
+    }
+}
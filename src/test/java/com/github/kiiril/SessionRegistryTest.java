@@ -0,0 +1,162 @@
+package com.github.kiiril;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.kiiril.ExitHttpClientTest.waitFor;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionRegistryTest {
+    private final ConcurrentLinkedQueue<Session> removed = new ConcurrentLinkedQueue<>();
+    private SessionRegistry registry;
+
+    @AfterEach
+    void tearDown() {
+        if (registry != null) registry.shutdown();
+    }
+
+    private SessionRegistry registry(int maxSessions, long idleTtlMillis) {
+        registry = new SessionRegistry(maxSessions, idleTtlMillis, removed::add, "test");
+        return registry;
+    }
+
+    private static Session session(int sessionId) {
+        return new Session(sessionId, AES.Mode.GCM);
+    }
+
+    @Test
+    void sessionsAreFoundUntilRemoved() {
+        SessionRegistry registry = registry(1_000_000, 60_000);
+        List<Session> sessions = new ArrayList<>();
+        // consecutive ids land in clusters of the probe sequences, so removals have entries to shift back
+        for (int id = 1; id <= 20_000; id++) {
+            Session session = session(id);
+            assertTrue(registry.register(session));
+            sessions.add(session);
+        }
+
+        Collections.shuffle(sessions, new Random(42));
+        List<Session> kept = sessions.subList(0, sessions.size() / 2);
+        List<Session> gone = sessions.subList(sessions.size() / 2, sessions.size());
+        for (Session session : gone) {
+            assertSame(session, registry.remove(session.getSessionId()));
+        }
+
+        for (Session session : kept) {
+            assertSame(session, registry.get(session.getSessionId()));
+        }
+        for (Session session : gone) {
+            assertNull(registry.get(session.getSessionId()));
+            assertNull(registry.remove(session.getSessionId()));
+        }
+        assertEquals(kept.size(), registry.getActiveSessions());
+        assertEquals(gone.size(), removed.size());
+        assertEquals(0, registry.getEvictedSessions());
+    }
+
+    @Test
+    void takenAndEmptyIdsAreRejected() {
+        SessionRegistry registry = registry(1000, 60_000);
+        Session first = session(7);
+        assertTrue(registry.register(first));
+        assertFalse(registry.register(session(7)));
+        assertFalse(registry.register(session(0)));
+
+        assertSame(first, registry.get(7));
+        assertNull(registry.get(0));
+        assertEquals(1, registry.getActiveSessions());
+    }
+
+    @Test
+    void createdSessionsGetUniqueIds() {
+        SessionRegistry registry = registry(1_000_000, 60_000);
+        for (int i = 0; i < 1000; i++) {
+            Session session = registry.create(id -> session(id));
+            assertNotEquals(0, session.getSessionId());
+            assertSame(session, registry.get(session.getSessionId()));
+        }
+        assertEquals(1000, registry.getActiveSessions());
+    }
+
+    @Test
+    void fullStripeEvictsItsIdlestSession() {
+        // 16 stripes of two sessions each
+        SessionRegistry registry = registry(32, 60_000);
+        Session used = session(1);
+        registry.register(used);
+        for (int id = 2; id <= 1000; id++) {
+            // looked up before every new session, so it is never the idlest of its stripe
+            assertSame(used, registry.get(used.getSessionId()));
+            registry.register(session(id));
+        }
+
+        assertSame(used, registry.get(used.getSessionId()));
+        assertTrue(registry.getActiveSessions() <= 32);
+        assertEquals(1000 - registry.getActiveSessions(), registry.getEvictedSessions());
+        assertEquals(registry.getEvictedSessions(), removed.size());
+        for (Session evicted : removed) {
+            assertNull(registry.get(evicted.getSessionId()));
+        }
+    }
+
+    @Test
+    void idleSessionsExpire() throws Exception {
+        SessionRegistry registry = registry(1000, 100);
+        Session idle = session(1);
+        registry.register(idle);
+
+        waitFor(() -> registry.getExpiredSessions() == 1);
+        assertNull(registry.get(1));
+        assertEquals(0, registry.getActiveSessions());
+        assertEquals(List.of(idle), new ArrayList<>(removed));
+    }
+
+    @Test
+    void optimisticReadsSeeEveryStableSession() throws Exception {
+        SessionRegistry registry = registry(1_000_000, 60_000);
+        List<Session> stable = new ArrayList<>();
+        for (int id = 1; id <= 1000; id++) {
+            Session session = session(id);
+            registry.register(session);
+            stable.add(session);
+        }
+
+        // a writer keeps growing, shifting and shrinking the tables while readers look up the sessions that stay
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger misses = new AtomicInteger();
+        Thread writer = new Thread(() -> {
+            int next = 1_000_000;
+            while (running.get()) {
+                for (int i = 0; i < 1000; i++) registry.register(session(next + i));
+                for (int i = 0; i < 1000; i++) registry.remove(next + i);
+                next += 1000;
+            }
+        });
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 4; r++) {
+            readers.add(new Thread(() -> {
+                while (running.get()) {
+                    for (Session session : stable) {
+                        if (registry.get(session.getSessionId()) != session) misses.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        writer.start();
+        readers.forEach(Thread::start);
+        Thread.sleep(500);
+        running.set(false);
+        writer.join();
+        for (Thread reader : readers) reader.join();
+
+        assertEquals(0, misses.get());
+        assertEquals(stable.size(), registry.getActiveSessions());
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.kiiril;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Local origin for the tests: answers every path with the same status and body, counts the requests and how many
+// run at once, and holds them back until released if it was created held
+class StubOrigin implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new NamedThreadFactory("stub-origin"));
+    private final int status;
+    private final byte[] body;
+    private final CountDownLatch release;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    StubOrigin(int status, byte[] body, boolean held) throws IOException {
+        this.status = status;
+        this.body = body;
+        this.release = new CountDownLatch(held ? 1 : 0);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    static byte[] randomBody(int size) {
+        byte[] body = new byte[size];
+        ThreadLocalRandom.current().nextBytes(body);
+        return body;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            release.await(10, TimeUnit.SECONDS);
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    void release() {
+        release.countDown();
+    }
+
+    // Requests that reached the origin so far
+    int getRequests() {
+        return requests.get();
+    }
+
+    int getRunning() {
+        return running.get();
+    }
+
+    int getMaxRunning() {
+        return maxRunning.get();
+    }
+
+    @Override
+    public void close() {
+        release();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}